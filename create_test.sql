@@ -4,6 +4,18 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Summary CASCADE;
+DROP TABLE IF EXISTS schema_version;
+DROP SEQUENCE IF EXISTS customer_id_seq;
+DROP SEQUENCE IF EXISTS mechanic_id_seq;
+DROP SEQUENCE IF EXISTS owns_ownership_id_seq;
+DROP SEQUENCE IF EXISTS service_request_rid_seq;
+DROP SEQUENCE IF EXISTS closed_request_wid_seq;
+DROP FUNCTION IF EXISTS rebuild_customer_summary() CASCADE;
+DROP FUNCTION IF EXISTS customer_summary_customer() CASCADE;
+DROP FUNCTION IF EXISTS customer_summary_owns() CASCADE;
+DROP FUNCTION IF EXISTS customer_summary_closed_request() CASCADE;
+DROP FUNCTION IF EXISTS customer_summary_service_request() CASCADE;
 
 
 -------------
@@ -87,7 +99,128 @@ CREATE TABLE Closed_Request
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
 );
 
+----------------
+---AGGREGATES---
+----------------
+-- Per-customer totals behind ListCustomersWithMoreThan20Cars and
+-- ListCustomersInDescendingOrderOfTheirTotalBill.  The triggers at the end of
+-- this file keep every row up to date in the same transaction as the write
+-- to Customer, Owns, Service_Request or Closed_Request, so both reports are
+-- answered from the indexes below instead of re-aggregating the base tables.
+CREATE TABLE Customer_Summary
+(
+	customer_id INTEGER NOT NULL,
+	total_bill BIGINT NOT NULL DEFAULT 0,
+	closed_count INTEGER NOT NULL DEFAULT 0,
+	car_count INTEGER NOT NULL DEFAULT 0,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+CREATE INDEX customer_summary_car_count ON Customer_Summary (car_count);
+CREATE INDEX customer_summary_total_bill ON Customer_Summary (total_bill DESC) WHERE closed_count > 0;
+
+-- recomputes every row from the base tables (after a bulk load, or to repair)
+CREATE FUNCTION rebuild_customer_summary() RETURNS void AS $$
+	DELETE FROM Customer_Summary;
+	INSERT INTO Customer_Summary (customer_id, total_bill, closed_count, car_count)
+	SELECT C.id, COALESCE(B.total, 0), COALESCE(B.closed, 0), COALESCE(O.cars, 0)
+	FROM Customer C
+	LEFT JOIN (SELECT SR.customer_id, SUM(CR.bill) AS total, COUNT(*) AS closed
+		FROM Service_Request SR, Closed_Request CR
+		WHERE CR.rid = SR.rid
+		GROUP BY SR.customer_id) B ON B.customer_id = C.id
+	LEFT JOIN (SELECT customer_id, COUNT(*) AS cars
+		FROM Owns
+		GROUP BY customer_id) O ON O.customer_id = C.id;
+$$ LANGUAGE sql;
+
+CREATE FUNCTION customer_summary_customer() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO Customer_Summary (customer_id) VALUES (NEW.id);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION customer_summary_owns() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		UPDATE Customer_Summary SET car_count = car_count - 1
+		WHERE customer_id = OLD.customer_id;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		UPDATE Customer_Summary SET car_count = car_count + 1
+		WHERE customer_id = NEW.customer_id;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION customer_summary_closed_request() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		UPDATE Customer_Summary S SET total_bill = S.total_bill - OLD.bill, closed_count = S.closed_count - 1
+		FROM Service_Request SR
+		WHERE SR.rid = OLD.rid AND S.customer_id = SR.customer_id;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		UPDATE Customer_Summary S SET total_bill = S.total_bill + NEW.bill, closed_count = S.closed_count + 1
+		FROM Service_Request SR
+		WHERE SR.rid = NEW.rid AND S.customer_id = SR.customer_id;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a request moved to another customer takes its closed bills along
+CREATE FUNCTION customer_summary_service_request() RETURNS trigger AS $$
+DECLARE
+	moved_total BIGINT;
+	moved_count INTEGER;
+BEGIN
+	SELECT COALESCE(SUM(bill), 0), COUNT(*) INTO moved_total, moved_count
+	FROM Closed_Request WHERE rid = NEW.rid;
+	IF moved_count > 0 THEN
+		UPDATE Customer_Summary SET total_bill = total_bill - moved_total, closed_count = closed_count - moved_count
+		WHERE customer_id = OLD.customer_id;
+		UPDATE Customer_Summary SET total_bill = total_bill + moved_total, closed_count = closed_count + moved_count
+		WHERE customer_id = NEW.customer_id;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+---------------
+---SEQUENCES---
+---------------
+-- New keys are allocated by the Java client in blocks (see IdAllocator.java):
+-- one nextval() reserves [value, value + 50) for that client, so the
+-- increment must match IdAllocator.BLOCK_SIZE.
+CREATE SEQUENCE customer_id_seq INCREMENT BY 50;
+CREATE SEQUENCE mechanic_id_seq INCREMENT BY 50;
+CREATE SEQUENCE owns_ownership_id_seq INCREMENT BY 50;
+CREATE SEQUENCE service_request_rid_seq INCREMENT BY 50;
+CREATE SEQUENCE closed_request_wid_seq INCREMENT BY 50;
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
 
+-- start the key sequences after the loaded data
+SELECT setval('customer_id_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM Customer), false);
+SELECT setval('mechanic_id_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM Mechanic), false);
+SELECT setval('owns_ownership_id_seq', (SELECT COALESCE(MAX(ownership_id), 0) + 1 FROM Owns), false);
+SELECT setval('service_request_rid_seq', (SELECT COALESCE(MAX(rid), 0) + 1 FROM Service_Request), false);
+SELECT setval('closed_request_wid_seq', (SELECT COALESCE(MAX(wid), 0) + 1 FROM Closed_Request), false);
+
+-- fill the per-customer aggregates once, then maintain them on every write
+SELECT rebuild_customer_summary();
+
+CREATE TRIGGER customer_summary_customer AFTER INSERT ON Customer
+	FOR EACH ROW EXECUTE PROCEDURE customer_summary_customer();
+CREATE TRIGGER customer_summary_owns AFTER INSERT OR DELETE OR UPDATE OF customer_id ON Owns
+	FOR EACH ROW EXECUTE PROCEDURE customer_summary_owns();
+CREATE TRIGGER customer_summary_closed_request AFTER INSERT OR DELETE OR UPDATE OF rid, bill ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE customer_summary_closed_request();
+CREATE TRIGGER customer_summary_service_request AFTER UPDATE OF customer_id ON Service_Request
+	FOR EACH ROW WHEN (OLD.customer_id <> NEW.customer_id) EXECUTE PROCEDURE customer_summary_service_request();
@@ -0,0 +1,13 @@
+#! /bin/bash
+# Example: ./bench.sh --memory --datasets sf1=../../../csv_data
+if [ "$1" = "--memory" ]; then
+	exec java -cp lib/*:bin/ MechanicShopBenchmark "$@"
+fi
+
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./bench.sh benchDB 5432 user --datasets sf1=../../../csv_data --json results.json
+java -cp lib/*:bin/ MechanicShopBenchmark $DBNAME $PORT $USER "$@"
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./export.sh shopDB 5432 user /tmp/$LOGNAME/export [csv|binary]
+# Load it back with: ./run.sh shopDB 5432 user load /tmp/$LOGNAME/export
+java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER export "$@"
@@ -0,0 +1,288 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a command file without the interactive menu.  Each line holds one
+ * operation and its arguments, separated by tabs:
+ *
+ *   AddCustomer           fname  lname  phone  address
+ *   AddMechanic           fname  lname  experience
+ *   AddCar                vin  make  model  year
+ *   InsertServiceRequest  customer_id  vin  odometer  complaint
+ *   CloseServiceRequest   rid  mechanic_id  comment  bill
+ *   ListCustomersWithBillLessThan100 (and the other reports; ListKCarsWithTheMostServices takes K)
+ *
+ * Blank lines and lines starting with # are skipped.
+ *
+ * The write operations are queued as JDBC batches on one connection and
+ * sent and committed every commitInterval operations, so a file of
+ * intake records costs a handful of round trips instead of one
+ * autocommitted statement each.  Keys come from the IdAllocator, so
+ * queuing needs no round trip either.  Within a commit the batches run in
+ * foreign key order (customers, mechanics and cars, then requests, then
+ * closings), so a line may refer to a row added earlier in the same file.
+ * A report line first commits everything queued before it.
+ *
+ * If a commit fails, the whole chunk is rolled back, the error and its
+ * line range are reported, and the run goes on with the next chunk.
+ * An InsertServiceRequest for a car the customer does not own, and a
+ * CloseServiceRequest whose request or mechanic is missing or whose
+ * request is dated in the future, insert nothing and are reported as
+ * rejected.
+ */
+public class BatchRunner {
+
+	/*
+	 * Opening only inserts when the customer owns the car, and closing only
+	 * when the request and the mechanic exist and the request is not dated
+	 * in the future, so a bad line shows up as an update count of 0 instead
+	 * of a foreign key error that rolls back its whole chunk.
+	 */
+	static final String BATCH_OPEN_SQL =
+		"INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) " +
+		"SELECT ?, ?, ?, CURRENT_DATE, ?, ? WHERE EXISTS (SELECT 1 FROM Owns O WHERE O.customer_id = ? AND O.car_vin = ?)";
+	static final String BATCH_CLOSE_SQL =
+		"INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) " +
+		"SELECT ?, SR.rid, ?, CURRENT_DATE, ?, ? FROM Service_Request SR WHERE SR.rid = ? AND SR.date <= CURRENT_DATE " +
+		"AND EXISTS (SELECT 1 FROM Mechanic M WHERE M.id = ?)";
+
+	/** Statements in the order their batches are executed, and the tables they write. */
+	private static final String[] WRITE_ORDER = {
+		MechanicShop.INSERT_CUSTOMER_SQL,
+		MechanicShop.INSERT_MECHANIC_SQL,
+		MechanicShop.INSERT_CAR_SQL,
+		BATCH_OPEN_SQL,
+		BATCH_CLOSE_SQL,
+	};
+	/** Why a line of each statement that inserted nothing was rejected. */
+	private static final String[] REJECTED = {
+		null,
+		null,
+		null,
+		"the customer does not own the car",
+		"service request or mechanic not found, or request dated in the future",
+	};
+	private static final int[] WRITE_TABLES = {
+		ReportCache.CUSTOMER,
+		ReportCache.MECHANIC,
+		ReportCache.CAR,
+		ReportCache.SERVICE_REQUEST,
+		ReportCache.CLOSED_REQUEST,
+	};
+
+	private final MechanicShop esql;
+	private final int commitInterval;
+
+	private Connection conn;
+	private final PreparedStatement[] statements = new PreparedStatement[WRITE_ORDER.length];
+	private final List<List<Integer>> queuedLines = new ArrayList<List<Integer>>();
+	// rids of the queued requests and closings, and the VINs of the requests
+	private final List<Object[]> queuedOpens = new ArrayList<Object[]>();
+	private final List<Integer> queuedMechanics = new ArrayList<Integer>();
+	private final List<Integer> queuedCloses = new ArrayList<Integer>();
+	// id, fname, lname and phone of the queued customers, for the name index
+	private final List<Object[]> queuedCustomers = new ArrayList<Object[]>();
+	private int queued = 0;
+	private int firstQueuedLine = 0;
+
+	private long executed = 0;
+	private long rejected = 0;
+	private long failed = 0;
+
+	public BatchRunner(MechanicShop esql, int commitInterval) {
+		this.esql = esql;
+		this.commitInterval = Math.max(1, commitInterval);
+		for (int i = 0; i < WRITE_ORDER.length; ++i) queuedLines.add(new ArrayList<Integer>());
+	}
+
+	/**
+	 * Executes every line of the command file.
+	 *
+	 * @param file the command file
+	 * @throws java.io.IOException when the file cannot be read
+	 * @throws java.sql.SQLException when the database connection fails
+	 */
+	public void run(File file) throws IOException, SQLException {
+		long started = System.nanoTime();
+		int lineNo = 0;
+		conn = esql.borrowConnection();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			conn.setAutoCommit(false);
+			for (int i = 0; i < WRITE_ORDER.length; ++i) {
+				statements[i] = esql.getPool().prepare(conn, WRITE_ORDER[i]);
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				++lineNo;
+				if (line.trim().isEmpty() || line.startsWith("#")) continue;
+				try {
+					execute(line.split("\t", -1), lineNo);
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					System.err.println("line " + lineNo + ": malformed arguments, skipped: " + line);
+					++failed;
+				}
+				if (queued >= commitInterval) flush();
+			}
+			flush();
+		} finally {
+			reader.close();
+			try {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			} catch (SQLException e) {
+				// the pool resets the connection on release anyway
+			}
+			esql.releaseConnection(conn);
+			conn = null;
+		}
+		double seconds = (System.nanoTime() - started) / 1e9;
+		System.out.println(String.format("Batch done: %d lines, %d operations executed, %d rejected, %d failed in %.2f s (%.0f ops/s)",
+				lineNo, executed, rejected, failed, seconds, executed / seconds));
+	}
+
+	private void execute(String[] f, int lineNo) throws SQLException {
+		String op = f[0].trim();
+		if (op.equals("AddCustomer")) {
+			int id = esql.nextId(IdAllocator.CUSTOMER_ID);
+			queue(0, lineNo, id, f[1], f[2], f[3], f[4]);
+			queuedCustomers.add(new Object[] { id, f[1], f[2], f[3] });
+		}
+		else if (op.equals("AddMechanic")) {
+			int id = esql.nextId(IdAllocator.MECHANIC_ID);
+			esql.getMembership().addMechanic(id);
+			queue(1, lineNo, id, f[1], f[2], Integer.parseInt(f[3].trim()));
+			queuedMechanics.add(id);
+		}
+		else if (op.equals("AddCar")) {
+			queue(2, lineNo, f[1], f[2], f[3], Integer.parseInt(f[4].trim()));
+		}
+		else if (op.equals("InsertServiceRequest")) {
+			int rid = esql.nextId(IdAllocator.SERVICE_REQUEST_RID);
+			int customerId = Integer.parseInt(f[1].trim());
+			esql.getMembership().addServiceRequest(rid);
+			queue(3, lineNo, rid, customerId, f[2], Integer.parseInt(f[3].trim()), f[4], customerId, f[2]);
+			queuedOpens.add(new Object[] { rid, f[2] });
+		}
+		else if (op.equals("CloseServiceRequest")) {
+			int rid = Integer.parseInt(f[1].trim());
+			int mechanicId = Integer.parseInt(f[2].trim());
+			queue(4, lineNo, esql.nextId(IdAllocator.CLOSED_REQUEST_WID), mechanicId, f[3],
+					Integer.parseInt(f[4].trim()), rid, mechanicId);
+			queuedCloses.add(rid);
+		}
+		else {
+			// reads see everything queued before them
+			flush();
+			if (!report(op, f)) {
+				System.err.println("line " + lineNo + ": unknown operation " + op);
+				++failed;
+			}
+		}
+	}
+
+	private boolean report(String op, String[] f) throws SQLException {
+		ColumnarResult result;
+		if (op.equals("ListCustomersWithBillLessThan100")) result = MechanicShop.customersWithBillLessThan100(esql);
+		else if (op.equals("ListCustomersWithMoreThan20Cars")) result = MechanicShop.customersWithMoreThan20Cars(esql);
+		else if (op.equals("ListCarsBefore1995With50000Milles")) result = MechanicShop.carsBefore1995With50000Miles(esql);
+		else if (op.equals("ListKCarsWithTheMostServices")) result = MechanicShop.kCarsWithTheMostServices(esql, Integer.parseInt(f[1].trim()));
+		else if (op.equals("ListCustomersInDescendingOrderOfTheirTotalBill")) result = MechanicShop.customersByTotalBillDesc(esql);
+		else return false;
+		System.out.println("Total row(s): " + result.print(System.out));
+		conn.commit();
+		++executed;
+		return true;
+	}
+
+	private void queue(int statement, int lineNo, Object... params) throws SQLException {
+		if (queued == 0) firstQueuedLine = lineNo;
+		MechanicShop.bind(statements[statement], params);
+		statements[statement].addBatch();
+		queuedLines.get(statement).add(lineNo);
+		++queued;
+	}
+
+	/** Sends every queued batch in foreign key order and commits them together. */
+	private void flush() throws SQLException {
+		if (queued == 0) return;
+		int chunk = queued;
+		try {
+			List<String> rejectedLines = new ArrayList<String>();
+			boolean[] openRejected = new boolean[queuedOpens.size()];
+			boolean[] closedRejected = new boolean[queuedCloses.size()];
+			int ok = 0;
+			int written = 0;
+			for (int i = 0; i < statements.length; ++i) {
+				if (queuedLines.get(i).isEmpty()) continue;
+				written |= WRITE_TABLES[i];
+				Metrics.Probe probe = esql.getMetrics().startCall(Metrics.BATCH, WRITE_ORDER[i], null);
+				int[] counts;
+				try {
+					counts = statements[i].executeBatch();
+				} catch (SQLException e) {
+					probe.fail();
+					throw e;
+				}
+				probe.end(counts.length, 0);
+				for (int k = 0; k < counts.length; ++k) {
+					if (counts[k] == 0) {
+						rejectedLines.add("line " + queuedLines.get(i).get(k) + ": rejected, " + REJECTED[i]);
+						if (i == 3) openRejected[k] = true;
+						if (i == 4) closedRejected[k] = true;
+					}
+					else if (counts[k] > 0 || counts[k] == Statement.SUCCESS_NO_INFO) ++ok;
+				}
+			}
+			conn.commit();
+			esql.getReportCache().invalidate(written);
+			// again after the commit, for a filter rebuild that read the tables before it
+			MembershipFilter membership = esql.getMembership();
+			for (int id : queuedMechanics) membership.addMechanic(id);
+			OpenRequestIndex openRequests = esql.getOpenRequests();
+			for (int k = 0; k < openRejected.length; ++k) {
+				if (openRejected[k]) continue;
+				Object[] open = queuedOpens.get(k);
+				membership.addServiceRequest((Integer) open[0]);
+				openRequests.opened((Integer) open[0], (String) open[1]);
+			}
+			for (Object[] c : queuedCustomers) esql.getCustomerNames().added((Integer) c[0], (String) c[1], (String) c[2], (String) c[3]);
+			for (int k = 0; k < closedRejected.length; ++k) {
+				if (!closedRejected[k]) openRequests.closed(queuedCloses.get(k));
+			}
+			executed += ok;
+			rejected += rejectedLines.size();
+			for (String line : rejectedLines) System.err.println(line);
+		} catch (BatchUpdateException e) {
+			conn.rollback();
+			SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+			System.err.println("lines " + firstQueuedLine + "-" + lastQueuedLine() + ": rolled back " + chunk + " operations: " + cause.getMessage());
+			failed += chunk;
+			for (PreparedStatement stmt : statements) stmt.clearBatch();
+		} finally {
+			for (List<Integer> lines : queuedLines) lines.clear();
+			queuedOpens.clear();
+			queuedMechanics.clear();
+			queuedCloses.clear();
+			queuedCustomers.clear();
+			queued = 0;
+		}
+	}
+
+	private int lastQueuedLine() {
+		int last = firstQueuedLine;
+		for (List<Integer> lines : queuedLines) {
+			if (!lines.isEmpty()) last = Math.max(last, lines.get(lines.size() - 1));
+		}
+		return last;
+	}
+}
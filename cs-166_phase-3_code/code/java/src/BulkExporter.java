@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Exports the six shop tables with COPY ... TO STDOUT into gzip files that
+ * BulkLoader loads back ("load <dir>").
+ *
+ * Every table is copied on its own pooled connection, all of them at
+ * once, and streamed through a gzip stream into a file channel as the rows
+ * arrive, so memory use does not grow with the table.  The copies share
+ * one snapshot (pg_export_snapshot), so the files are consistent with each
+ * other even while the shop keeps writing, and each file only gets its
+ * final name once it is complete.  An export.properties file with the row
+ * counts is written last.
+ *
+ * Two formats:
+ *   csv     customer.csv.gz, ...: the csv_data layout with ISO dates
+ *   binary  customer.bin.gz, ...: COPY's binary format, cheaper for the
+ *           server to write and read but only loadable into PostgreSQL
+ */
+public class BulkExporter {
+
+	public enum Format {
+		CSV(".csv.gz", "WITH DELIMITER ','"),
+		BINARY(".bin.gz", "WITH BINARY");
+
+		final String suffix;
+		final String options;
+
+		Format(String suffix, String options) {
+			this.suffix = suffix;
+			this.options = options;
+		}
+
+		/** @return the file of a table in this format */
+		String file(BulkLoader.Table table) {
+			return table.file.substring(0, table.file.lastIndexOf('.')) + suffix;
+		}
+	}
+
+	static final String PROPERTIES = "export.properties";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Counts the bytes on their way to the compressor. */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/** What one table's copy wrote. */
+	static final class Copied {
+		final BulkLoader.Table table;
+		final long rows;
+		final long bytes;
+		final long compressedBytes;
+		final long nanos;
+
+		Copied(BulkLoader.Table table, long rows, long bytes, long compressedBytes, long nanos) {
+			this.table = table;
+			this.rows = rows;
+			this.bytes = bytes;
+			this.compressedBytes = compressedBytes;
+			this.nanos = nanos;
+		}
+	}
+
+	private final MechanicShop esql;
+	private final int gzipLevel;
+
+	/**
+	 * @param gzipLevel 1 (fastest) to 9 (smallest)
+	 */
+	public BulkExporter(MechanicShop esql, int gzipLevel) {
+		this.esql = esql;
+		this.gzipLevel = gzipLevel;
+	}
+
+	/**
+	 * Writes every table into dir, replacing an earlier export there.
+	 *
+	 * @return total number of rows exported
+	 * @throws java.lang.Exception when a file cannot be written or a COPY fails
+	 */
+	public long export(File dir, Format format) throws Exception {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+		new File(dir, PROPERTIES).delete();
+		List<BulkLoader.Table> tables = new ArrayList<BulkLoader.Table>();
+		for (BulkLoader.Table[] phase : BulkLoader.PHASES) {
+			for (BulkLoader.Table table : phase) tables.add(table);
+		}
+
+		long started = System.nanoTime();
+		ConnectionPool pool = esql.getPool();
+		if (pool.maxSize() < 2) throw new IllegalStateException("The export needs at least 2 connections (mechanicshop.pool.max)");
+		// the snapshot lives as long as this transaction
+		Connection conn = pool.borrow();
+		// one connection stays with the snapshot; tables beyond the pool size wait for a worker
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(tables.size(), pool.maxSize() - 1));
+		List<Copied> copied = new ArrayList<Copied>();
+		// a worker's failure is thrown once the snapshot connection is back;
+		// it belongs to the worker's own connection, not to this one
+		Exception failure = null;
+		try {
+			conn.setAutoCommit(false);
+			final String snapshot;
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+				ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()");
+				rs.next();
+				snapshot = rs.getString(1);
+			} finally {
+				stmt.close();
+			}
+			List<Future<Copied>> results = new ArrayList<Future<Copied>>();
+			for (final BulkLoader.Table table : tables) {
+				results.add(workers.submit(() -> copyTable(table, new File(dir, format.file(table)), format, snapshot)));
+			}
+			for (Future<Copied> result : results) {
+				try {
+					copied.add(result.get());
+				} catch (ExecutionException e) {
+					for (Future<Copied> other : results) other.cancel(true);
+					failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					break;
+				}
+			}
+			if (failure == null) conn.commit();
+		} catch (SQLException e) {
+			throw pool.failed(conn, e);
+		} finally {
+			workers.shutdownNow();
+			pool.release(conn);
+		}
+		if (failure != null) throw failure;
+
+		long total = 0;
+		long bytes = 0;
+		long compressed = 0;
+		Properties props = new Properties();
+		props.setProperty("format", format.name().toLowerCase());
+		for (Copied c : copied) {
+			total += c.rows;
+			bytes += c.bytes;
+			compressed += c.compressedBytes;
+			props.setProperty(c.table.name + ".rows", String.valueOf(c.rows));
+		}
+		FileOutputStream out = new FileOutputStream(new File(dir, PROPERTIES));
+		try {
+			props.store(out, "MechanicShop export");
+		} finally {
+			out.close();
+		}
+		long elapsed = System.nanoTime() - started;
+		System.out.println(String.format("Exported %d rows in %.2f s (%.0f rows/s, %.1f MB/s, %.1f MB compressed to %.1f MB)",
+				total, elapsed / 1e9, total / (elapsed / 1e9), bytes / 1e6 / (elapsed / 1e9), bytes / 1e6, compressed / 1e6));
+		return total;
+	}
+
+	private Copied copyTable(BulkLoader.Table table, File file, Format format, String snapshot) throws SQLException, IOException {
+		long started = System.nanoTime();
+		File part = new File(file.getPath() + ".part");
+		ConnectionPool pool = esql.getPool();
+		Connection conn = pool.borrow();
+		try {
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+				stmt.execute("SET TRANSACTION SNAPSHOT " + quoteSnapshot(snapshot));
+				// the dates as BulkLoader passes them on, whatever the server's default
+				stmt.execute("SET LOCAL DateStyle = ISO");
+			} finally {
+				stmt.close();
+			}
+			long rows;
+			CountingOutputStream out;
+			FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				OutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE) {
+					{
+						def.setLevel(gzipLevel);
+					}
+				};
+				out = new CountingOutputStream(gzip);
+				rows = conn.unwrap(PGConnection.class).getCopyAPI()
+						.copyOut("COPY " + table.name + " (" + table.columns + ") TO STDOUT " + format.options, out);
+				out.close();
+			} finally {
+				channel.close();
+			}
+			conn.commit();
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			long elapsed = System.nanoTime() - started;
+			Copied c = new Copied(table, rows, out.count, file.length(), elapsed);
+			System.out.println(String.format("  %-16s %10d rows %8.2f s %12.0f rows/s %8.1f MB/s",
+					table.name, rows, elapsed / 1e9, rows / (elapsed / 1e9), c.bytes / 1e6 / (elapsed / 1e9)));
+			return c;
+		} catch (SQLException e) {
+			throw pool.failed(conn, e);
+		} finally {
+			part.delete();
+			pool.release(conn);
+		}
+	}
+
+	/** Snapshot ids look like 000003A1-1; anything else is not sent to the server. */
+	static String quoteSnapshot(String snapshot) throws SQLException {
+		if (snapshot == null || !snapshot.matches("[0-9A-Fa-f-]+")) {
+			throw new SQLException("Unexpected snapshot id " + snapshot, "22023");
+		}
+		return "'" + snapshot + "'";
+	}
+}
@@ -0,0 +1,397 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Loads the csv_data files from the client with COPY ... FROM STDIN, so the
+ * files do not have to live on the database host.
+ *
+ * Tables are loaded in three phases that follow the foreign keys:
+ * Customer, Mechanic and Car first, then Owns and Service_Request, then
+ * Closed_Request.  The tables of one phase are loaded in parallel, each on
+ * its own pooled connection.  Every table is one COPY, so it is loaded
+ * completely or not at all, but a failure in a later phase leaves the
+ * earlier tables loaded.
+ *
+ * The triggers that maintain Customer_Summary are disabled while the
+ * tables load, and the summary is rebuilt once at the end, which is much
+ * cheaper than updating it row by row.
+ *
+ * The request dates in the files look like "5/20/2016 00:00"; they are
+ * rewritten to ISO "2016-05-20" byte by byte while the line is copied into
+ * the send buffer, so parsing them allocates nothing per row.
+ *
+ * A directory holding an export.properties is loaded from the files
+ * BulkExporter wrote instead: customer.csv.gz (the same layout, already
+ * with ISO dates) or customer.bin.gz (COPY's binary format, passed on as
+ * it is), as export.properties names the format.  The exporter writes that
+ * file last, so an interrupted export is refused rather than loaded as a
+ * mix of old and new tables, and every table must load as many rows as it
+ * lists.
+ */
+public class BulkLoader {
+
+	static final class Table {
+		final String name;
+		final String columns;
+		final String file;
+		final int dateColumn;
+
+		Table(String name, String columns, String file, int dateColumn) {
+			this.name = name;
+			this.columns = columns;
+			this.file = file;
+			this.dateColumn = dateColumn;
+		}
+	}
+
+	static final Table CUSTOMER = new Table("Customer", "id, fname, lname, phone, address", "customer.csv", -1);
+	static final Table MECHANIC = new Table("Mechanic", "id, fname, lname, experience", "mechanic.csv", -1);
+	static final Table CAR = new Table("Car", "vin, make, model, year", "car.csv", -1);
+	static final Table OWNS = new Table("Owns", "ownership_id, customer_id, car_vin", "owns.csv", -1);
+	static final Table SERVICE_REQUEST = new Table("Service_Request", "rid, customer_id, car_vin, date, odometer, complain", "service_request.csv", 3);
+	static final Table CLOSED_REQUEST = new Table("Closed_Request", "wid, rid, mid, date, comment, bill", "closed_request.csv", 3);
+
+	/** Load order; the tables inside one phase do not reference each other. */
+	static final Table[][] PHASES = {
+		{ CUSTOMER, MECHANIC, CAR },
+		{ OWNS, SERVICE_REQUEST },
+		{ CLOSED_REQUEST },
+	};
+
+	/** Key sequences and the column each one has to start after (see create.sql). */
+	static final String[][] KEY_SEQUENCES = {
+		{ IdAllocator.CUSTOMER_ID, "Customer", "id" },
+		{ IdAllocator.MECHANIC_ID, "Mechanic", "id" },
+		{ IdAllocator.OWNERSHIP_ID, "Owns", "ownership_id" },
+		{ IdAllocator.SERVICE_REQUEST_RID, "Service_Request", "rid" },
+		{ IdAllocator.CLOSED_REQUEST_WID, "Closed_Request", "wid" },
+	};
+
+	/** Tables whose user triggers maintain Customer_Summary (see create.sql). */
+	static final String[] SUMMARY_TRIGGER_TABLES = { "Customer", "Owns", "Service_Request", "Closed_Request" };
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final MechanicShop esql;
+
+	public BulkLoader(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Empties the shop tables and loads them from the csv files in dir,
+	 * then restarts the key sequences after the loaded data.
+	 *
+	 * @param dir directory holding customer.csv, mechanic.csv, ... or an export
+	 * @return total number of rows loaded
+	 * @throws java.lang.Exception when a file cannot be read or a COPY fails
+	 */
+	public long load(File dir) throws Exception {
+		final Properties export = export(dir);
+		for (Table[] phase : PHASES) {
+			for (Table table : phase) {
+				File file = source(dir, table, export);
+				if (!file.canRead()) {
+					throw new IOException("Cannot read " + file + (export != null || !exported(dir, table) ? ""
+							: " (an export is only loaded with its " + BulkExporter.PROPERTIES + ", which is written last)"));
+				}
+				if (export != null) expectedRows(export, table);
+			}
+		}
+
+		long started = System.nanoTime();
+		esql.executeUpdate("TRUNCATE Customer, Mechanic, Car, Owns, Service_Request, Closed_Request, Customer_Summary");
+
+		long total = 0;
+		ExecutorService workers = Executors.newFixedThreadPool(maxPhaseWidth());
+		try {
+			setSummaryTriggers(false);
+			for (final Table[] phase : PHASES) {
+				List<Future<Long>> results = new ArrayList<Future<Long>>();
+				for (final Table table : phase) {
+					final File file = source(dir, table, export);
+					results.add(workers.submit(() -> {
+						long rows = loadTable(table, file);
+						if (export != null && rows != expectedRows(export, table)) {
+							throw new IOException(table.name + ": loaded " + rows + " rows from " + file + ", but "
+									+ BulkExporter.PROPERTIES + " lists " + expectedRows(export, table));
+						}
+						return rows;
+					}));
+				}
+				for (Future<Long> result : results) {
+					try {
+						total += result.get();
+					} catch (ExecutionException e) {
+						for (Future<Long> other : results) other.cancel(true);
+						throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+			// also after a failed load: the tables were truncated, and the
+			// summary has to match whatever did get loaded
+			try {
+				esql.executeQuery("SELECT rebuild_customer_summary()");
+			} finally {
+				setSummaryTriggers(true);
+				esql.getReportCache().invalidateAll();
+				esql.getOpenRequests().reset();
+				esql.getCustomerNames().reset();
+				esql.getMembership().reset();
+			}
+		}
+
+		resetKeySequences();
+		long elapsed = System.nanoTime() - started;
+		System.out.println(String.format("Loaded %d rows in %.2f s (%.0f rows/s)",
+				total, elapsed / 1e9, total / (elapsed / 1e9)));
+		return total;
+	}
+
+	/**
+	 * Restarts every key sequence after the largest key now in its table
+	 * and drops the key blocks this process had reserved.
+	 */
+	public void resetKeySequences() throws SQLException {
+		for (String[] seq : KEY_SEQUENCES) {
+			esql.executeQuery("SELECT setval(CAST(? AS regclass), (SELECT COALESCE(MAX(" + seq[2] + "), 0) + 1 FROM " + seq[1] + "), false)", seq[0]);
+		}
+		esql.getIdAllocator().reset();
+	}
+
+	private void setSummaryTriggers(boolean enabled) throws SQLException {
+		for (String table : SUMMARY_TRIGGER_TABLES) {
+			esql.executeUpdate("ALTER TABLE " + table + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER USER");
+		}
+	}
+
+	/**
+	 * @return the export.properties of an export directory, or null for a
+	 *         directory of csv files
+	 */
+	static Properties export(File dir) throws IOException {
+		Properties props = new Properties();
+		InputStream in;
+		try {
+			in = new FileInputStream(new File(dir, BulkExporter.PROPERTIES));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	/**
+	 * @param export the export.properties of dir, or null
+	 * @return the file to load a table from: its csv file, or the export
+	 *         file of the format export.properties names
+	 */
+	static File source(File dir, Table table, Properties export) throws IOException {
+		if (export == null) return new File(dir, table.file);
+		String format = export.getProperty("format", "");
+		for (BulkExporter.Format f : BulkExporter.Format.values()) {
+			if (f.name().equalsIgnoreCase(format)) return new File(dir, f.file(table));
+		}
+		throw new IOException("Unknown format \"" + format + "\" in " + new File(dir, BulkExporter.PROPERTIES));
+	}
+
+	/** @return whether dir holds export files of a table, for a better error message */
+	private static boolean exported(File dir, Table table) {
+		for (BulkExporter.Format f : BulkExporter.Format.values()) {
+			if (new File(dir, f.file(table)).exists()) return true;
+		}
+		return false;
+	}
+
+	private static long expectedRows(Properties export, Table table) throws IOException {
+		String rows = export.getProperty(table.name + ".rows");
+		try {
+			return Long.parseLong(rows);
+		} catch (NumberFormatException e) {
+			throw new IOException(BulkExporter.PROPERTIES + " has no row count for " + table.name);
+		}
+	}
+
+	private long loadTable(Table table, File file) throws SQLException, IOException {
+		long started = System.nanoTime();
+		boolean binary = file.getName().endsWith(BulkExporter.Format.BINARY.suffix);
+		ConnectionPool pool = esql.getPool();
+		Connection conn = pool.borrow();
+		try {
+			CopyIn copy = conn.unwrap(PGConnection.class).getCopyAPI()
+					.copyIn("COPY " + table.name + " (" + table.columns + ") FROM STDIN " + (binary ? "WITH BINARY" : "WITH DELIMITER ','"));
+			long rows;
+			try {
+				if (binary) {
+					pass(file, copy);
+					// the server counts the rows of a binary copy
+					rows = copy.endCopy();
+				} else {
+					rows = stream(file, table.dateColumn, copy);
+					copy.endCopy();
+				}
+			} finally {
+				if (copy.isActive()) copy.cancelCopy();
+			}
+			long elapsed = System.nanoTime() - started;
+			System.out.println(String.format("  %-16s %10d rows %8.2f s %12.0f rows/s",
+					table.name, rows, elapsed / 1e9, rows / (elapsed / 1e9)));
+			return rows;
+		} catch (SQLException e) {
+			throw pool.failed(conn, e);
+		} finally {
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * Copies the file to the server line by line, dropping carriage returns
+	 * and empty lines and rewriting the date column when there is one.
+	 */
+	private static long stream(File file, int dateColumn, CopyIn copy) throws IOException, SQLException {
+		byte[] in = new byte[BUFFER_SIZE];
+		byte[] out = new byte[BUFFER_SIZE];
+		byte[] line = new byte[256];
+		int outLen = 0;
+		int lineLen = 0;
+		long rows = 0;
+
+		InputStream input = open(file);
+		try {
+			int n;
+			while (true) {
+				n = input.read(in);
+				// at end of file, flush a last line without a newline
+				int end = n < 0 ? 1 : n;
+				for (int i = 0; i < end; ++i) {
+					byte b = n < 0 ? (byte) '\n' : in[i];
+					if (b == '\r') continue;
+					if (b != '\n') {
+						if (lineLen == line.length) line = Arrays.copyOf(line, lineLen * 2);
+						line[lineLen++] = b;
+						continue;
+					}
+					if (lineLen == 0) continue;
+					// the ISO date is at most 10 bytes, the line grows by at most that much
+					if (outLen + lineLen + 11 > out.length) {
+						copy.writeToCopy(out, 0, outLen);
+						outLen = 0;
+						if (lineLen + 11 > out.length) out = new byte[lineLen + 11];
+					}
+					outLen = appendLine(line, lineLen, dateColumn, out, outLen);
+					out[outLen++] = '\n';
+					lineLen = 0;
+					++rows;
+				}
+				if (n < 0) break;
+			}
+		} finally {
+			input.close();
+		}
+		if (outLen > 0) copy.writeToCopy(out, 0, outLen);
+		return rows;
+	}
+
+	/** Copies a binary export to the server unchanged. */
+	private static void pass(File file, CopyIn copy) throws IOException, SQLException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream input = open(file);
+		try {
+			int n;
+			while ((n = input.read(buffer)) > 0) copy.writeToCopy(buffer, 0, n);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static InputStream open(File file) throws IOException {
+		InputStream input = new FileInputStream(file);
+		if (!file.getName().endsWith(".gz")) return input;
+		try {
+			return new GZIPInputStream(input, BUFFER_SIZE);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends a comma separated line to the send buffer, rewriting field
+	 * number dateColumn (if not negative) from M/d/yyyy[ HH:mm] to yyyy-MM-dd.
+	 * A field that is not in that form is copied unchanged for COPY to judge.
+	 *
+	 * @return the new length of the send buffer
+	 */
+	static int appendLine(byte[] line, int len, int dateColumn, byte[] out, int outLen) {
+		if (dateColumn < 0) {
+			System.arraycopy(line, 0, out, outLen, len);
+			return outLen + len;
+		}
+		int start = 0;
+		for (int c = 0; c < dateColumn && start <= len; ++c) {
+			while (start < len && line[start] != ',') ++start;
+			++start;
+		}
+		int end = start;
+		while (end < len && line[end] != ',') ++end;
+
+		int p = start;
+		int month = 0, day = 0, year = 0, yearDigits = 0;
+		while (p < end && line[p] >= '0' && line[p] <= '9') month = month * 10 + (line[p++] - '0');
+		boolean valid = p < end && line[p++] == '/';
+		while (p < end && line[p] >= '0' && line[p] <= '9') day = day * 10 + (line[p++] - '0');
+		valid &= p < end && line[p++] == '/';
+		while (p < end && line[p] >= '0' && line[p] <= '9' && yearDigits < 4) {
+			year = year * 10 + (line[p++] - '0');
+			++yearDigits;
+		}
+		if (start > len || !valid || yearDigits != 4 || month < 1 || month > 12 || day < 1 || day > 31) {
+			System.arraycopy(line, 0, out, outLen, len);
+			return outLen + len;
+		}
+
+		System.arraycopy(line, 0, out, outLen, start);
+		int w = outLen + start;
+		out[w++] = (byte) ('0' + year / 1000);
+		out[w++] = (byte) ('0' + year / 100 % 10);
+		out[w++] = (byte) ('0' + year / 10 % 10);
+		out[w++] = (byte) ('0' + year % 10);
+		out[w++] = '-';
+		out[w++] = (byte) ('0' + month / 10);
+		out[w++] = (byte) ('0' + month % 10);
+		out[w++] = '-';
+		out[w++] = (byte) ('0' + day / 10);
+		out[w++] = (byte) ('0' + day % 10);
+		System.arraycopy(line, end, out, w, len - end);
+		return w + (len - end);
+	}
+
+	private static int maxPhaseWidth() {
+		int width = 1;
+		for (Table[] phase : PHASES) width = Math.max(width, phase.length);
+		return width;
+	}
+}
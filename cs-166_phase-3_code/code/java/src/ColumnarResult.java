@@ -0,0 +1,492 @@
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only query result stored column by column.
+ *
+ * Integer columns are kept in int[] / long[] arrays and floating point
+ * columns in double[] arrays, so rids, bills and odometer readings cost 4
+ * to 8 bytes each instead of a String plus a list slot.  A NUMERIC goes to
+ * whichever of those holds its declared precision exactly, and is kept as
+ * text when there is none.  String
+ * columns are dictionary encoded (each distinct value is stored once and
+ * rows hold an int code) as long as that pays off, which suits columns such
+ * as make, model or date.  CHAR(n) values are trimmed of their blank padding
+ * once, when the result is built.
+ *
+ * Build one from a query with MechanicShop.executeQueryAndReturnColumnar,
+ * or by hand with the Builder.
+ */
+public class ColumnarResult {
+
+	public enum Type { INT, LONG, DOUBLE, STRING }
+
+	private final Column[] columns;
+	private final int rowCount;
+
+	private ColumnarResult(Column[] columns, int rowCount) {
+		this.columns = columns;
+		this.rowCount = rowCount;
+	}
+
+	public int rowCount() {
+		return rowCount;
+	}
+
+	public int columnCount() {
+		return columns.length;
+	}
+
+	public String columnName(int col) {
+		return columns[col].name;
+	}
+
+	public Type columnType(int col) {
+		return columns[col].type;
+	}
+
+	/**
+	 * @param name column name, compared case-insensitively
+	 * @return the column's index, or -1 when there is no such column
+	 */
+	public int columnIndex(String name) {
+		for (int i = 0; i < columns.length; ++i) {
+			if (columns[i].name.equalsIgnoreCase(name)) return i;
+		}
+		return -1;
+	}
+
+	public boolean isNull(int row, int col) {
+		return columns[col].nulls.get(row);
+	}
+
+	/**
+	 * @return the value of an INT column (0 for SQL NULL)
+	 */
+	public int getInt(int row, int col) {
+		return ((IntColumn) columns[col]).values[row];
+	}
+
+	/**
+	 * @return the value of an INT or LONG column (0 for SQL NULL)
+	 */
+	public long getLong(int row, int col) {
+		Column c = columns[col];
+		if (c instanceof IntColumn) return ((IntColumn) c).values[row];
+		return ((LongColumn) c).values[row];
+	}
+
+	/**
+	 * @return the value of any numeric column as a double (0 for SQL NULL),
+	 *         including a NUMERIC kept as text
+	 */
+	public double getDouble(int row, int col) {
+		Column c = columns[col];
+		if (c instanceof DoubleColumn) return ((DoubleColumn) c).values[row];
+		if (c instanceof StringColumn) return c.nulls.get(row) ? 0 : Double.parseDouble(getString(row, col));
+		return getLong(row, col);
+	}
+
+	/**
+	 * @return the value of any column as text, or null for SQL NULL
+	 */
+	public String getString(int row, int col) {
+		Column c = columns[col];
+		if (c.nulls.get(row)) return null;
+		return c.format(row);
+	}
+
+	/**
+	 * Converts the result to the list-of-records form returned by
+	 * MechanicShop.executeQueryAndReturnResult.
+	 */
+	public List<List<String>> toRecords() {
+		List<List<String>> records = new ArrayList<List<String>>(rowCount);
+		for (int r = 0; r < rowCount; ++r) {
+			List<String> record = new ArrayList<String>(columns.length);
+			for (int c = 0; c < columns.length; ++c) record.add(getString(r, c));
+			records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * Copies a range of rows, e.g. one page of a report.
+	 *
+	 * @param from first row to copy
+	 * @param to row after the last one to copy
+	 * @param columnCount the leading columns to keep; the rest are dropped
+	 */
+	public ColumnarResult slice(int from, int to, int columnCount) {
+		String[] names = new String[columnCount];
+		Type[] types = new Type[columnCount];
+		for (int c = 0; c < columnCount; ++c) {
+			names[c] = columns[c].name;
+			types[c] = columns[c].type;
+		}
+		Builder builder = new Builder(names, types);
+		for (int r = from; r < to; ++r) {
+			for (int c = 0; c < columnCount; ++c) {
+				if (isNull(r, c)) {
+					builder.addNull(c);
+					continue;
+				}
+				switch (types[c]) {
+					case INT: builder.add(c, getInt(r, c)); break;
+					case LONG: builder.add(c, getLong(r, c)); break;
+					case DOUBLE: builder.add(c, getDouble(r, c)); break;
+					default: builder.add(c, getString(r, c)); break;
+				}
+			}
+			builder.endRow();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Prints the result in the same tab separated layout as
+	 * MechanicShop.executeQueryAndPrintResult.
+	 *
+	 * @return the number of rows printed
+	 */
+	public int print(PrintStream out) {
+		if (rowCount == 0) return 0;
+		StringBuilder line = new StringBuilder();
+		for (Column c : columns) line.append(c.name).append('\t');
+		out.println(line);
+		for (int r = 0; r < rowCount; ++r) {
+			line.setLength(0);
+			for (int c = 0; c < columns.length; ++c) line.append(getString(r, c)).append('\t');
+			out.println(line);
+		}
+		return rowCount;
+	}
+
+	/**
+	 * Accumulates rows column by column.  Used as a RowHandler it takes its
+	 * column layout from the query's metadata; otherwise declare the columns
+	 * up front and append values with the add methods, one full row at a time.
+	 */
+	public static class Builder implements RowHandler {
+
+		private Column[] columns;
+		private int rowCount = 0;
+
+		/** Builder that takes its columns from the result set metadata. */
+		public Builder() {
+		}
+
+		/** Builder with explicitly declared columns. */
+		public Builder(String[] names, Type[] types) {
+			columns = new Column[names.length];
+			for (int i = 0; i < names.length; ++i) columns[i] = Column.create(names[i], types[i], false);
+		}
+
+		@Override
+		public void start(ResultSetMetaData rsmd) throws SQLException {
+			columns = new Column[rsmd.getColumnCount()];
+			for (int i = 0; i < columns.length; ++i) {
+				int sqlType = rsmd.getColumnType(i + 1);
+				columns[i] = Column.create(rsmd.getColumnName(i + 1), typeOf(sqlType, rsmd.getPrecision(i + 1), rsmd.getScale(i + 1)),
+						sqlType == Types.CHAR || sqlType == Types.NCHAR);
+			}
+		}
+
+		@Override
+		public void row(ResultSet rs) throws SQLException {
+			for (int i = 0; i < columns.length; ++i) columns[i].read(rs, i + 1, rowCount);
+			++rowCount;
+		}
+
+		public Builder add(int col, int value) {
+			((IntColumn) columns[col]).append(value);
+			return this;
+		}
+
+		public Builder add(int col, long value) {
+			((LongColumn) columns[col]).append(value);
+			return this;
+		}
+
+		public Builder add(int col, double value) {
+			((DoubleColumn) columns[col]).append(value);
+			return this;
+		}
+
+		public Builder add(int col, String value) {
+			((StringColumn) columns[col]).append(value);
+			return this;
+		}
+
+		public Builder addNull(int col) {
+			columns[col].appendNull();
+			return this;
+		}
+
+		/** Marks the end of a row appended with the add methods. */
+		public Builder endRow() {
+			++rowCount;
+			for (Column c : columns) {
+				if (c.size != rowCount) throw new IllegalStateException("column " + c.name + " has " + c.size + " values, expected " + rowCount);
+			}
+			return this;
+		}
+
+		public ColumnarResult build() {
+			if (columns == null) columns = new Column[0];
+			for (Column c : columns) c.trim();
+			return new ColumnarResult(columns, rowCount);
+		}
+
+		private static Type typeOf(int sqlType, int precision, int scale) {
+			switch (sqlType) {
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+					return Type.INT;
+				case Types.BIGINT:
+					return Type.LONG;
+				case Types.NUMERIC:
+				case Types.DECIMAL:
+					// only declared numerics are known to fit a long or a double exactly;
+					// others (SUM(bigint) is an unconstrained numeric) keep the server's text
+					if (precision > 0 && scale == 0 && precision <= 18) return Type.LONG;
+					if (precision > 0 && scale > 0 && precision <= 15) return Type.DOUBLE;
+					return Type.STRING;
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+					return Type.DOUBLE;
+				default:
+					return Type.STRING;
+			}
+		}
+	}
+
+	private abstract static class Column {
+		final String name;
+		final Type type;
+		final BitSet nulls = new BitSet();
+		int size = 0;
+
+		Column(String name, Type type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		static Column create(String name, Type type, boolean blankPadded) {
+			switch (type) {
+				case INT: return new IntColumn(name);
+				case LONG: return new LongColumn(name);
+				case DOUBLE: return new DoubleColumn(name);
+				default: return new StringColumn(name, blankPadded);
+			}
+		}
+
+		abstract void read(ResultSet rs, int index, int row) throws SQLException;
+
+		abstract void appendNull();
+
+		abstract String format(int row);
+
+		abstract void trim();
+
+		static int grow(int length) {
+			return Math.max(16, length + (length >> 1));
+		}
+	}
+
+	private static final class IntColumn extends Column {
+		int[] values = new int[16];
+
+		IntColumn(String name) {
+			super(name, Type.INT);
+		}
+
+		void append(int v) {
+			if (size == values.length) values = Arrays.copyOf(values, grow(size));
+			values[size++] = v;
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			append(rs.getInt(index));
+			if (rs.wasNull()) nulls.set(row);
+		}
+
+		void appendNull() {
+			nulls.set(size);
+			append(0);
+		}
+
+		String format(int row) {
+			return Integer.toString(values[row]);
+		}
+
+		void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	private static final class LongColumn extends Column {
+		long[] values = new long[16];
+
+		LongColumn(String name) {
+			super(name, Type.LONG);
+		}
+
+		void append(long v) {
+			if (size == values.length) values = Arrays.copyOf(values, grow(size));
+			values[size++] = v;
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			append(rs.getLong(index));
+			if (rs.wasNull()) nulls.set(row);
+		}
+
+		void appendNull() {
+			nulls.set(size);
+			append(0L);
+		}
+
+		String format(int row) {
+			return Long.toString(values[row]);
+		}
+
+		void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	private static final class DoubleColumn extends Column {
+		double[] values = new double[16];
+
+		DoubleColumn(String name) {
+			super(name, Type.DOUBLE);
+		}
+
+		void append(double v) {
+			if (size == values.length) values = Arrays.copyOf(values, grow(size));
+			values[size++] = v;
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			append(rs.getDouble(index));
+			if (rs.wasNull()) nulls.set(row);
+		}
+
+		void appendNull() {
+			nulls.set(size);
+			append(0.0);
+		}
+
+		String format(int row) {
+			return Double.toString(values[row]);
+		}
+
+		void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Dictionary encoded while the number of distinct values stays below
+	 * half the rows seen (checked once the dictionary passes 1024 entries);
+	 * past that point the column falls back to a plain String[].
+	 */
+	private static final class StringColumn extends Column {
+		private static final int DICTIONARY_CHECK = 1024;
+
+		final boolean blankPadded;
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		List<String> dictionaryValues = new ArrayList<String>();
+		String[] dictionaryArray;
+		int[] codes = new int[16];
+		String[] plain = null;
+
+		StringColumn(String name, boolean blankPadded) {
+			super(name, Type.STRING);
+			this.blankPadded = blankPadded;
+		}
+
+		void append(String v) {
+			if (v == null) {
+				appendNull();
+				return;
+			}
+			if (blankPadded) v = stripPadding(v);
+			if (plain != null) {
+				if (size == plain.length) plain = Arrays.copyOf(plain, grow(size));
+				plain[size++] = v;
+				return;
+			}
+			Integer code = dictionary.get(v);
+			if (code == null) {
+				code = dictionaryValues.size();
+				dictionary.put(v, code);
+				dictionaryValues.add(v);
+				if (dictionaryValues.size() > DICTIONARY_CHECK && dictionaryValues.size() * 2 > size) {
+					toPlain();
+					append(v);
+					return;
+				}
+			}
+			if (size == codes.length) codes = Arrays.copyOf(codes, grow(size));
+			codes[size++] = code;
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			append(rs.getString(index));
+		}
+
+		void appendNull() {
+			nulls.set(size);
+			if (plain != null) {
+				if (size == plain.length) plain = Arrays.copyOf(plain, grow(size));
+				plain[size++] = null;
+			} else {
+				if (size == codes.length) codes = Arrays.copyOf(codes, grow(size));
+				codes[size++] = -1;
+			}
+		}
+
+		String format(int row) {
+			if (plain != null) return plain[row];
+			return dictionaryArray[codes[row]];
+		}
+
+		void trim() {
+			if (plain != null) {
+				plain = Arrays.copyOf(plain, size);
+				return;
+			}
+			codes = Arrays.copyOf(codes, size);
+			dictionaryArray = dictionaryValues.toArray(new String[dictionaryValues.size()]);
+			dictionary = null;
+			dictionaryValues = null;
+		}
+
+		private void toPlain() {
+			plain = new String[grow(size)];
+			for (int i = 0; i < size; ++i) plain[i] = codes[i] < 0 ? null : dictionaryValues.get(codes[i]);
+			codes = null;
+			dictionary = null;
+			dictionaryValues = null;
+		}
+
+		private static String stripPadding(String v) {
+			int end = v.length();
+			while (end > 0 && v.charAt(end - 1) == ' ') --end;
+			return end == v.length() ? v : v.substring(0, end);
+		}
+	}
+}
@@ -0,0 +1,582 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A read-only columnar copy of the request history, for analyses over far
+ * more rows than the reports can scan through JDBC.
+ *
+ * A snapshot is a directory with one file per column, each a plain array
+ * of little-endian 32-bit integers:
+ *
+ *   service_request.rid, .customer_id, .vin, .date, .odometer
+ *   closed_request.rid, .customer_id, .date, .bill
+ *   car.year                 year of each VIN, by dictionary code
+ *   car.vin                  the VIN dictionary, one VIN per line
+ *   snapshot.properties      row counts, written last
+ *
+ * VINs are stored as their position in the dictionary, dates as days since
+ * 1970-01-01, and each closed request also carries the customer of its
+ * service request, so the analyses below need no joins.  Opening a
+ * snapshot maps the files into memory; the analyses split the rows into
+ * one range per core and run a plain loop over the mapped buffers on each,
+ * then merge the partial results.  The database is not involved.
+ *
+ * Usage:
+ *   java ColumnarSnapshot write <snapshot dir> <csv dir>
+ *   java ColumnarSnapshot analyze <snapshot dir> [bill threshold]
+ *
+ * A snapshot of the database itself is written by the MechanicShop command
+ * "snapshot <dir>".
+ */
+public class ColumnarSnapshot implements Closeable {
+
+	static final int FORMAT = 1;
+	static final String PROPERTIES = "snapshot.properties";
+	static final String VIN_DICTIONARY = "car.vin";
+
+	static final String[] REQUEST_COLUMNS = { "rid", "customer_id", "vin", "date", "odometer" };
+	static final String[] CLOSED_COLUMNS = { "rid", "customer_id", "date", "bill" };
+
+	/** Rows per task below which splitting further does not pay. */
+	private static final int MIN_CHUNK_ROWS = 1 << 16;
+
+	static final String SNAPSHOT_CARS_SQL = "SELECT vin, year FROM Car";
+	static final String SNAPSHOT_REQUESTS_SQL =
+		"SELECT rid, customer_id, car_vin, date - DATE '1970-01-01', odometer FROM Service_Request";
+	static final String SNAPSHOT_CLOSED_SQL = "SELECT rid, date - DATE '1970-01-01', bill FROM Closed_Request";
+
+	private final File dir;
+	private final int requestRows;
+	private final int closedRows;
+	private final int cars;
+	private final int maxCustomerId;
+	private final Map<String, IntBuffer> columns = new HashMap<String, IntBuffer>();
+	private final ExecutorService workers;
+	private final int threads;
+
+	/**
+	 * Maps the snapshot in dir.
+	 *
+	 * @param threads number of threads the analyses run on
+	 * @throws java.io.IOException when the snapshot is missing, incomplete or of another format
+	 */
+	public ColumnarSnapshot(File dir, int threads) throws IOException {
+		this.dir = dir;
+		Properties props = new Properties();
+		File file = new File(dir, PROPERTIES);
+		if (!file.canRead()) throw new IOException("No complete snapshot in " + dir);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		if (!String.valueOf(FORMAT).equals(props.getProperty("format"))) {
+			throw new IOException("Snapshot format " + props.getProperty("format") + " is not " + FORMAT);
+		}
+		requestRows = Integer.parseInt(props.getProperty("service_request.rows"));
+		closedRows = Integer.parseInt(props.getProperty("closed_request.rows"));
+		cars = Integer.parseInt(props.getProperty("car.rows"));
+		maxCustomerId = Integer.parseInt(props.getProperty("customer_id.max"));
+		for (String column : REQUEST_COLUMNS) map("service_request." + column, requestRows);
+		for (String column : CLOSED_COLUMNS) map("closed_request." + column, closedRows);
+		map("car.year", cars);
+		this.threads = Math.max(1, threads);
+		this.workers = Executors.newFixedThreadPool(this.threads, r -> {
+			Thread t = new Thread(r, "snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private void map(String name, int rows) throws IOException {
+		FileChannel channel = FileChannel.open(new File(dir, name).toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size != rows * 4L) throw new IOException(name + " has " + size + " bytes, expected " + rows * 4L);
+			// the mapping outlives the channel
+			columns.put(name, channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		workers.shutdown();
+	}
+
+	public int requestRows() {
+		return requestRows;
+	}
+
+	public int closedRows() {
+		return closedRows;
+	}
+
+	/** ListCustomersWithBillLessThan100, summarized. */
+	public static final class BillSummary {
+		/** closed requests with a smaller bill */
+		public final long requests;
+		/** their customers, each counted once */
+		public final int customers;
+		public final long total;
+
+		BillSummary(long requests, int customers, long total) {
+			this.requests = requests;
+			this.customers = customers;
+			this.total = total;
+		}
+	}
+
+	/** ListCarsBefore1995With50000Milles, summarized. */
+	public static final class CarSummary {
+		/** service requests of such cars under the odometer limit */
+		public final long requests;
+		/** the cars, each counted once */
+		public final int cars;
+
+		CarSummary(long requests, int cars) {
+			this.requests = requests;
+			this.cars = cars;
+		}
+	}
+
+	/**
+	 * @return the closed requests billed less than threshold, and their customers
+	 */
+	public BillSummary billsBelow(final int threshold) throws IOException {
+		final IntBuffer bill = columns.get("closed_request.bill");
+		final IntBuffer customer = columns.get("closed_request.customer_id");
+		long requests = 0;
+		long total = 0;
+		BitSet customers = new BitSet(maxCustomerId + 1);
+		for (Object[] part : parallel(closedRows, (from, to) -> {
+			long n = 0;
+			long sum = 0;
+			BitSet seen = new BitSet(maxCustomerId + 1);
+			for (int i = from; i < to; ++i) {
+				int b = bill.get(i);
+				if (b < threshold) {
+					++n;
+					sum += b;
+					seen.set(customer.get(i));
+				}
+			}
+			return new Object[] { n, sum, seen };
+		})) {
+			requests += (Long) part[0];
+			total += (Long) part[1];
+			customers.or((BitSet) part[2]);
+		}
+		return new BillSummary(requests, customers.cardinality(), total);
+	}
+
+	/**
+	 * @return the service requests under maxOdometer of cars made before beforeYear
+	 */
+	public CarSummary oldCarsUnder(final int maxOdometer, final int beforeYear) throws IOException {
+		final IntBuffer odometer = columns.get("service_request.odometer");
+		final IntBuffer vin = columns.get("service_request.vin");
+		final IntBuffer year = columns.get("car.year");
+		long requests = 0;
+		BitSet found = new BitSet(cars);
+		for (Object[] part : parallel(requestRows, (from, to) -> {
+			long n = 0;
+			BitSet seen = new BitSet(cars);
+			for (int i = from; i < to; ++i) {
+				if (odometer.get(i) < maxOdometer) {
+					int car = vin.get(i);
+					if (year.get(car) < beforeYear) {
+						++n;
+						seen.set(car);
+					}
+				}
+			}
+			return new Object[] { n, seen };
+		})) {
+			requests += (Long) part[0];
+			found.or((BitSet) part[1]);
+		}
+		return new CarSummary(requests, found.cardinality());
+	}
+
+	/**
+	 * @param since first closing date counted, or null for all of them
+	 * @return the total bill of every customer, indexed by customer id
+	 */
+	public long[] totalBillByCustomer(LocalDate since) throws IOException {
+		final IntBuffer bill = columns.get("closed_request.bill");
+		final IntBuffer customer = columns.get("closed_request.customer_id");
+		final IntBuffer date = columns.get("closed_request.date");
+		final int first = since == null ? Integer.MIN_VALUE : (int) since.toEpochDay();
+		long[] totals = new long[maxCustomerId + 1];
+		for (Object[] part : parallel(closedRows, (from, to) -> {
+			long[] sums = new long[maxCustomerId + 1];
+			for (int i = from; i < to; ++i) {
+				if (date.get(i) >= first) sums[customer.get(i)] += bill.get(i);
+			}
+			return new Object[] { sums };
+		})) {
+			long[] sums = (long[]) part[0];
+			for (int c = 0; c < totals.length; ++c) totals[c] += sums[c];
+		}
+		return totals;
+	}
+
+	/**
+	 * @return the ids of the n largest totals, largest first, ties by
+	 *         descending id like ListCustomersInDescendingOrderOfTheirTotalBill
+	 */
+	public static int[] top(long[] totals, int n) {
+		int[] ids = new int[Math.max(0, Math.min(n, totals.length))];
+		int count = 0;
+		for (int c = 0; c < totals.length && ids.length > 0; ++c) {
+			if (totals[c] <= 0) continue;
+			// ids come in ascending order, so a tie goes before the earlier id
+			int i;
+			if (count < ids.length) i = count++;
+			else if (totals[c] >= totals[ids[count - 1]]) i = count - 1;
+			else continue;
+			while (i > 0 && totals[c] >= totals[ids[i - 1]]) {
+				ids[i] = ids[i - 1];
+				--i;
+			}
+			ids[i] = c;
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	/** One range of rows of a parallel analysis. */
+	interface Chunk {
+		Object[] scan(int from, int to);
+	}
+
+	private List<Object[]> parallel(int rows, final Chunk chunk) throws IOException {
+		int parts = Math.max(1, Math.min(threads, rows / MIN_CHUNK_ROWS));
+		List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>(parts);
+		for (int p = 0; p < parts; ++p) {
+			final int from = (int) ((long) rows * p / parts);
+			final int to = (int) ((long) rows * (p + 1) / parts);
+			futures.add(workers.submit(() -> chunk.scan(from, to)));
+		}
+		List<Object[]> results = new ArrayList<Object[]>(parts);
+		try {
+			for (Future<Object[]> f : futures) results.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Future<Object[]> f : futures) f.cancel(true);
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Scan of " + dir + " failed", e.getCause());
+		}
+		return results;
+	}
+
+	/*
+	 * Writing.  Rows arrive in any order; each column is appended through a
+	 * buffer and the properties file, written last, marks the snapshot as
+	 * complete.
+	 */
+
+	/** Appends ints to a column file. */
+	static final class ColumnWriter implements Closeable {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+		ColumnWriter(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		void put(int value) throws IOException {
+			if (!buffer.hasRemaining()) flush();
+			buffer.putInt(value);
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/** Builds a snapshot from rows of the three tables, cars first. */
+	static final class Builder {
+		private final File dir;
+		private final Map<String, Integer> vins = new HashMap<String, Integer>();
+		private final Writer vinOut;
+		private final ColumnWriter yearOut;
+		private final ColumnWriter[] requestOut = new ColumnWriter[REQUEST_COLUMNS.length];
+		private final ColumnWriter[] closedOut = new ColumnWriter[CLOSED_COLUMNS.length];
+		// customer of every rid (-1 for none), for the closed requests
+		private int[] customerOfRid = new int[1024];
+		private int requestRows = 0;
+		private int closedRows = 0;
+		private int maxCustomerId = 0;
+
+		Builder(File dir) throws IOException {
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+			this.dir = dir;
+			Arrays.fill(customerOfRid, -1);
+			new File(dir, PROPERTIES).delete();
+			vinOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, VIN_DICTIONARY)), StandardCharsets.UTF_8), 1 << 16);
+			yearOut = new ColumnWriter(new File(dir, "car.year"));
+			for (int c = 0; c < REQUEST_COLUMNS.length; ++c) requestOut[c] = new ColumnWriter(new File(dir, "service_request." + REQUEST_COLUMNS[c]));
+			for (int c = 0; c < CLOSED_COLUMNS.length; ++c) closedOut[c] = new ColumnWriter(new File(dir, "closed_request." + CLOSED_COLUMNS[c]));
+		}
+
+		void car(String vin, int year) throws IOException {
+			if (vins.putIfAbsent(vin, vins.size()) != null) throw new IOException("Duplicate VIN " + vin);
+			vinOut.write(vin);
+			vinOut.write('\n');
+			yearOut.put(year);
+		}
+
+		void request(int rid, int customerId, String vin, int day, int odometer) throws IOException {
+			Integer code = vins.get(vin);
+			if (code == null) throw new IOException("Service request " + rid + " is for unknown VIN " + vin);
+			if (rid < 0 || customerId < 0) throw new IOException("Negative key in service request " + rid);
+			if (rid >= customerOfRid.length) {
+				int length = customerOfRid.length;
+				customerOfRid = Arrays.copyOf(customerOfRid, Math.max(rid + 1, length * 2));
+				Arrays.fill(customerOfRid, length, customerOfRid.length, -1);
+			}
+			customerOfRid[rid] = customerId;
+			maxCustomerId = Math.max(maxCustomerId, customerId);
+			requestOut[0].put(rid);
+			requestOut[1].put(customerId);
+			requestOut[2].put(code);
+			requestOut[3].put(day);
+			requestOut[4].put(odometer);
+			++requestRows;
+		}
+
+		void closed(int rid, int day, int bill) throws IOException {
+			int customerId = rid >= 0 && rid < customerOfRid.length ? customerOfRid[rid] : -1;
+			if (customerId < 0) throw new IOException("Closed request for unknown service request " + rid);
+			closedOut[0].put(rid);
+			closedOut[1].put(customerId);
+			closedOut[2].put(day);
+			closedOut[3].put(bill);
+			++closedRows;
+		}
+
+		/** Closes the columns and marks the snapshot complete. */
+		void finish() throws IOException {
+			vinOut.close();
+			yearOut.close();
+			for (ColumnWriter w : requestOut) w.close();
+			for (ColumnWriter w : closedOut) w.close();
+			Properties props = new Properties();
+			props.setProperty("format", String.valueOf(FORMAT));
+			props.setProperty("car.rows", String.valueOf(vins.size()));
+			props.setProperty("service_request.rows", String.valueOf(requestRows));
+			props.setProperty("closed_request.rows", String.valueOf(closedRows));
+			props.setProperty("customer_id.max", String.valueOf(maxCustomerId));
+			FileOutputStream out = new FileOutputStream(new File(dir, PROPERTIES));
+			try {
+				props.store(out, "MechanicShop columnar snapshot");
+			} finally {
+				out.close();
+			}
+		}
+
+		/** Closes the files of a failed snapshot, which stays incomplete. */
+		void abandon() {
+			try {
+				vinOut.close();
+				yearOut.close();
+				for (ColumnWriter w : requestOut) w.close();
+				for (ColumnWriter w : closedOut) w.close();
+			} catch (IOException e) {
+				// ignored, the snapshot is unusable anyway
+			}
+		}
+
+		long rows() {
+			return vins.size() + (long) requestRows + closedRows;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the database, streaming each table through a
+	 * server-side cursor.  The customer of each closed request is looked up
+	 * here rather than joined on the server.  The three scans share one
+	 * repeatable read transaction, so a request written meanwhile cannot
+	 * refer to a car or request the earlier scans did not see.
+	 *
+	 * @return the number of rows written
+	 */
+	public static long write(MechanicShop esql, File dir) throws IOException, SQLException {
+		final Builder builder = new Builder(dir);
+		// the streaming queries join the transaction of the connection this thread holds
+		Connection conn = esql.borrowConnection();
+		try {
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+			} finally {
+				stmt.close();
+			}
+			esql.executeQueryStreaming(SNAPSHOT_CARS_SQL, rs -> {
+				try {
+					builder.car(rs.getString(1), rs.getInt(2));
+				} catch (IOException e) {
+					throw new SQLException("Writing the snapshot failed", "58030", e);
+				}
+			});
+			esql.executeQueryStreaming(SNAPSHOT_REQUESTS_SQL, rs -> {
+				try {
+					builder.request(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getInt(5));
+				} catch (IOException e) {
+					throw new SQLException("Writing the snapshot failed", "58030", e);
+				}
+			});
+			esql.executeQueryStreaming(SNAPSHOT_CLOSED_SQL, rs -> {
+				try {
+					builder.closed(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+				} catch (IOException e) {
+					throw new SQLException("Writing the snapshot failed", "58030", e);
+				}
+			});
+			conn.commit();
+			builder.finish();
+		} catch (IOException | SQLException | RuntimeException e) {
+			builder.abandon();
+			throw e;
+		} finally {
+			try {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			} catch (SQLException e) {
+				// the pool resets the connection on release anyway
+			}
+			esql.releaseConnection(conn);
+		}
+		return builder.rows();
+	}
+
+	/**
+	 * Writes a snapshot of a dataset in the csv_data layout, without a
+	 * database.
+	 *
+	 * @return the number of rows written
+	 */
+	public static long write(File csvDir, File dir) throws IOException {
+		final Builder builder = new Builder(dir);
+		try {
+			csv(new File(csvDir, BulkLoader.CAR.file), f -> builder.car(f[0], Integer.parseInt(f[3].trim())));
+			csv(new File(csvDir, BulkLoader.SERVICE_REQUEST.file), f -> builder.request(Integer.parseInt(f[0].trim()),
+					Integer.parseInt(f[1].trim()), f[2], (int) MemoryRepository.date(f[3]).toEpochDay(), Integer.parseInt(f[4].trim())));
+			csv(new File(csvDir, BulkLoader.CLOSED_REQUEST.file), f -> builder.closed(Integer.parseInt(f[1].trim()),
+					(int) MemoryRepository.date(f[3]).toEpochDay(), Integer.parseInt(f[5].trim())));
+			builder.finish();
+		} catch (IOException | RuntimeException e) {
+			builder.abandon();
+			throw e;
+		}
+		return builder.rows();
+	}
+
+	/** Receives the fields of one csv row. */
+	interface CsvRow {
+		void row(String[] fields) throws IOException;
+	}
+
+	private static void csv(File file, CsvRow handler) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty()) handler.row(MemoryRepository.fields(line));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || !(args[0].equals("write") && args.length == 3 || args[0].equals("analyze") && args.length <= 3)) {
+			System.err.println("Usage: java " + ColumnarSnapshot.class.getName() + " write <snapshot dir> <csv dir>\n"
+					+ "       java " + ColumnarSnapshot.class.getName() + " analyze <snapshot dir> [bill threshold]");
+			return;
+		}
+		File dir = new File(args[1]);
+		long started = System.nanoTime();
+		if (args[0].equals("write")) {
+			long rows = write(new File(args[2]), dir);
+			System.out.println(String.format(Locale.ROOT, "Wrote %d rows to %s in %.2f s", rows, dir, (System.nanoTime() - started) / 1e9));
+			return;
+		}
+		int threshold = args.length == 3 ? Integer.parseInt(args[2]) : 100;
+		ColumnarSnapshot snapshot = new ColumnarSnapshot(dir, Runtime.getRuntime().availableProcessors());
+		try {
+			analyze(snapshot, threshold, System.out);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Runs the three analyses and prints them with their times.
+	 */
+	static void analyze(ColumnarSnapshot snapshot, int threshold, PrintStream out) throws IOException {
+		out.println(String.format(Locale.ROOT, "%d service requests, %d closed, %d threads",
+				snapshot.requestRows, snapshot.closedRows, snapshot.threads));
+		long t = System.nanoTime();
+		BillSummary bills = snapshot.billsBelow(threshold);
+		out.println(String.format(Locale.ROOT, "Bills below %d: %d requests of %d customers, %d in total (%.1f ms)",
+				threshold, bills.requests, bills.customers, bills.total, (System.nanoTime() - t) / 1e6));
+		t = System.nanoTime();
+		CarSummary old = snapshot.oldCarsUnder(50000, 1995);
+		out.println(String.format(Locale.ROOT, "Cars before 1995 under 50000 miles: %d requests of %d cars (%.1f ms)",
+				old.requests, old.cars, (System.nanoTime() - t) / 1e6));
+		t = System.nanoTime();
+		long[] totals = snapshot.totalBillByCustomer(null);
+		int[] top = top(totals, 10);
+		out.println(String.format(Locale.ROOT, "Total bill per customer (%.1f ms), the largest:", (System.nanoTime() - t) / 1e6));
+		for (int id : top) out.println(String.format(Locale.ROOT, "  customer %-10d %d", id, totals[id]));
+	}
+}
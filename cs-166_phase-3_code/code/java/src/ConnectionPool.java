@@ -0,0 +1,349 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small bounded pool of physical PostgreSQL connections.
+ *
+ * Connections are checked out per thread: a thread that borrows while it
+ * already holds a connection gets the same one back, so nested calls (and
+ * multi-statement transactions) stay on a single session.  The connection
+ * goes back to the pool once every borrow has been matched by a release.
+ * Idle connections are validated before reuse when they have been sitting
+ * for longer than the configured interval, and connections that failed with
+ * a connection-level error are dropped instead of being pooled again.
+ *
+ * Each pooled connection carries its own StatementCache, so prepared
+ * statements survive across checkouts of the same physical connection.
+ *
+ * The pool state is guarded by a ReentrantLock rather than a monitor, so a
+ * virtual thread waiting for a free connection unmounts from its carrier
+ * instead of pinning it (see ShopServer).
+ */
+public class ConnectionPool {
+
+	private static class Lease {
+		Connection conn;
+		StatementCache statements;
+		int holds;
+		long lastUsed;
+		boolean broken;
+	}
+
+	private final String url;
+	private final String user;
+	private final String passwd;
+	private final int maxSize;
+	private final long validateAfterMillis;
+	private final long checkoutTimeoutMillis;
+	private final int statementCacheSize;
+
+	private final Deque<Lease> idle = new ArrayDeque<Lease>();
+	private final ThreadLocal<Lease> leased = new ThreadLocal<Lease>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private int total = 0;
+	private boolean closed = false;
+
+	/**
+	 * Creates the pool and opens the first minSize physical connections.
+	 *
+	 * @param url JDBC connection URL
+	 * @param user database user
+	 * @param passwd database password
+	 * @param minSize number of connections opened eagerly
+	 * @param maxSize upper bound on open connections
+	 * @param validateAfterMillis idle time after which a connection is validated on checkout
+	 * @param checkoutTimeoutMillis how long borrow() waits for a free connection
+	 * @param statementCacheSize prepared statements cached per connection
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long validateAfterMillis, long checkoutTimeoutMillis, int statementCacheSize) throws SQLException {
+		if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+			throw new IllegalArgumentException("invalid pool size min=" + minSize + " max=" + maxSize);
+		}
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.maxSize = maxSize;
+		this.validateAfterMillis = validateAfterMillis;
+		this.checkoutTimeoutMillis = checkoutTimeoutMillis;
+		this.statementCacheSize = statementCacheSize;
+
+		try {
+			for (int i = 0; i < minSize; ++i) {
+				Lease lease = open();
+				lease.lastUsed = System.currentTimeMillis();
+				lock.lock();
+				try {
+					++total;
+					idle.addLast(lease);
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks out a connection for the calling thread.  Every borrow must be
+	 * matched by a release(conn) from the same thread.
+	 *
+	 * @return the connection bound to the calling thread
+	 * @throws java.sql.SQLException when no connection can be obtained in time
+	 */
+	public Connection borrow() throws SQLException {
+		Lease lease = leased.get();
+		if (lease != null) {
+			lease.holds++;
+			return lease.conn;
+		}
+		lease = take();
+		lease.holds = 1;
+		lease.broken = false;
+		leased.set(lease);
+		return lease.conn;
+	}
+
+	/**
+	 * Returns a connection previously obtained with borrow().  The physical
+	 * connection goes back to the pool when the outermost borrow is released.
+	 *
+	 * @param conn the connection returned by borrow()
+	 */
+	public void release(Connection conn) {
+		Lease lease = leased.get();
+		if (lease == null || lease.conn != conn) {
+			throw new IllegalStateException("Connection was not checked out by this thread");
+		}
+		if (--lease.holds > 0) return;
+		leased.remove();
+		giveBack(lease);
+	}
+
+	/**
+	 * @return whether the calling thread has a connection checked out
+	 */
+	public boolean isHeld() {
+		return leased.get() != null;
+	}
+
+	/**
+	 * Returns a cached prepared statement for the given SQL on a connection
+	 * the calling thread has borrowed.  The statement must not be closed by
+	 * the caller.
+	 *
+	 * @param conn the connection returned by borrow()
+	 * @param sql the parameterized SQL text
+	 * @return a prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		Lease lease = leased.get();
+		if (lease == null || lease.conn != conn) {
+			throw new IllegalStateException("Connection was not checked out by this thread");
+		}
+		return lease.statements.prepare(sql);
+	}
+
+	/**
+	 * Inspects a failure on a borrowed connection and, if it is a connection
+	 * level error (SQLSTATE class 08), marks the connection so that it is
+	 * discarded on release instead of going back to the pool.
+	 *
+	 * @param conn the borrowed connection the error came from
+	 * @param e the error
+	 * @return the same exception, so callers can write "throw pool.failed(conn, e)"
+	 */
+	public SQLException failed(Connection conn, SQLException e) {
+		Lease lease = leased.get();
+		String state = e.getSQLState();
+		if (lease != null && lease.conn == conn && state != null && state.startsWith("08")) {
+			lease.broken = true;
+		}
+		return e;
+	}
+
+	/**
+	 * @return number of physical connections currently open
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return total;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of open connections not checked out by any thread
+	 */
+	public int idleCount() {
+		lock.lock();
+		try {
+			return idle.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the upper bound on open connections
+	 */
+	public int maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Closes all idle connections and refuses further checkouts.  Connections
+	 * still checked out are closed when they are released.
+	 */
+	public void close() {
+		Deque<Lease> toClose;
+		lock.lock();
+		try {
+			closed = true;
+			toClose = new ArrayDeque<Lease>(idle);
+			total -= idle.size();
+			idle.clear();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Lease lease : toClose) {
+			closeQuietly(lease.conn);
+		}
+	}
+
+	/**
+	 * Opens a connection outside the pool, for diagnostics that must neither
+	 * wait for a pooled connection nor hold one (see SlowQueryLog).  The
+	 * caller closes it.
+	 *
+	 * @return a new physical connection
+	 * @throws java.sql.SQLException when it cannot be opened
+	 */
+	public Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(url, user, passwd);
+	}
+
+	private Lease open() throws SQLException {
+		Lease lease = new Lease();
+		lease.conn = DriverManager.getConnection(url, user, passwd);
+		lease.statements = new StatementCache(lease.conn, statementCacheSize);
+		return lease;
+	}
+
+	private Lease take() throws SQLException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(checkoutTimeoutMillis);
+		while (true) {
+			Lease lease = null;
+			lock.lock();
+			try {
+				while (true) {
+					if (closed) throw new SQLException("Connection pool is closed", "08003");
+					lease = idle.pollFirst();
+					if (lease != null) break;
+					if (total < maxSize) {
+						++total;
+						break;
+					}
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0) {
+						throw new SQLException("Timed out waiting for a database connection (pool size " + maxSize + ")", "08001");
+					}
+					try {
+						available.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection", "08001");
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (lease == null) {
+				// a slot was reserved above; open a fresh connection for it
+				try {
+					lease = open();
+				} catch (SQLException e) {
+					slotFreed();
+					throw e;
+				}
+				return lease;
+			}
+
+			if (System.currentTimeMillis() - lease.lastUsed < validateAfterMillis || isUsable(lease.conn)) {
+				return lease;
+			}
+			// stale connection (server restart, dropped socket...), replace it
+			closeQuietly(lease.conn);
+			slotFreed();
+		}
+	}
+
+	private void giveBack(Lease lease) {
+		if (!lease.broken) {
+			try {
+				if (!lease.conn.getAutoCommit()) {
+					// never hand an open transaction to the next thread
+					lease.conn.rollback();
+					lease.conn.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				lease.broken = true;
+			}
+		}
+		lock.lock();
+		try {
+			if (!lease.broken && !closed) {
+				lease.lastUsed = System.currentTimeMillis();
+				idle.addFirst(lease);
+				available.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		closeQuietly(lease.conn);
+		slotFreed();
+	}
+
+	private void slotFreed() {
+		lock.lock();
+		try {
+			--total;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static boolean isUsable(Connection conn) {
+		try {
+			return conn.isValid(5);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private static void closeQuietly(Connection conn) {
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
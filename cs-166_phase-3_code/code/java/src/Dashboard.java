@@ -0,0 +1,199 @@
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the five reports (menu options 6 to 10) at the same time, each on a
+ * thread and pooled connection of its own, so the whole picture takes about
+ * as long as the slowest report instead of the sum of all five.
+ *
+ * All reports share one deadline.  A report still running then is given up
+ * on and reported as timed out; its query was issued with a statement
+ * timeout for the time that was left (see MechanicShop.withDeadline), so
+ * the server cancels it soon after and its connection returns to the pool.
+ * The others are reported as usual.  The pool must allow five connections
+ * (mechanicshop.pool.max), or the reports partly queue for one.
+ */
+public class Dashboard {
+
+	static final String[] NAMES = {
+		"ListCustomersWithBillLessThan100",
+		"ListCustomersWithMoreThan20Cars",
+		"ListCarsBefore1995With50000Milles",
+		"ListKCarsWithTheMostServices",
+		"ListCustomersInDescendingOrderOfTheirTotalBill",
+	};
+
+	/** The outcome of one report. */
+	public static final class Entry {
+		public final String name;
+		/** the rows, null when the report failed or timed out */
+		public final ColumnarResult result;
+		/** why it has no rows, or null */
+		public final String error;
+		public final boolean timedOut;
+		/** how long the report ran; until the deadline when it timed out */
+		public final long nanos;
+
+		Entry(String name, ColumnarResult result, String error, boolean timedOut, long nanos) {
+			this.name = name;
+			this.result = result;
+			this.error = error;
+			this.timedOut = timedOut;
+			this.nanos = nanos;
+		}
+	}
+
+	private final MechanicShop esql;
+	private final int k;
+	private final long timeoutMillis;
+	private long wallNanos = 0;
+
+	/**
+	 * @param k number of cars in ListKCarsWithTheMostServices
+	 * @param timeoutMillis the deadline of all five reports
+	 */
+	public Dashboard(MechanicShop esql, int k, long timeoutMillis) {
+		this.esql = esql;
+		this.k = k;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Runs the reports and waits for them until the deadline.
+	 *
+	 * @return one entry per report, in menu order
+	 * @throws java.sql.SQLException when the reports cannot be started
+	 */
+	public List<Entry> run() throws SQLException {
+		return esql.getMetrics().time("dashboard", () -> fanOut());
+	}
+
+	/**
+	 * @return the wall time of the last run
+	 */
+	public long wallNanos() {
+		return wallNanos;
+	}
+
+	private List<Entry> fanOut() {
+		final long started = System.nanoTime();
+		final long deadline = started + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		ExecutorService executor = ShopServer.newVirtualThreadExecutor();
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(NAMES.length, r -> {
+				Thread t = new Thread(r, "dashboard");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		List<Future<Entry>> futures = new ArrayList<Future<Entry>>(NAMES.length);
+		List<Entry> entries = new ArrayList<Entry>(NAMES.length);
+		try {
+			for (int i = 0; i < NAMES.length; ++i) {
+				final int report = i;
+				futures.add(executor.submit(() -> {
+					long began = System.nanoTime();
+					ColumnarResult result = esql.withDeadline(deadline, () -> report(report));
+					return new Entry(NAMES[report], result, null, false, System.nanoTime() - began);
+				}));
+			}
+			for (int i = 0; i < NAMES.length; ++i) {
+				Future<Entry> future = futures.get(i);
+				try {
+					entries.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+				} catch (TimeoutException e) {
+					future.cancel(true);
+					entries.add(new Entry(NAMES[i], null, "timed out after " + timeoutMillis + " ms", true, System.nanoTime() - started));
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					boolean timedOut = cause instanceof SQLException && "57014".equals(((SQLException) cause).getSQLState());
+					entries.add(new Entry(NAMES[i], null, String.valueOf(cause.getMessage()), timedOut, System.nanoTime() - started));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					for (Future<Entry> f : futures) f.cancel(true);
+					entries.add(new Entry(NAMES[i], null, "interrupted", false, System.nanoTime() - started));
+				}
+			}
+		} finally {
+			// the reports past the deadline are left to their statement timeout
+			executor.shutdown();
+		}
+		wallNanos = System.nanoTime() - started;
+		return entries;
+	}
+
+	private ColumnarResult report(int report) throws SQLException {
+		switch (report) {
+			case 0: return MechanicShop.customersWithBillLessThan100(esql);
+			case 1: return MechanicShop.customersWithMoreThan20Cars(esql);
+			case 2: return MechanicShop.carsBefore1995With50000Miles(esql);
+			case 3: return MechanicShop.kCarsWithTheMostServices(esql, k);
+			default: return MechanicShop.customersByTotalBillDesc(esql);
+		}
+	}
+
+	/**
+	 * Prints every report with its timing, then the total.
+	 *
+	 * @param maxRows rows printed per report, 0 for all of them
+	 */
+	public void print(List<Entry> entries, int maxRows, PrintStream out) {
+		long sum = 0;
+		for (Entry entry : entries) {
+			sum += entry.nanos;
+			out.println();
+			if (entry.result == null) {
+				out.println(String.format(Locale.ROOT, "== %s: %s (%.1f ms)", entry.name, entry.error, entry.nanos / 1e6));
+				continue;
+			}
+			int rows = entry.result.rowCount();
+			out.println(String.format(Locale.ROOT, "== %s: %d row(s) in %.1f ms", entry.name, rows, entry.nanos / 1e6));
+			if (maxRows > 0 && rows > maxRows) {
+				entry.result.slice(0, maxRows, entry.result.columnCount()).print(out);
+				out.println("... " + (rows - maxRows) + " more row(s)");
+			} else {
+				entry.result.print(out);
+			}
+		}
+		out.println();
+		out.println(String.format(Locale.ROOT, "Dashboard: %.1f ms, the reports took %.1f ms together", wallNanos / 1e6, sum / 1e6));
+	}
+
+	/**
+	 * Appends {"wallMs": ..., "reports": [{"name": ..., "ms": ..., "status":
+	 * "ok" | "timeout" | "error", "count": n, "rows": [...]}, ...]}; a report
+	 * without rows has an "error" instead.
+	 */
+	public void json(List<Entry> entries, StringBuilder json) {
+		json.append("{\"wallMs\":").append(String.format(Locale.ROOT, "%.3f", wallNanos / 1e6)).append(",\"reports\":[");
+		for (int i = 0; i < entries.size(); ++i) {
+			Entry entry = entries.get(i);
+			if (i > 0) json.append(',');
+			json.append("{\"name\":");
+			ShopServer.string(json, entry.name);
+			json.append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", entry.nanos / 1e6))
+				.append(",\"status\":\"").append(entry.result != null ? "ok" : entry.timedOut ? "timeout" : "error").append('"');
+			if (entry.result == null) {
+				json.append(",\"error\":");
+				ShopServer.string(json, entry.error);
+				json.append('}');
+			} else {
+				// the rows object, merged into this one
+				json.append(',');
+				int start = json.length();
+				ShopServer.rows(json, entry.result);
+				json.deleteCharAt(start);
+			}
+		}
+		json.append("]}");
+	}
+}
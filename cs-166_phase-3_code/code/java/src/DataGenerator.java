@@ -0,0 +1,370 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a synthetic shop dataset in the csv_data layout at any scale
+ * factor.  Scale 1 has the same row counts as csv_data: 500 customers, 250
+ * mechanics, 5,000 cars (one owner each) and 30,000 service requests, about
+ * 90% of which are closed.
+ *
+ * The data is referentially consistent and skewed the way real shop data
+ * is: 2% of the customers are fleet owners holding 30% of the cars (well
+ * over 20 cars each), and 1% of the cars are "hot" and get 20% of all
+ * service requests.  Every row is a pure function of the seed and its
+ * position, so the output is identical for any number of threads.  Each
+ * table is cut into chunks that are written in parallel and then
+ * concatenated.
+ *
+ * Usage: java DataGenerator <out dir> <scale factor> [seed] [threads]
+ */
+public class DataGenerator {
+
+	private static final int CHUNK_ROWS = 500000;
+	private static final double CLOSED_FRACTION = 0.9;
+	private static final int FIRST_REQUEST_DAY = (int) LocalDate.of(2015, 1, 1).toEpochDay();
+	private static final int REQUEST_DAYS = 3 * 365;
+
+	private static final String[] FIRST_NAMES = {
+		"Armand", "Alberto", "Wyatt", "Alexandria", "Rory", "Blythe", "Maria", "James", "Linda", "Robert",
+		"Patricia", "Michael", "Jennifer", "David", "Elizabeth", "William", "Susan", "Richard", "Jessica", "Joseph",
+		"Sarah", "Thomas", "Karen", "Charles", "Nancy", "Daniel", "Lisa", "Matthew", "Betty", "Anthony" };
+	private static final String[] LAST_NAMES = {
+		"Enderle", "Scarlett", "Ruoff", "Cuyler", "Berner", "Santacruz", "Smith", "Johnson", "Williams", "Brown",
+		"Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson",
+		"Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson", "White",
+		"Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "Walker", "Young", "Allen", "King" };
+	private static final String[] STREETS = {
+		"Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Main Street", "Oak Lane", "Pine Road", "Maple Ave.", "Cedar Court" };
+	private static final String[] CITIES = {
+		"Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Fresno", "Austin", "Denver", "Portland" };
+	private static final String[][] MAKES = {
+		{ "Toyota", "Prius", "Camry", "Corolla", "Tacoma" },
+		{ "Ford", "Focus", "F-150", "Mustang", "Escape" },
+		{ "Honda", "Civic", "Accord", "CR-V", "Fit" },
+		{ "Nissan", "Sunny", "Altima", "Sentra", "Leaf" },
+		{ "Chevrolet", "Malibu", "Impala", "Silverado", "Volt" },
+		{ "Lamborghini", "M1", "Diablo", "Murcielago", "Huracan" } };
+	private static final String[] COMPLAINTS = {
+		"No brakes", "The wheel does not turn right", "Burns too much gas", "Strange noise from the engine",
+		"Check engine light is on", "Flat tire", "Battery dies overnight", "I cannot hear the horn" };
+	private static final String[] COMMENTS = {
+		"We lost your car", "We changed the color", "This is a bicycle", "Replaced the brake pads",
+		"Changed the oil", "Rotated the tires", "You are missing an engine", "Good Luck" };
+
+	/** Row counts at a given scale factor. */
+	static final class Sizes {
+		final int customers, mechanics, cars, requests, fleetOwners, hotCars;
+
+		Sizes(double scale) {
+			customers = Math.max(1, (int) Math.round(500 * scale));
+			mechanics = Math.max(1, (int) Math.round(250 * scale));
+			cars = Math.max(1, (int) Math.round(5000 * scale));
+			requests = Math.max(1, (int) Math.round(30000 * scale));
+			fleetOwners = Math.max(1, customers / 50);
+			hotCars = Math.max(1, cars / 100);
+		}
+	}
+
+	/** Writes rows [from, to) of one table. */
+	interface RowWriter {
+		/** @return the number of rows written */
+		long write(AsciiOut out, SplittableRandom rnd, long from, long to) throws IOException;
+	}
+
+	private final long seed;
+	private final Sizes sizes;
+	private final String[] dates;
+
+	DataGenerator(double scale, long seed) {
+		this.seed = seed;
+		this.sizes = new Sizes(scale);
+		// every date the generator can emit, formatted once (requests plus up to 30 days to close)
+		this.dates = new String[REQUEST_DAYS + 31];
+		for (int d = 0; d < dates.length; ++d) {
+			LocalDate date = LocalDate.ofEpochDay(FIRST_REQUEST_DAY + d);
+			dates[d] = date.getMonthValue() + "/" + date.getDayOfMonth() + "/" + date.getYear() + " 00:00";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java " + DataGenerator.class.getName() + " <out dir> <scale factor> [seed] [threads]");
+			return;
+		}
+		File dir = new File(args[0]);
+		double scale = Double.parseDouble(args[1]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 166L;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+		long started = System.nanoTime();
+		long rows = new DataGenerator(scale, seed).generate(dir, threads);
+		double seconds = (System.nanoTime() - started) / 1e9;
+		System.out.println(String.format("Wrote %d rows to %s in %.2f s (%.0f rows/s)", rows, dir, seconds, rows / seconds));
+	}
+
+	long generate(File dir, int threads) throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Long>> tables = new ArrayList<Future<Long>>();
+			List<Runnable> merges = new ArrayList<Runnable>();
+			tables.addAll(submit(workers, dir, "customer.csv", 1, sizes.customers, this::customers));
+			tables.addAll(submit(workers, dir, "mechanic.csv", 2, sizes.mechanics, this::mechanics));
+			tables.addAll(submit(workers, dir, "car.csv", 3, sizes.cars, this::cars));
+			tables.addAll(submit(workers, dir, "owns.csv", 4, sizes.cars, this::owns));
+			tables.addAll(submit(workers, dir, "service_request.csv", 5, sizes.requests, this::serviceRequests));
+			tables.addAll(submit(workers, dir, "closed_request.csv", 6, sizes.requests, this::closedRequests));
+			long rows = 0;
+			for (Future<Long> f : tables) rows += f.get();
+			for (String name : new String[] { "customer.csv", "mechanic.csv", "car.csv", "owns.csv", "service_request.csv", "closed_request.csv" }) {
+				concatenate(dir, name);
+			}
+			return rows;
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private List<Future<Long>> submit(ExecutorService workers, final File dir, final String name, final int tableId,
+			final long rows, final RowWriter writer) {
+		List<Future<Long>> parts = new ArrayList<Future<Long>>();
+		int chunks = (int) Math.max(1, (rows + CHUNK_ROWS - 1) / CHUNK_ROWS);
+		for (int c = 0; c < chunks; ++c) {
+			final int chunk = c;
+			final long from = (long) c * CHUNK_ROWS;
+			final long to = Math.min(rows, from + CHUNK_ROWS);
+			parts.add(workers.submit(() -> {
+				SplittableRandom rnd = new SplittableRandom(mix(seed, tableId * 1000003L + chunk));
+				AsciiOut out = new AsciiOut(new FileOutputStream(partFile(dir, name, chunk)));
+				try {
+					return writer.write(out, rnd, from, to);
+				} finally {
+					out.close();
+				}
+			}));
+		}
+		return parts;
+	}
+
+	/* ---- tables ---- */
+
+	private long customers(AsciiOut out, SplittableRandom rnd, long from, long to) throws IOException {
+		for (long id = from; id < to; ++id) {
+			out.num(id).comma()
+				.str(pick(FIRST_NAMES, rnd)).comma()
+				.str(pick(LAST_NAMES, rnd)).comma()
+				.str("(").num(200 + rnd.nextInt(800)).str(")").num(100 + rnd.nextInt(900)).str("-").num(1000 + rnd.nextInt(9000)).comma()
+				.num(100 + rnd.nextInt(9900)).str(" ").str(pick(STREETS, rnd)).str(" ").str(pick(CITIES, rnd)).newline();
+		}
+		return to - from;
+	}
+
+	private long mechanics(AsciiOut out, SplittableRandom rnd, long from, long to) throws IOException {
+		for (long id = from; id < to; ++id) {
+			out.num(id).comma()
+				.str(pick(FIRST_NAMES, rnd)).comma()
+				.str(pick(LAST_NAMES, rnd)).comma()
+				.num(rnd.nextInt(40)).newline();
+		}
+		return to - from;
+	}
+
+	private long cars(AsciiOut out, SplittableRandom rnd, long from, long to) throws IOException {
+		for (long i = from; i < to; ++i) {
+			String[] make = MAKES[rnd.nextInt(MAKES.length)];
+			out.vin(i).comma()
+				.str(make[0]).comma()
+				.str(make[1 + rnd.nextInt(make.length - 1)]).comma()
+				.num(1970 + rnd.nextInt(48)).newline();
+		}
+		return to - from;
+	}
+
+	private long owns(AsciiOut out, SplittableRandom rnd, long from, long to) throws IOException {
+		for (long i = from; i < to; ++i) {
+			out.num(i).comma().num(ownerOf(i)).comma().vin(i).newline();
+		}
+		return to - from;
+	}
+
+	private long serviceRequests(AsciiOut out, SplittableRandom rnd, long from, long to) throws IOException {
+		for (long rid = from; rid < to; ++rid) {
+			long car = carOfRequest(rid);
+			out.num(rid).comma()
+				.num(ownerOf(car)).comma()
+				.vin(car).comma()
+				.str(dates[requestDay(rid)]).comma()
+				.num(1 + rnd.nextInt(250000)).comma()
+				.str(pick(COMPLAINTS, rnd)).newline();
+		}
+		return to - from;
+	}
+
+	private long closedRequests(AsciiOut out, SplittableRandom rnd, long from, long to) throws IOException {
+		long rows = 0;
+		for (long rid = from; rid < to; ++rid) {
+			// requests still open get no closed row
+			if (!isClosed(rid)) continue;
+			++rows;
+			// roughly one bill in five is under 100
+			int bill = rnd.nextInt(5) == 0 ? 1 + rnd.nextInt(99) : 100 + rnd.nextInt(900);
+			out.num(rid + 1).comma()
+				.num(rid).comma()
+				.num(rnd.nextInt(sizes.mechanics)).comma()
+				.str(dates[requestDay(rid) + rnd.nextInt(31)]).comma()
+				.str(pick(COMMENTS, rnd)).comma()
+				.num(bill).newline();
+		}
+		return rows;
+	}
+
+	/* ---- relationships, as pure functions of the row position ---- */
+
+	/** Owner of car i: a fleet owner for 30% of the cars, anyone otherwise. */
+	long ownerOf(long car) {
+		long h = mix(seed, 0x0A11L + car);
+		long r = (h >>> 1) % 100;
+		long pick = (h >>> 17);
+		return r < 30 ? pick % sizes.fleetOwners : pick % sizes.customers;
+	}
+
+	/** Car of request rid: one of the hot cars for 20% of the requests. */
+	long carOfRequest(long rid) {
+		long h = mix(seed, 0x5E11L + rid);
+		long r = (h >>> 1) % 100;
+		long pick = (h >>> 17);
+		return r < 20 ? pick % sizes.hotCars : pick % sizes.cars;
+	}
+
+	int requestDay(long rid) {
+		return (int) ((mix(seed, 0xDA7EL + rid) >>> 1) % REQUEST_DAYS);
+	}
+
+	boolean isClosed(long rid) {
+		return ((mix(seed, 0xC105EL + rid) >>> 11) * 0x1.0p-53) < CLOSED_FRACTION;
+	}
+
+	/** SplitMix64 finalizer over seed and key. */
+	static long mix(long seed, long key) {
+		long z = seed * 0x9E3779B97F4A7C15L + key;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static String pick(String[] values, SplittableRandom rnd) {
+		return values[rnd.nextInt(values.length)];
+	}
+
+	private static File partFile(File dir, String name, int chunk) {
+		return new File(dir, name + ".part" + chunk);
+	}
+
+	/** Appends the chunk files of a table in order and removes them. */
+	private static void concatenate(File dir, String name) throws IOException {
+		FileChannel target = new FileOutputStream(new File(dir, name)).getChannel();
+		try {
+			for (int chunk = 0; ; ++chunk) {
+				File part = partFile(dir, name, chunk);
+				if (!part.exists()) break;
+				FileChannel source = new FileInputStream(part).getChannel();
+				try {
+					long pos = 0, size = source.size();
+					while (pos < size) pos += source.transferTo(pos, size - pos, target);
+				} finally {
+					source.close();
+				}
+				if (!part.delete()) throw new IOException("Cannot delete " + part);
+			}
+		} finally {
+			target.close();
+		}
+	}
+
+	/**
+	 * Buffered writer for ASCII text that formats numbers straight into its
+	 * byte buffer, so writing a row does not allocate.
+	 */
+	static final class AsciiOut {
+		private final OutputStream out;
+		private final byte[] buf = new byte[1 << 16];
+		private final byte[] digits = new byte[20];
+		private int len = 0;
+
+		AsciiOut(OutputStream out) {
+			this.out = out;
+		}
+
+		AsciiOut str(String s) throws IOException {
+			for (int i = 0; i < s.length(); ++i) put((byte) s.charAt(i));
+			return this;
+		}
+
+		AsciiOut num(long v) throws IOException {
+			if (v < 0) {
+				put((byte) '-');
+				v = -v;
+			}
+			int n = 0;
+			do {
+				digits[n++] = (byte) ('0' + v % 10);
+				v /= 10;
+			} while (v > 0);
+			while (n > 0) put(digits[--n]);
+			return this;
+		}
+
+		/** The VIN of car i: six letters derived from i, then i in ten digits. */
+		AsciiOut vin(long i) throws IOException {
+			long h = mix(0x51DEL, i);
+			for (int k = 0; k < 6; ++k) {
+				put((byte) ('A' + (int) ((h >>> 1) % 26)));
+				h >>>= 5;
+			}
+			long v = i;
+			for (int k = 9; k >= 0; --k) {
+				digits[k] = (byte) ('0' + v % 10);
+				v /= 10;
+			}
+			for (int k = 0; k < 10; ++k) put(digits[k]);
+			return this;
+		}
+
+		AsciiOut comma() throws IOException {
+			put((byte) ',');
+			return this;
+		}
+
+		AsciiOut newline() throws IOException {
+			put((byte) '\n');
+			return this;
+		}
+
+		private void put(byte b) throws IOException {
+			if (len == buf.length) {
+				out.write(buf, 0, len);
+				len = 0;
+			}
+			buf[len++] = b;
+		}
+
+		void close() throws IOException {
+			try {
+				if (len > 0) out.write(buf, 0, len);
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out primary keys from database sequences in blocks (hi/lo style).
+ *
+ * The sequences in create.sql are declared with INCREMENT BY BLOCK_SIZE, so
+ * a single nextval() reserves the whole range [value, value + BLOCK_SIZE)
+ * for this process.  Keys are then handed out from memory until the range is
+ * used up, which means an insert normally needs no extra round trip, and
+ * several application instances sharing the database can never hand out
+ * the same key.  Keys left over in a block when the process exits are
+ * simply skipped.
+ */
+public class IdAllocator {
+
+	public static final String CUSTOMER_ID = "customer_id_seq";
+	public static final String MECHANIC_ID = "mechanic_id_seq";
+	public static final String OWNERSHIP_ID = "owns_ownership_id_seq";
+	public static final String SERVICE_REQUEST_RID = "service_request_rid_seq";
+	public static final String CLOSED_REQUEST_WID = "closed_request_wid_seq";
+
+	/** Must match the INCREMENT BY of the sequences in create.sql. */
+	public static final int BLOCK_SIZE = 50;
+
+	private static class Block {
+		// a lock rather than a monitor: reserving a block may wait for a
+		// pooled connection, which must not pin a virtual thread's carrier
+		final ReentrantLock lock = new ReentrantLock();
+		long next = 0;
+		long limit = 0;
+	}
+
+	private final ConnectionPool pool;
+	private final Map<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+	public IdAllocator(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the next unused key of the given sequence.
+	 *
+	 * @param sequence name of the DB sequence, e.g. CUSTOMER_ID
+	 * @return a key no other caller (in this or any other process) will get
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int next(String sequence) throws SQLException {
+		Block block = blocks.computeIfAbsent(sequence, s -> new Block());
+		block.lock.lock();
+		try {
+			if (block.next >= block.limit) {
+				long start = reserveBlock(sequence);
+				block.next = start;
+				block.limit = start + BLOCK_SIZE;
+			}
+			return (int) block.next++;
+		} finally {
+			block.lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets every cached block, e.g. after the tables were reloaded and
+	 * the sequences reset.
+	 */
+	public void reset() {
+		blocks.clear();
+	}
+
+	private long reserveBlock(String sequence) throws SQLException {
+		Connection conn = pool.borrow();
+		try {
+			PreparedStatement stmt = pool.prepare(conn, "SELECT nextval(CAST(? AS regclass))");
+			stmt.setString(1, sequence);
+			ResultSet rs = stmt.executeQuery();
+			try {
+				rs.next();
+				return rs.getLong(1);
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			throw pool.failed(conn, e);
+		} finally {
+			pool.release(conn);
+		}
+	}
+}
@@ -11,19 +11,21 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.util.Scanner;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,86 +34,458 @@ import java.util.ArrayList;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections, checked out per thread
+	private ConnectionPool _pool = null;
+	//block allocator for the primary keys of new rows
+	private IdAllocator _ids = null;
+	//report results, kept until a write touches their tables
+	private ReportCache _reports = null;
+	//open service requests per car, for the top-K report
+	private OpenRequestIndex _openRequests = null;
+	//customer search by name and phone, for service request intake
+	private NameIndex _customerNames = null;
+	//Bloom filters of the keys the intake checks validate
+	private MembershipFilter _membership = null;
+	//latency and row counts per SQL shape and per operation
+	private final Metrics _metrics = new Metrics();
+	//the menu's operations, see ShopRepository
+	private final ShopRepository _repository = new PostgresRepository(this);
+	//false once the service request functions of migration 003 turned out to be missing
+	private volatile boolean _writeFunctions = WRITE_FUNCTIONS;
+	//standbys for the reports, null without mechanicshop.replicas
+	private ReplicaRouter _replicas = null;
+	//the standby pool the calling thread's queries go to, see readOnly
+	private final ThreadLocal<ReplicaRouter.Replica> _readReplica = new ThreadLocal<ReplicaRouter.Replica>();
+	//deadline (System.nanoTime) of the calling thread's queries, see withDeadline
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
+	/*
+	 * Pool sizing can be tuned with system properties, e.g.
+	 * java -Dmechanicshop.pool.max=16 ... MechanicShop <dbname> <port> <user>
+	 */
+	static final int POOL_MIN_SIZE = Integer.getInteger("mechanicshop.pool.min", 1);
+	static final int POOL_MAX_SIZE = Integer.getInteger("mechanicshop.pool.max", 8);
+	static final long POOL_VALIDATE_AFTER_MS = Long.getLong("mechanicshop.pool.validateAfterMs", 30000L);
+	static final long POOL_CHECKOUT_TIMEOUT_MS = Long.getLong("mechanicshop.pool.checkoutTimeoutMs", 10000L);
+	static final int STATEMENT_CACHE_SIZE = Integer.getInteger("mechanicshop.statementCacheSize", 64);
+	static final int FETCH_SIZE_INITIAL = Integer.getInteger("mechanicshop.fetch.initial", 64);
+	static final int FETCH_SIZE_MAX = Integer.getInteger("mechanicshop.fetch.max", 8192);
+	static final long FETCH_BUFFER_BYTES = Long.getLong("mechanicshop.fetch.bufferBytes", 4L << 20);
+	static final int REPORT_CACHE_ENTRIES = Integer.getInteger("mechanicshop.reportCache.entries", 256);
+	static final long REPORT_CACHE_CELLS = Long.getLong("mechanicshop.reportCache.cells", 4L << 20);
+	static final long REPORT_CACHE_MAX_AGE_MS = Long.getLong("mechanicshop.reportCache.maxAgeMs", 0L);
+	static final boolean TOP_K_INDEX = Boolean.parseBoolean(System.getProperty("mechanicshop.topKIndex", "true"));
+	static final long TOP_K_INDEX_MAX_AGE_MS = Long.getLong("mechanicshop.topKIndex.maxAgeMs", 60000L);
+	static final boolean NAME_INDEX = Boolean.parseBoolean(System.getProperty("mechanicshop.nameIndex", "true"));
+	static final int CUSTOMER_SEARCH_LIMIT = Integer.getInteger("mechanicshop.customerSearch.limit", 20);
+	static final long NAME_INDEX_MAX_AGE_MS = Long.getLong("mechanicshop.nameIndex.maxAgeMs", 60000L);
+	static final int REPORT_PAGE_SIZE = Integer.getInteger("mechanicshop.report.pageSize", 0);
+	static final boolean WRITE_FUNCTIONS = Boolean.parseBoolean(System.getProperty("mechanicshop.writeFunctions", "true"));
+	static final long DASHBOARD_TIMEOUT_MS = Long.getLong("mechanicshop.dashboard.timeoutMs", 30000L);
+	static final int DASHBOARD_TOP_K = Integer.getInteger("mechanicshop.dashboard.k", 10);
+	static final boolean MEMBERSHIP_FILTER = Boolean.parseBoolean(System.getProperty("mechanicshop.membershipFilter", "true"));
+	static final long MEMBERSHIP_MAX_AGE_MS = Long.getLong("mechanicshop.membershipFilter.maxAgeMs", 60000L);
+	static final String DEFAULT_MIGRATIONS_DIR = System.getProperty("mechanicshop.migrations", "../../../migrations");
+	static final int EXPORT_GZIP_LEVEL = Integer.getInteger("mechanicshop.export.gzipLevel", 1);
+	static final long PLAN_CHECK_MIN_ROWS = Long.getLong("mechanicshop.planCheck.minRows", 10000L);
+	static final String METRICS_FILE = System.getProperty("mechanicshop.metrics.file");
+	static final long METRICS_INTERVAL_MS = Long.getLong("mechanicshop.metrics.intervalMs", 60000L);
+	static final long SLOW_QUERY_MS = Long.getLong("mechanicshop.slowQuery.thresholdMs", 1000L);
+	static final String SLOW_QUERY_FILE = System.getProperty("mechanicshop.slowQuery.file");
+	static final long SLOW_QUERY_PLAN_INTERVAL_MS = Long.getLong("mechanicshop.slowQuery.planIntervalMs", 600000L);
+	static final String REPLICAS = System.getProperty("mechanicshop.replicas");
+	static final long REPLICA_MAX_LAG_MS = Long.getLong("mechanicshop.replica.maxLagMs", 5000L);
+	static final long REPLICA_CHECK_INTERVAL_MS = Long.getLong("mechanicshop.replica.checkIntervalMs", 1000L);
+	static final boolean READ_YOUR_WRITES = Boolean.parseBoolean(System.getProperty("mechanicshop.replica.readYourWrites", "true"));
+	static final long SLOW_QUERY_PLAN_TIMEOUT_MS = Long.getLong("mechanicshop.slowQuery.planTimeoutMs", 60000L);
+	
+	/**
+	 * Method to call one of the service request functions of migration 003.
+	 * When the database does not have them yet, says so once and answers
+	 * false from then on, so the caller falls back to separate statements.
+	 * 
+	 * @param sql the SELECT calling the function
+	 * @param params values bound to the ? placeholders, in order
+	 * @return whether the function ran
+	 * @throws java.lang.IllegalArgumentException when the function rejected the input
+	 * @throws java.sql.SQLException when the call failed otherwise
+	 */
+	boolean callWriteFunction(String sql, Object... params) throws SQLException {
+		if (!this._writeFunctions) return false;
+		try{
+			executeQuery(sql, params);
+			return true;
+		}catch(SQLException e){
+			String state = e.getSQLState();
+			if ("42883".equals(state)) {
+				// undefined_function
+				this._writeFunctions = false;
+				System.err.println("The service request functions are missing (run the migrate command); using separate statements.");
+				return false;
+			}
+			IllegalArgumentException broken = ShopRules.broken(e);
+			if (broken != null) throw broken;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Method to run a call whose queries must be done by a deadline.  Each
+	 * query streamed by the calling thread meanwhile gets the time left as
+	 * its statement timeout (rounded up to whole seconds), so the server
+	 * cancels one that runs past the deadline, and a query that would start
+	 * after it fails at once.  Deadlines nest; the earliest one applies.
+	 * 
+	 * @param deadlineNanos the deadline, in System.nanoTime() terms
+	 * @param call the work to run
+	 * @return what the call returned
+	 * @throws java.sql.SQLException when the call fails or runs out of time
+	 */
+	public <T> T withDeadline(long deadlineNanos, Metrics.Call<T> call) throws SQLException {
+		Long outer = DEADLINE.get();
+		DEADLINE.set(outer == null ? deadlineNanos : Math.min(outer, deadlineNanos));
+		try{
+			return call.run();
+		}finally{
+			if (outer == null) DEADLINE.remove();
+			else DEADLINE.set(outer);
+		}
+	}
+	
+	/**
+	 * @return the statement timeout in seconds for the calling thread's deadline, 0 for none
+	 */
+	private static int queryTimeout() throws SQLTimeoutException {
+		Long deadline = DEADLINE.get();
+		if (deadline == null) return 0;
+		long left = deadline - System.nanoTime();
+		if (left <= 0) throw new SQLTimeoutException("Deadline passed before the query started", "57014");
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(left + TimeUnit.SECONDS.toNanos(1) - 1)));
+	}
+	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			// (reWriteBatchedInserts turns a JDBC batch of inserts into multi-row inserts)
+			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?reWriteBatchedInserts=true";
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
+			// open the connection pool; the first physical connections are created here
+			this._pool = new ConnectionPool(url, user, passwd, POOL_MIN_SIZE, POOL_MAX_SIZE,
+					POOL_VALIDATE_AFTER_MS, POOL_CHECKOUT_TIMEOUT_MS, STATEMENT_CACHE_SIZE);
+			this._ids = new IdAllocator(this._pool);
+			this._reports = new ReportCache(REPORT_CACHE_ENTRIES, REPORT_CACHE_CELLS, REPORT_CACHE_MAX_AGE_MS);
+			this._openRequests = new OpenRequestIndex(this, TOP_K_INDEX_MAX_AGE_MS);
+			this._customerNames = new NameIndex(this, NAME_INDEX_MAX_AGE_MS);
+			this._membership = new MembershipFilter(this, MEMBERSHIP_MAX_AGE_MS);
+			if (REPLICAS != null && !REPLICAS.trim().isEmpty()) {
+				// standbys of the primary, with the same database and user
+				List<ReplicaRouter.Replica> replicas = new ArrayList<ReplicaRouter.Replica>();
+				for (String endpoint : REPLICAS.split(",")) {
+					endpoint = endpoint.trim();
+					String replicaUrl = "jdbc:postgresql://" + endpoint + "/" + dbname + "?reWriteBatchedInserts=true";
+					replicas.add(new ReplicaRouter.Replica(endpoint, new ConnectionPool(replicaUrl, user, passwd, 0, POOL_MAX_SIZE,
+							POOL_VALIDATE_AFTER_MS, POOL_CHECKOUT_TIMEOUT_MS, STATEMENT_CACHE_SIZE)));
+				}
+				this._replicas = new ReplicaRouter(this._pool, this._reports, replicas, REPLICA_MAX_LAG_MS, REPLICA_CHECK_INTERVAL_MS);
+				System.out.println("Reports read from " + REPLICAS + " when no more than " + REPLICA_MAX_LAG_MS + " ms behind");
+			}
+			if (METRICS_FILE != null) this._metrics.startExport(new File(METRICS_FILE), METRICS_INTERVAL_MS);
+			if (SLOW_QUERY_MS > 0) {
+				this._metrics.setSlowQueryLog(new SlowQueryLog(this._pool, SLOW_QUERY_MS,
+						SLOW_QUERY_PLAN_INTERVAL_MS, SLOW_QUERY_PLAN_TIMEOUT_MS, SLOW_QUERY_FILE));
+			}
+			System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
+			System.out.println("Make sure you started postgres on this machine");
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Method to check out the calling thread's connection from the pool.
+	 * Calls nest: a thread that already holds a connection gets the same one
+	 * back, so a sequence of statements wrapped in borrowConnection() /
+	 * releaseConnection() runs on a single session.
+	 * 
+	 * @return the connection bound to the calling thread
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public Connection borrowConnection() throws SQLException {
+		return this._pool.borrow();
+	}
+	
+	/**
+	 * Method to hand a connection obtained with borrowConnection() back
+	 * to the pool.
+	 * 
+	 * @param conn the borrowed connection
+	 */
+	public void releaseConnection(Connection conn) {
+		this._pool.release(conn);
+	}
+	
+	public ConnectionPool getPool() {
+		return this._pool;
+	}
+	
+	public ReplicaRouter getReplicas() {
+		return this._replicas;
+	}
+	
+	/**
+	 * Method to run a read-only call on a standby (mechanicshop.replicas)
+	 * when one is reachable and not too far behind, picking the least busy
+	 * (see ReplicaRouter); otherwise on the primary.  When the standby goes
+	 * away or cancels the query, the call is repeated on the primary, so it
+	 * must not have side effects.  Calls nest, and a thread that holds a
+	 * primary connection (a transaction) stays on the primary.
+	 * 
+	 * @param consistent whether the standby must have every write this process committed before the call
+	 * @param call the queries to run
+	 * @return what the call returns
+	 * @throws java.sql.SQLException when the call fails on the primary, or on the standby for a reason the primary shares
+	 */
+	public <T> T readOnly(boolean consistent, Metrics.Call<T> call) throws SQLException {
+		if (this._replicas == null || this._readReplica.get() != null || this._pool.isHeld()) return call.run();
+		ReplicaRouter.Replica replica = this._replicas.choose(consistent);
+		if (replica == null) return call.run();
+		this._readReplica.set(replica);
+		try{
+			return call.run();
+		}catch(SQLException e){
+			if (!this._replicas.failed(replica, e)) throw e;
+		}finally{
+			this._readReplica.remove();
 		}
+		return call.run();
+	}
+	
+	public IdAllocator getIdAllocator() {
+		return this._ids;
+	}
+	
+	public ReportCache getReportCache() {
+		return this._reports;
+	}
+	
+	public OpenRequestIndex getOpenRequests() {
+		return this._openRequests;
+	}
+	
+	public NameIndex getCustomerNames() {
+		return this._customerNames;
+	}
+	
+	public MembershipFilter getMembership() {
+		return this._membership;
+	}
+	
+	public Metrics getMetrics() {
+		return this._metrics;
+	}
+	
+	public ShopRepository getRepository() {
+		return this._repository;
+	}
+	
+	/**
+	 * Method to allocate a new primary key from one of the key sequences
+	 * (see IdAllocator).  Keys are reserved in blocks, so most calls do
+	 * not touch the database at all.
+	 * 
+	 * @param sequence name of the DB sequence, e.g. IdAllocator.CUSTOMER_ID
+	 * @return an unused key
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int nextId(String sequence) throws SQLException {
+		return this._ids.next(sequence);
 	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? placeholders for the parameters
+	 * @param params values bound to the ? placeholders, in order
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		Metrics.Probe probe = null;
+		Connection conn = null;
+		try{
+			conn = this._pool.borrow();
+			// timed from here: waiting for the pool is not the statement's time
+			probe = this._metrics.startCall(Metrics.UPDATE, sql, params);
+			// fetches the cached prepared statement for this SQL shape
+			PreparedStatement stmt = this._pool.prepare(conn, sql);
+			bind(stmt, params);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			int rowCount = stmt.executeUpdate ();
+			probe.end(rowCount, 0);
+			return rowCount;
+		}catch(SQLException e){
+			if (probe != null) probe.fail();
+			throw conn == null ? e : this._pool.failed(conn, e);
+		}finally{
+			if (conn != null) this._pool.release(conn);
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * stream its rows to a handler.  The query runs through a server-side
+	 * cursor, so only one fetch batch is held in memory at a time and the
+	 * first rows reach the handler before the rest have been produced.
+	 * 
+	 * The fetch size starts small (mechanicshop.fetch.initial) so the first
+	 * rows show up immediately, then doubles with every batch up to
+	 * mechanicshop.fetch.max rows, capped so that one batch stays within
+	 * mechanicshop.fetch.bufferBytes judging by the declared column widths.
+	 * 
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param handler receives the column metadata and then every row
+	 * @param params values bound to the ? placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		Metrics.Probe probe = null;
+		// the standby chosen by readOnly, if any
+		ReplicaRouter.Replica replica = this._readReplica.get();
+		ConnectionPool pool = replica != null ? replica.pool : this._pool;
+		Connection conn = null;
+		// cursors only exist inside a transaction; join the caller's if there is one
+		boolean ownTransaction = false;
+		PreparedStatement stmt = null;
+		long rowBytes = 0;
+		int rowCount = 0;
+		int queryTimeout = 0;
+		// the database's time: executing and fetching, not the handler's work on the rows
+		long databaseNanos = 0;
+		try{
+			queryTimeout = queryTimeout();
+			conn = pool.borrow();
+			if (conn.getAutoCommit()) {
+				conn.setAutoCommit(false);
+				ownTransaction = true;
+			}
+			// timed from here: waiting for the pool is not the statement's time
+			probe = this._metrics.startCall(Metrics.QUERY, query, params);
+			stmt = pool.prepare(conn, query);
+			bind(stmt, params);
+			if (queryTimeout > 0) stmt.setQueryTimeout(queryTimeout);
+			int fetchSize = FETCH_SIZE_INITIAL;
+			stmt.setFetchSize(fetchSize);
+
+			long sent = System.nanoTime();
+			ResultSet rs = stmt.executeQuery ();
+			databaseNanos = System.nanoTime() - sent;
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			rowBytes = rowBytes(rsmd);
+			int maxFetchSize = maxFetchSize(rowBytes);
+			handler.start(rsmd);
+
+			// rows asked for by the fetches so far; the next() after the last of them fetches again
+			int fetched = fetchSize;
+			while (true){
+				boolean fetch = rowCount == fetched;
+				if (fetch) {
+					if (fetchSize < maxFetchSize) {
+						fetchSize = Math.min(fetchSize * 2, maxFetchSize);
+						rs.setFetchSize(fetchSize);
+					}
+					fetched += fetchSize;
+					sent = System.nanoTime();
+				}
+				boolean more = rs.next();
+				if (fetch) databaseNanos += System.nanoTime() - sent;
+				if (!more) break;
+				handler.row(rs);
+				++rowCount;
+			}//end while
+			rs.close ();
+			if (ownTransaction) conn.commit();
+			probe.executed(databaseNanos);
+			probe.end(rowCount, rowCount * rowBytes);
+			return rowCount;
+		}catch(SQLException e){
+			if (probe != null) {
+				if (databaseNanos > 0) probe.executed(databaseNanos);
+				probe.fail();
+			}
+			if (conn == null) throw e;
+			if (ownTransaction) rollbackQuietly(conn);
+			throw pool.failed(conn, e);
+		}catch(RuntimeException e){
+			// thrown by the row handler
+			if (probe != null) {
+				if (databaseNanos > 0) probe.executed(databaseNanos);
+				probe.fail();
+			}
+			throw e;
+		}finally{
+			if (conn != null) {
+				try{
+					if (stmt != null) stmt.setFetchSize(0);
+					if (stmt != null && queryTimeout > 0) stmt.setQueryTimeout(0);
+					if (ownTransaction) conn.setAutoCommit(true);
+				}catch(SQLException e){
+					// the pool resets the connection on release anyway
+				}
+				pool.release(conn);
+			}
+		}
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out as they are fetched.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params values bound to the ? placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return executeQueryStreaming(query, new RowHandler() {
+			int numCol;
+			boolean outputHeader = true;
+			String[] header;
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			@Override
+			public void start(ResultSetMetaData rsmd) throws SQLException {
+				/*
+				 *  the metadata object for the returned result set contains
+				 *  row and column info.
+				 */
+				numCol = rsmd.getColumnCount ();
+				header = new String[numCol];
+				for (int i = 1; i <= numCol; i++) {
+					header[i - 1] = rsmd.getColumnName(i);
+				}
+			}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			@Override
+			public void row(ResultSet rs) throws SQLException {
+				if(outputHeader){
+					for(int i = 0; i < numCol; i++){
+						System.out.print(header[i] + "\t");
+					}
+					System.out.println();
+					outputHeader = false;
+				}
+				for (int i=1; i<=numCol; ++i)
+					System.out.print (rs.getString (i) + "\t");
+				System.out.println ();
+			}
+		}, params);
 	}
 	
 	/**
@@ -119,61 +493,90 @@ public class MechanicShop{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params values bound to the ? placeholders, in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		final List<List<String>> result  = new ArrayList<List<String>>(); 
+		executeQueryStreaming(query, new RowHandler() {
+			int numCol;
+
+			@Override
+			public void start(ResultSetMetaData rsmd) throws SQLException {
+				numCol = rsmd.getColumnCount ();
+			}
+
+			@Override
+			public void row(ResultSet rs) throws SQLException {
+				//saves the data returned by the query, straight out of the fetch batch
+				List<String> record = new ArrayList<String>(numCol); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}
+		}, params);
 		return result; 
 	}//end executeQueryAndReturnResult
 	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results stored
+	 * column by column with typed values (see ColumnarResult), which takes
+	 * far less memory than executeQueryAndReturnResult for results that
+	 * are kept around.
+	 * 
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params values bound to the ? placeholders, in order
+	 * @return the query result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumnar (String query, Object... params) throws SQLException {
+		ColumnarResult.Builder builder = new ColumnarResult.Builder();
+		executeQueryStreaming(query, builder, params);
+		return builder.build();
+	}
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for the parameters
+	 * @param params values bound to the ? placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		Metrics.Probe probe = null;
+		Connection conn = null;
+		try{
+			conn = this._pool.borrow();
+			// timed from here: waiting for the pool is not the statement's time
+			probe = this._metrics.startCall(Metrics.QUERY, query, params);
+			// fetches the cached prepared statement for this SQL shape
+			PreparedStatement stmt = this._pool.prepare(conn, query);
+			bind(stmt, params);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+			probe.executed();
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			probe.end(rowCount, 0);
+			return rowCount;
+		}catch(SQLException e){
+			if (probe != null) probe.fail();
+			throw conn == null ? e : this._pool.failed(conn, e);
+		}finally{
+			if (conn != null) this._pool.release(conn);
+		}
 	}
 	
 	/**
@@ -187,24 +590,74 @@ public class MechanicShop{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		Connection conn = this._pool.borrow();
+		try{
+			PreparedStatement stmt = this._pool.prepare(conn, "SELECT currval(CAST(? AS regclass))");
+			stmt.setString(1, sequence);
+			ResultSet rs = stmt.executeQuery ();
+			try{
+				if (rs.next()) return rs.getInt(1);
+				return -1;
+			}finally{
+				rs.close ();
+			}
+		}catch(SQLException e){
+			throw this._pool.failed(conn, e);
+		}finally{
+			this._pool.release(conn);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Binds the given values to the ? placeholders of a prepared statement.
+	 * A null value is sent untyped so the server infers the column type.
 	 */
-	public void cleanup(){
+	static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i) {
+			if (params[i] == null) stmt.setNull(i + 1, Types.OTHER);
+			else stmt.setObject(i + 1, params[i]);
+		}
+	}
+
+	/**
+	 * Estimated size of one row, from the declared column widths.
+	 * Unbounded columns (TEXT) are counted as 256 bytes.
+	 */
+	static long rowBytes(ResultSetMetaData rsmd) throws SQLException {
+		long rowBytes = 16;
+		for (int i = 1; i <= rsmd.getColumnCount(); ++i) {
+			int width = rsmd.getColumnDisplaySize(i);
+			rowBytes += (width <= 0 || width > 256) ? 256 : width;
+		}
+		return rowBytes;
+	}
+
+	/**
+	 * Largest fetch size that keeps one batch within FETCH_BUFFER_BYTES.
+	 */
+	static int maxFetchSize(long rowBytes) {
+		long rows = FETCH_BUFFER_BYTES / rowBytes;
+		return (int) Math.max(FETCH_SIZE_INITIAL, Math.min(FETCH_SIZE_MAX, rows));
+	}
+
+	private static void rollbackQuietly(Connection conn) {
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+			conn.rollback();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Method to close the pooled physical connections.
+	 */
+	public void cleanup(){
+		this._metrics.stopExport();
+		if (this._replicas != null) this._replicas.close();
+		if (this._metrics.getSlowQueryLog() != null) this._metrics.getSlowQueryLog().close();
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -213,14 +666,25 @@ public class MechanicShop{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [command]\n" +
+				"Commands (the interactive menu runs when none is given):\n" +
+				"  load <csv dir>      reload all tables from customer.csv, mechanic.csv, ... or from an export\n" +
+				"  export <dir> [fmt]  write all tables to gzip files, fmt csv (default) or binary\n" +
+				"  batch <file> [n]    run a tab separated command file, committing every n writes (default 1000)\n" +
+				"  serve [http port]   serve the operations as HTTP/JSON endpoints (default port 8080)\n" +
+				"  migrate [dir]       apply the pending schema migrations (default " + DEFAULT_MIGRATIONS_DIR + ")\n" +
+				"  plancheck [csv dir] fail if a query plan fully scans a large table; loads csv dir first if given\n" +
+				"  dashboard [k]       run reports 6 to 10 at once, with k cars in report 9 (default " + DASHBOARD_TOP_K + ")\n" +
+				"  snapshot <dir>      write the request history as a columnar snapshot (see ColumnarSnapshot)\n" +
+				"  replicas            show the standbys of mechanicshop.replicas and how far behind they are");
 			return;
 		}//end if
 		
 		MechanicShop esql = null;
+		int status = 0;
 		
 		try{
 			System.out.println("(1)");
@@ -241,6 +705,11 @@ public class MechanicShop{
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
 			
+			if (args.length > 3) {
+				status = runCommand(esql, args);
+				return;
+			}
+			
 			boolean keepon = true;
 			while(keepon){
 				System.out.println("MAIN MENU");
@@ -255,7 +724,8 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
+				System.out.println("11. Dashboard (reports 6 to 10 at once)");
+				System.out.println("12. < EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
@@ -271,7 +741,8 @@ public class MechanicShop{
 					case 8: ListCarsBefore1995With50000Milles(esql); break;
 					case 9: ListKCarsWithTheMostServices(esql); break;
 					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+					case 11: ShowDashboard(esql); break;
+					case 12: keepon = false; break;
 				}
 			}
 		}catch(Exception e){
@@ -286,7 +757,70 @@ public class MechanicShop{
 			}catch(Exception e){
 				// ignored.
 			}
+			if (status != 0) System.exit(status);
+		}
+	}
+
+	/**
+	 * Runs one of the non-interactive commands given after <dbname> <port> <user>.
+	 *
+	 * @return the exit status, non-zero when a plan check failed
+	 */
+	static int runCommand(MechanicShop esql, String[] args) throws Exception {
+		String command = args[3];
+		if (command.equals("load") && args.length == 5) {
+			new BulkLoader(esql).load(new File(args[4]));
+		}
+		else if (command.equals("export") && (args.length == 5 || args.length == 6)) {
+			BulkExporter.Format format = BulkExporter.Format.valueOf((args.length == 6 ? args[5] : "csv").toUpperCase());
+			new BulkExporter(esql, EXPORT_GZIP_LEVEL).export(new File(args[4]), format);
+		}
+		else if (command.equals("batch") && (args.length == 5 || args.length == 6)) {
+			int commitInterval = args.length == 6 ? Integer.parseInt(args[5]) : 1000;
+			new BatchRunner(esql, commitInterval).run(new File(args[4]));
+		}
+		else if (command.equals("serve") && (args.length == 4 || args.length == 5)) {
+			int httpPort = args.length == 5 ? Integer.parseInt(args[4]) : 8080;
+			final ShopServer server = new ShopServer(esql, httpPort);
+			esql.getOpenRequests().rebuild();
+			if (NAME_INDEX) esql.getCustomerNames().rebuild();
+			if (MEMBERSHIP_FILTER) esql.getMembership().rebuild();
+			// Ctrl-C lets the requests in flight finish before the pool is closed
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5)));
+			server.start();
+			System.out.println("Serving on " + server.address() + " with "
+					+ (server.usesVirtualThreads() ? "virtual threads" : ShopServer.FALLBACK_THREADS + " platform threads")
+					+ ", " + esql.getPool().maxSize() + " database connections");
+			server.awaitStop();
+		}
+		else if (command.equals("migrate") && (args.length == 4 || args.length == 5)) {
+			new SchemaMigrator(esql).migrate(new File(args.length == 5 ? args[4] : DEFAULT_MIGRATIONS_DIR));
+		}
+		else if (command.equals("plancheck") && (args.length == 4 || args.length == 5)) {
+			if (args.length == 5) new BulkLoader(esql).load(new File(args[4]));
+			return new PlanCheck(esql, PLAN_CHECK_MIN_ROWS).run() == 0 ? 0 : 1;
+		}
+		else if (command.equals("dashboard") && (args.length == 4 || args.length == 5)) {
+			Dashboard dashboard = new Dashboard(esql, args.length == 5 ? Integer.parseInt(args[4]) : DASHBOARD_TOP_K, DASHBOARD_TIMEOUT_MS);
+			dashboard.print(dashboard.run(), 0, System.out);
+		}
+		else if (command.equals("replicas") && args.length == 4) {
+			if (esql.getReplicas() == null) {
+				System.out.println("No standbys configured (-Dmechanicshop.replicas=host:port,...)");
+				return 0;
+			}
+			for (String line : esql.getReplicas().describe()) System.out.println(line);
+		}
+		else if (command.equals("snapshot") && args.length == 5) {
+			long started = System.nanoTime();
+			long rows = ColumnarSnapshot.write(esql, new File(args[4]));
+			System.out.println(String.format("Wrote %d rows to %s in %.2f s", rows, args[4], (System.nanoTime() - started) / 1e9));
+		}
+		else {
+			System.err.println("Unknown command or wrong arguments: " + command);
+			return 2;
 		}
+		return 0;
 	}
 
 	public static int readChoice() {
@@ -305,12 +839,77 @@ public class MechanicShop{
 		return input;
 	}//end readChoice
 	
+	/*
+	 * SQL used by the menu operations.  Every statement is parameterized,
+	 * so each one is prepared once per connection and then reused.
+	 */
+	static final String INSERT_CUSTOMER_SQL = "INSERT INTO Customer (id, fname, lname, phone, address) VALUES (?, ?, ?, ?, ?)";
+	static final String INSERT_MECHANIC_SQL = "INSERT INTO Mechanic (id, fname, lname, experience) VALUES (?, ?, ?, ?)";
+	static final String INSERT_CAR_SQL = "INSERT INTO Car(vin, make, model, year) VALUES (?, ?, ?, ?)";
+	static final String INSERT_OWNS_SQL = "INSERT INTO Owns (ownership_id, customer_id, car_vin) VALUES (?, ?, ?)";
+	static final String INSERT_SERVICE_REQUEST_SQL = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (?, ?, ?, CURRENT_DATE, ?, ?)";
+	static final String INSERT_CLOSED_REQUEST_SQL = "INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) VALUES (?, ?, ?, CURRENT_DATE, ?, ?)";
+	static final String FIND_CUSTOMERS_BY_LAST_NAME_SQL = "SELECT * FROM Customer WHERE lname = ?";
+	static final String LIST_CUSTOMER_CARS_SQL = "SELECT ROW_NUMBER() OVER (ORDER BY O.car_vin), C FROM Customer Cust, Owns O, Car C WHERE Cust.id = O.customer_id AND C.vin = O.car_vin AND O.customer_id = ?";
+	static final String CHECK_OWNED_VIN_SQL = "SELECT C.vin FROM Car C, Customer Cust, Owns O WHERE C.vin = ? AND C.vin = O.car_vin AND O.customer_id = Cust.id";
+	static final String CHECK_CUSTOMER_OWNS_VIN_SQL = "SELECT 1 FROM Owns O WHERE O.customer_id = ? AND O.car_vin = ?";
+	static final String CHECK_SERVICE_REQUEST_SQL = "SELECT 1 FROM Service_Request SR WHERE SR.rid = ?";
+	static final String CHECK_MECHANIC_SQL = "SELECT 1 FROM Mechanic M WHERE M.id = ?";
+	static final String OPEN_SERVICE_REQUEST_SQL = "SELECT rid FROM open_service_request(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	static final String CLOSE_SERVICE_REQUEST_SQL = "SELECT wid FROM close_service_request(?, ?, ?, ?, ?)";
+	static final String CHECK_REQUEST_DATE_SQL = "SELECT SR.date <= NOW() FROM Service_Request SR WHERE SR.rid = ?";
+
+	/*
+	 * Reports 6, 7, 8 and 10 are declared in parts: the select list, the
+	 * FROM and WHERE clauses, and a key unique over the rows that
+	 * ReportPager reads the pages in (see migrations/002_report_pages.sql).
+	 */
+	static final String BILL_LESS_THAN_100_COLUMNS = "Cust.fname, Cust.lname, CR.date, CR.comment, CR.bill";
+	static final String BILL_LESS_THAN_100_FROM_WHERE =
+		"FROM Customer Cust, Service_Request SR, Closed_Request CR " +
+		"WHERE CR.bill < 100 " +
+		"AND Cust.id = SR.customer_id " +
+		"AND SR.rid = CR.rid";
+	static final String[] BILL_LESS_THAN_100_PAGE_KEY = { "CR.rid", "CR.wid" };
+	static final String BILL_LESS_THAN_100_SQL = "SELECT " + BILL_LESS_THAN_100_COLUMNS + " " + BILL_LESS_THAN_100_FROM_WHERE;
+	// 7 and 10 read the per-customer totals kept up to date by the triggers in create.sql
+	static final String MORE_THAN_20_CARS_COLUMNS = "C.fname, C.lname, S.car_count AS numOwnedCars";
+	static final String MORE_THAN_20_CARS_FROM_WHERE =
+		"FROM Customer_Summary S, Customer C " +
+		"WHERE S.car_count > 20 " +
+		"AND C.id = S.customer_id";
+	static final String[] MORE_THAN_20_CARS_PAGE_KEY = { "S.customer_id" };
+	static final String MORE_THAN_20_CARS_SQL = "SELECT " + MORE_THAN_20_CARS_COLUMNS + " " + MORE_THAN_20_CARS_FROM_WHERE;
+	static final String CARS_BEFORE_1995_COLUMNS = "C.make, C.model, C.year";
+	static final String CARS_BEFORE_1995_FROM_WHERE =
+		"FROM Car C, Service_Request S " +
+		"WHERE S.car_vin = C.vin " +
+		"AND S.odometer < 50000 " +
+		"AND C.year < 1995";
+	static final String[] CARS_BEFORE_1995_PAGE_KEY = { "S.rid" };
+	static final String CARS_BEFORE_1995_SQL = "SELECT " + CARS_BEFORE_1995_COLUMNS + " " + CARS_BEFORE_1995_FROM_WHERE;
+	static final String K_CARS_WITH_MOST_SERVICES_SQL =
+		"SELECT C.make, C.model, topNumServices.numOfServices FROM Car C, (SELECT S.car_vin, COUNT(S.car_vin) as numOfServices FROM Service_Request S WHERE S.rid NOT IN (SELECT C.rid FROM Closed_Request C) GROUP BY S.car_vin ORDER BY numOfServices DESC) topNumServices WHERE C.vin = topNumServices.car_vin ORDER BY topNumServices.numOfServices DESC LIMIT ?";
+	static final String TOTAL_BILL_DESC_COLUMNS = "C.fname, C.lname, S.total_bill AS Total";
+	static final String TOTAL_BILL_DESC_FROM_WHERE =
+		"FROM Customer_Summary S, Customer C " +
+		"WHERE S.closed_count > 0 " +
+		"AND C.id = S.customer_id";
+	// descending, ties by customer id, also descending
+	static final String[] TOTAL_BILL_DESC_PAGE_KEY = { "S.total_bill", "S.customer_id" };
+	static final String TOTAL_BILL_DESC_SQL = "SELECT " + TOTAL_BILL_DESC_COLUMNS + " " + TOTAL_BILL_DESC_FROM_WHERE + " ORDER BY S.total_bill DESC";
+	// report cache keys and the tables each report reads
+	static final String BILL_LESS_THAN_100_KEY = "billLessThan100";
+	static final int BILL_LESS_THAN_100_TABLES = ReportCache.CUSTOMER | ReportCache.SERVICE_REQUEST | ReportCache.CLOSED_REQUEST;
+	static final String MORE_THAN_20_CARS_KEY = "moreThan20Cars";
+	static final int MORE_THAN_20_CARS_TABLES = ReportCache.CUSTOMER | ReportCache.OWNS;
+	static final String CARS_BEFORE_1995_KEY = "carsBefore1995";
+	static final int CARS_BEFORE_1995_TABLES = ReportCache.CAR | ReportCache.SERVICE_REQUEST;
+	static final String TOTAL_BILL_DESC_KEY = "totalBillDesc";
+	static final int TOTAL_BILL_DESC_TABLES = ReportCache.CUSTOMER | ReportCache.SERVICE_REQUEST | ReportCache.CLOSED_REQUEST;
+
 	public static void AddCustomer(MechanicShop esql){//1
 		try{
-			String findIDsize = "SELECT id FROM Customer;";
-			int countCID;
-			List<List<String>> numOfCID = esql.executeQueryAndReturnResult(findIDsize);
-			countCID = numOfCID.size();
 			System.out.print("Enter new customer's first name: ");
 			String c_fname = in.readLine();
 			System.out.print("Enter new customer's last name: ");
@@ -320,10 +919,7 @@ public class MechanicShop{
 	         	System.out.print("Enter new customer's address: ");
 			String c_address = in.readLine();
 		
-			String query = "INSERT INTO Customer (id, fname, lname, phone, address) ";
-				query += "VALUES (\'" + countCID + "\','" + c_fname + "\',\'" + c_lname + "\',\'" + c_phone + "\',\'" + c_address + "\');";
-		
-			esql.executeUpdate(query);
+			esql.getRepository().addCustomer(c_fname, c_lname, c_phone, c_address);
 		}catch(Exception e){
 			System.err.println(e.getMessage());
 		}
@@ -331,22 +927,14 @@ public class MechanicShop{
 	
 	public static void AddMechanic(MechanicShop esql){//2
 		try {
-			//Finding new ID, since Mechanic.id is type int4
-			String nextID = "SELECT id FROM Mechanic;";
-			List<List<String>> usedIDs = esql.executeQueryAndReturnResult(nextID);
-			int m_id = usedIDs.size();
-
 			System.out.print("Enter new mechanic's first name: ");
 			String fname = in.readLine();
 			System.out.print("Enter new mechanic's last name: ");
 			String lname = in.readLine();
 			System.out.print("Enter new mechanic's years of experience: ");
-			String experience = in.readLine();
-			
-			String addMechanic = "INSERT INTO Mechanic (id, fname, lname, experience) ";
-				addMechanic += "VALUES (\'" + m_id + "\',\'" + fname + "\',\'" + lname + "\',\'" + experience + "\');";	
+			int experience = Integer.parseInt(in.readLine());
 			
-			esql.executeUpdate(addMechanic);
+			esql.getRepository().addMechanic(fname, lname, experience);
 		}
 		catch (Exception e) {
 			System.err.println(e.getMessage());
@@ -365,10 +953,7 @@ public class MechanicShop{
 			String car_year_string = in.readLine(); //convert string to int
 			int car_year = Integer.parseInt(car_year_string);
 
-			String query = "INSERT INTO Car(vin, make, model, year) ";
-				query += "VALUES (\'" + car_vin + "\',\'" + car_make + "\',\'" + car_model + "\',\'" + car_year + "\');";
-
-        		esql.executeUpdate(query);
+        		esql.getRepository().addCar(car_vin, car_make, car_model, car_year);
 			
       		}catch(Exception e){
         		 System.err.println (e.getMessage());
@@ -377,16 +962,16 @@ public class MechanicShop{
 	
 public static void InsertServiceRequest(MechanicShop esql){//4
 		try {
-			//Finding new ID, since Service_Request.rid is type in4
-			String nextID = "SELECT rid FROM Service_Request;";
-			List<List<String>> usedIDs = esql.executeQueryAndReturnResult(nextID);
-			int rid = usedIDs.size() + 1;
-			
-			System.out.print("Enter last name of customer: ");
-			String lastName = in.readLine();
-			
-			String lookupLastName = "SELECT * FROM Customer WHERE lname = '" + lastName + "';";
-			int numRows = esql.executeQueryAndPrintResult(lookupLastName);
+			int numRows;
+			if (NAME_INDEX) {
+				System.out.print("Enter last name of customer (or its start, or a phone number): ");
+				numRows = searchCustomers(esql, in.readLine(), CUSTOMER_SEARCH_LIMIT).print(System.out);
+			}
+			else {
+				System.out.print("Enter last name of customer: ");
+				String lastName = in.readLine();
+				numRows = esql.getRepository().findCustomersByLastName(lastName).print(System.out);
+			}
 			
 			//Customer not found
 			if (numRows == 0) {
@@ -408,9 +993,8 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 			//Customer name found; parse cid
 			else {
 				System.out.print("Enter customer id: ");
-				String inputCID = in.readLine();
-				String selectCar = "SELECT ROW_NUMBER() OVER (ORDER BY O.car_vin), C FROM Customer Cust, Owns O, Car C WHERE Cust.id = O.customer_id AND C.vin = O.car_vin AND O.customer_id = '" + inputCID + "';";
-				numRows = esql.executeQueryAndPrintResult(selectCar);
+				int inputCID = Integer.parseInt(in.readLine());
+				numRows = esql.getRepository().listCustomerCars(inputCID).print(System.out);
 				boolean validOption = false;
 				String rowChoice = "";
 				int row = -1;
@@ -428,8 +1012,7 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 				
 				//Adding new car for service request
 				if (row == 1) {
-					//Replace function call with code for brute force way
-					//of getting the added car's vin to insert into new SR (unless there is a better solution)
+					//the car, its ownership and the request are written in one transaction
 					System.out.print("Enter new car's VIN: ");
             				String car_vin = in.readLine();
             				System.out.print("Enter new car's make: ");
@@ -440,18 +1023,12 @@ public static void InsertServiceRequest(MechanicShop esql){//4
             				String car_year_string = in.readLine(); //convert string to int
             				int car_year = Integer.parseInt(car_year_string);
 
-            				String query = "INSERT INTO Car(vin, make, model, year) ";
-                			query += "VALUES ('" + car_vin + "','" + car_make + "','" + car_model + "','" + car_year + "');";
-
-                			esql.executeUpdate(query);
-
-
 					System.out.print("Enter current odometer reading on the car: ");
-					String odometer = in.readLine();
+					int odometer = Integer.parseInt(in.readLine());
 					System.out.print("Enter customer's complaints with the car: ");
 			 		String complaint = in.readLine();
 					
-					String initiateSR = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (" + Integer.toString(rid) + ", " + inputCID + ", '" + car_vin + "', CURRENT_DATE, " + odometer + ", '" + complaint + "');";
+					esql.getRepository().openServiceRequestForNewCar(inputCID, car_vin, car_make, car_model, car_year, odometer, complaint);
 				}
 				
 				//Choosing listed car for service request
@@ -476,9 +1053,7 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 						System.out.print("Choose a vin from the list: ");
 						editVin = scan.nextLine();
 						//Check vin as valid in list
-						String check = "SELECT C.vin FROM Car C, Customer Cust, Owns O WHERE C.vin = '" + editVin + "' AND C.vin = O.car_vin AND O.customer_id = Cust.id;";
-						List<List<String>> checkCarSelect = esql.executeQueryAndReturnResult(check);
-						if (checkCarSelect.isEmpty()) {
+						if (!esql.getRepository().ownsCar(inputCID, editVin)) {
 							System.out.print("Vin not found in list.");	
 						}
 						else {
@@ -488,12 +1063,11 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 					
 
 					System.out.print("Enter odometer reading on the car: ");
-					String odometer = scan.nextLine();
+					int odometer = Integer.parseInt(scan.nextLine());
 					System.out.print("Enter customer's complaint(s) about the car: ");
 					String complaint = scan.nextLine();
 
-					String addServiceRequest = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (" + Integer.toString(rid) + ", " + inputCID + ", '" + editVin + "', CURRENT_DATE, " + odometer + ", '" + complaint + "');";
-					esql.executeUpdate(addServiceRequest);
+					esql.getRepository().insertServiceRequest(inputCID, editVin, odometer, complaint);
 				}
 			}
 		}
@@ -502,31 +1076,20 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 		}
 	}
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
-			String query;
-			int count;
-		
-			//finds size for CID
-			String findCRsize = "SELECT wid FROM Closed_Request;"; 
-			List<List<String>> CR_size = esql.executeQueryAndReturnResult(findCRsize);
-			int CID = CR_size.size();
-			
 			//Get request number from user & check if it exists
 			System.out.println("Insert service request number: ");
-			String requestNum = in.readLine();
-			query = "SELECT * FROM Service_Request SR WHERE SR.rid = \'" + requestNum + "\';";			
-			count = esql.executeQuery(query);
-			if(count == 0) {
-				System.out.println("Service request cannot be found.\n");
+			int requestNum = Integer.parseInt(in.readLine());
+			//closeServiceRequest checks again, with the request date, in its single round trip
+			if(!esql.getRepository().serviceRequestExists(requestNum)) {
+				System.out.println(ShopRules.NO_SUCH_REQUEST + "\n");
 				return;
 			}
 			
 			//Get mechanic id from user & check existence
 			System.out.println("Insert mechanic id: ");
-			String mechID = in.readLine();
-			query = "SELECT * FROM Mechanic M WHERE M.id = \'" + mechID + "\';";
-			count = esql.executeQuery(query);
-			if(count == 0) {
-				System.out.println("Mechanic ID cannot be found.\n");
+			int mechID = Integer.parseInt(in.readLine());
+			if(!esql.getRepository().mechanicExists(mechID)) {
+				System.out.println(ShopRules.NO_SUCH_MECHANIC + "\n");
 				return;
 			}
 		
@@ -534,31 +1097,23 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 			String comment = in.readLine();
 		
 			System.out.println("Insert bill charge amount: ");
-			String billAmt = in.readLine();
+			int billAmt = Integer.parseInt(in.readLine());
 		
-			//check if closing date is after the request date
-			query = "SELECT * FROM Service_Request SR WHERE SR.rid = '" + requestNum + "' AND SR.date <= NOW();";
-			count = esql.executeQuery(query);
-			if(count == 0) {
-				System.out.println("Closing date is invalid. Date must be after request date.\n");
-				return;
+			try {
+				esql.getRepository().closeServiceRequest(requestNum, mechID, comment, billAmt);
+			}
+			catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage() + "\n");
 			}
-		
-			//query = "INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) VALUES (" + CID + "," + requestNum + "," + mechID + "," + CURRENT_DATE + "," + comment + "," + billAmt + ");";
-			query = "INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) VALUES (\'" + CID + "\',\'" + requestNum + "\',\'" + mechID + "\',\'" + "NOW()" + "\',\'" + comment + "\','" + billAmt + "\');";
-			esql.executeUpdate(query);
-		
 	}
 	
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		try {
-			String less_than_100 = "SELECT Cust.fname, Cust.lname, CR.date, CR.comment, CR.bill ";
-			       less_than_100 += "FROM Customer Cust, Service_Request SR, Closed_Request CR ";
-			       less_than_100 += "WHERE CR.bill < 100 ";
-			       less_than_100 += "AND Cust.id = SR.customer_id ";
-			       less_than_100 += "AND SR.rid = CR.rid;";
-
-			int numRows = esql.executeQueryAndPrintResult(less_than_100);
+			if (REPORT_PAGE_SIZE > 0) {
+				browse(esql, ReportPager.BILL_LESS_THAN_100);
+				return;
+			}
+			int numRows = printReport(esql, "customersWithBillLessThan100", BILL_LESS_THAN_100_KEY, BILL_LESS_THAN_100_TABLES, BILL_LESS_THAN_100_SQL);
 			System.out.println("Total row(s): " + numRows);
 		}
 		catch (Exception e) {
@@ -568,9 +1123,11 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 	
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		try{
- 		String query = "SELECT numList.fname, numList.lname, numList.numOwnedCars FROM (SELECT C.id, C.fname, C.lname, COUNT(*) AS numOwnedCars FROM Owns O,Customer C WHERE C.id = O.customer_id GROUP BY C.id, C.fname, C.lname) AS numList WHERE numOwnedCars > 20;";
-		
- 		int rowCount = esql.executeQueryAndPrintResult(query);
+			if (REPORT_PAGE_SIZE > 0) {
+				browse(esql, ReportPager.MORE_THAN_20_CARS);
+				return;
+			}
+ 		int rowCount = printReport(esql, "customersWithMoreThan20Cars", MORE_THAN_20_CARS_KEY, MORE_THAN_20_CARS_TABLES, MORE_THAN_20_CARS_SQL);
  		System.out.println ("total row(s): " + rowCount);
 		}catch(Exception e){
  			System.err.println (e.getMessage());
@@ -579,13 +1136,11 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try {
-			String query = "SELECT C.make, C.model, C.year ";
-			       query += "FROM Car C, Service_Request S ";
-			       query += "WHERE S.car_vin = C.vin ";
-			       query += "AND S.odometer < 50000 ";
-			       query += "AND C.year < 1995;";
-
-			int numRows = esql.executeQueryAndPrintResult(query);
+			if (REPORT_PAGE_SIZE > 0) {
+				browse(esql, ReportPager.CARS_BEFORE_1995);
+				return;
+			}
+			int numRows = printReport(esql, "carsBefore1995With50000Miles", CARS_BEFORE_1995_KEY, CARS_BEFORE_1995_TABLES, CARS_BEFORE_1995_SQL);
 			System.out.println("Total row(s): " + numRows);
 		}
 		catch (Exception e) {
@@ -596,11 +1151,13 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 		try{	
 			System.out.print("Input how many cars should be listed: ");
-			String k_amount = in.readLine();
+			int k_amount = Integer.parseInt(in.readLine());
+			if (REPORT_PAGE_SIZE > 0) {
+				browse(esql, ReportPager.topCars(k_amount));
+				return;
+			}
 				
-			String query = "SELECT C.make, C.model, topNumServices.numOfServices FROM Car C, (SELECT S.car_vin, COUNT(S.car_vin) as numOfServices FROM Service_Request S WHERE S.rid NOT IN (SELECT C.rid FROM Closed_Request C) GROUP BY S.car_vin ORDER BY numOfServices DESC) topNumServices WHERE C.vin = topNumServices.car_vin ORDER BY topNumServices.numOfServices DESC LIMIT " + k_amount + ";";
-			
-			esql.executeQueryAndPrintResult(query);
+			kCarsWithTheMostServices(esql, k_amount).print(System.out);
  			//System.out.println ("total row(s): " + rowCount);
 		}
 		catch (Exception e) {
@@ -610,16 +1167,11 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
 		try {
-			String query = "SELECT C.fname, C.lname, Total ";
-			       query += "FROM Customer C, ";
-					query += "(SELECT SUM(CR.bill) AS Total, SR.customer_id ";
-					query += "FROM Closed_Request CR, Service_Request SR ";
-					query += "WHERE CR.rid = SR.rid ";
-					query += "GROUP BY SR.customer_id) AS AggrCost ";
-			       query += "WHERE C.id = AggrCost.customer_id ";
-			       query += "ORDER BY AggrCost.Total DESC;";
-
-			int numRows = esql.executeQueryAndPrintResult(query);
+			if (REPORT_PAGE_SIZE > 0) {
+				browse(esql, ReportPager.TOTAL_BILL_DESC);
+				return;
+			}
+			int numRows = printReport(esql, "customersByTotalBillDesc", TOTAL_BILL_DESC_KEY, TOTAL_BILL_DESC_TABLES, TOTAL_BILL_DESC_SQL);
 			System.out.println("Total row(s): " + numRows);
 		}
 		catch (Exception e) {
@@ -627,4 +1179,377 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 		}
 	}
 	
+	public static void ShowDashboard(MechanicShop esql){//11
+		try {
+			System.out.print("Input how many cars should be listed: ");
+			int k_amount = Integer.parseInt(in.readLine());
+			Dashboard dashboard = new Dashboard(esql, k_amount, DASHBOARD_TIMEOUT_MS);
+			dashboard.print(dashboard.run(), REPORT_PAGE_SIZE, System.out);
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Method to print a report REPORT_PAGE_SIZE rows at a time, moving to the
+	 * next or previous page as asked
+	 */
+	static void browse(MechanicShop esql, ReportPager.Report report) throws Exception {
+		ReportPager.Page page = ReportPager.first(esql, report, REPORT_PAGE_SIZE);
+		int firstRow = 1;
+		while (true) {
+			int rowCount = page.rows.rowCount();
+			if (rowCount == 0) {
+				System.out.println(firstRow == 1 ? "Total row(s): 0" : "No more row(s).");
+				return;
+			}
+			page.rows.print(System.out);
+			System.out.println("Row(s) " + firstRow + "-" + (firstRow + rowCount - 1));
+			if (!page.hasNext && !page.hasPrevious) return;
+			System.out.print((page.hasNext ? "n: next page, " : "") + (page.hasPrevious ? "p: previous page, " : "") + "Enter: back to menu: ");
+			String choice = in.readLine();
+			if (choice == null) return;
+			choice = choice.trim();
+			if (page.hasNext && choice.equalsIgnoreCase("n")) {
+				firstRow += rowCount;
+				page = ReportPager.next(esql, report, page, REPORT_PAGE_SIZE);
+			} else if (page.hasPrevious && choice.equalsIgnoreCase("p")) {
+				page = ReportPager.previous(esql, report, page, REPORT_PAGE_SIZE);
+				firstRow = page.hasPrevious ? Math.max(1, firstRow - page.rows.rowCount()) : 1;
+			} else {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Parameterized versions of the menu operations.  The interactive
+	 * methods above read their input from the terminal and call these;
+	 * the benchmarks and any other front end call them directly.
+	 */
+	
+	/**
+	 * Inserts a new customer.
+	 * 
+	 * @return the new customer's id
+	 */
+	public static int addCustomer(MechanicShop esql, String fname, String lname, String phone, String address) throws SQLException {
+		return esql.getMetrics().time("addCustomer", () -> {
+			int id = esql.nextId(IdAllocator.CUSTOMER_ID);
+			esql.executeUpdate(INSERT_CUSTOMER_SQL, id, fname, lname, phone, address);
+			esql.getReportCache().invalidate(ReportCache.CUSTOMER);
+			esql.getCustomerNames().added(id, fname, lname, phone);
+			return id;
+		});
+	}
+	
+	/**
+	 * Inserts a new mechanic.
+	 * 
+	 * @return the new mechanic's id
+	 */
+	public static int addMechanic(MechanicShop esql, String fname, String lname, int experience) throws SQLException {
+		return esql.getMetrics().time("addMechanic", () -> {
+			int id = esql.nextId(IdAllocator.MECHANIC_ID);
+			esql.getMembership().addMechanic(id);
+			esql.executeUpdate(INSERT_MECHANIC_SQL, id, fname, lname, experience);
+			esql.getMembership().addMechanic(id);
+			esql.getReportCache().invalidate(ReportCache.MECHANIC);
+			return id;
+		});
+	}
+	
+	/**
+	 * Inserts a new car.
+	 */
+	public static void addCar(MechanicShop esql, String vin, String make, String model, int year) throws SQLException {
+		esql.getMetrics().time("addCar", () -> {
+			esql.executeUpdate(INSERT_CAR_SQL, vin, make, model, year);
+			esql.getReportCache().invalidate(ReportCache.CAR);
+			return null;
+		});
+	}
+	
+	/**
+	 * Records that a customer owns a car.
+	 * 
+	 * @return the new ownership id
+	 */
+	public static int addOwnership(MechanicShop esql, int customerId, String vin) throws SQLException {
+		return esql.getMetrics().time("addOwnership", () -> {
+			int id = esql.nextId(IdAllocator.OWNERSHIP_ID);
+			esql.executeUpdate(INSERT_OWNS_SQL, id, customerId, vin);
+			esql.getReportCache().invalidate(ReportCache.OWNS);
+			return id;
+		});
+	}
+	
+	/**
+	 * @return every column of the customers with the given last name
+	 */
+	public static ColumnarResult findCustomersByLastName(MechanicShop esql, String lname) throws SQLException {
+		return esql.getMetrics().time("findCustomersByLastName", () -> esql.executeQueryAndReturnColumnar(FIND_CUSTOMERS_BY_LAST_NAME_SQL, lname));
+	}
+	
+	/**
+	 * Finds customers by a last name, "last first" or "first last", any of
+	 * them possibly cut short or mistyped, or by the leading digits of
+	 * their phone number (see NameIndex).
+	 * 
+	 * @return id, fname, lname and phone of the best matches, best first
+	 */
+	public static ColumnarResult searchCustomers(MechanicShop esql, String query, int limit) throws SQLException {
+		return esql.getMetrics().time("searchCustomers", () -> esql.getCustomerNames().search(query, limit));
+	}
+	
+	/**
+	 * @return the cars owned by a customer, numbered in VIN order
+	 */
+	public static ColumnarResult listCustomerCars(MechanicShop esql, int customerId) throws SQLException {
+		return esql.getMetrics().time("listCustomerCars", () -> esql.executeQueryAndReturnColumnar(LIST_CUSTOMER_CARS_SQL, customerId));
+	}
+	
+	/*
+	 * The VIN checks ask the MembershipFilter first: a key it has never seen
+	 * is rejected without a database round trip.  A rid or mechanic id the
+	 * filter has not seen may still have been written by another process,
+	 * so those are always looked up by primary key, and recorded in the
+	 * filter when found.
+	 */
+	
+	/**
+	 * @return whether the VIN belongs to a car that has an owner
+	 */
+	public static boolean isOwnedCar(MechanicShop esql, String vin) throws SQLException {
+		return esql.executeQuery(CHECK_OWNED_VIN_SQL, vin) > 0;
+	}
+	
+	/**
+	 * @return whether the customer owns the car with this VIN
+	 */
+	public static boolean ownsCar(MechanicShop esql, int customerId, String vin) throws SQLException {
+		return esql.executeQuery(CHECK_CUSTOMER_OWNS_VIN_SQL, customerId, vin) > 0;
+	}
+	
+	public static boolean serviceRequestExists(MechanicShop esql, int rid) throws SQLException {
+		if (esql.executeQuery(CHECK_SERVICE_REQUEST_SQL, rid) == 0) return false;
+		if (MEMBERSHIP_FILTER) esql.getMembership().addServiceRequest(rid);
+		return true;
+	}
+	
+	public static boolean mechanicExists(MechanicShop esql, int mechanicId) throws SQLException {
+		if (esql.executeQuery(CHECK_MECHANIC_SQL, mechanicId) == 0) return false;
+		if (MEMBERSHIP_FILTER) esql.getMembership().addMechanic(mechanicId);
+		return true;
+	}
+	
+	/*
+	 * Opening and closing a request call the functions of migration 003,
+	 * which check, insert and commit in one round trip.  Without them the
+	 * same is done with separate statements.
+	 */
+	
+	/**
+	 * Opens a service request dated today for a car of the customer.
+	 * 
+	 * @return the new request's rid
+	 * @throws java.lang.IllegalArgumentException when the customer does not own the car
+	 */
+	public static int insertServiceRequest(MechanicShop esql, int customerId, String vin, int odometer, String complaint) throws SQLException {
+		return esql.getMetrics().time("insertServiceRequest", () -> {
+			int rid = esql.nextId(IdAllocator.SERVICE_REQUEST_RID);
+			esql.getMembership().addServiceRequest(rid);
+			if (!esql.callWriteFunction(OPEN_SERVICE_REQUEST_SQL, rid, customerId, vin, odometer, complaint, null, null, null, null)) {
+				//the check open_service_request makes (MS004), by primary key since the filter only hints
+				ShopRules.checkOpen(esql.executeQuery(CHECK_CUSTOMER_OWNS_VIN_SQL, customerId, vin) > 0);
+				esql.executeUpdate(INSERT_SERVICE_REQUEST_SQL, rid, customerId, vin, odometer, complaint);
+			}
+			esql.getMembership().addServiceRequest(rid);
+			esql.getReportCache().invalidate(ReportCache.SERVICE_REQUEST);
+			esql.getOpenRequests().opened(rid, vin);
+			return rid;
+		});
+	}
+	
+	/**
+	 * Adds a car new to the shop, records that the customer owns it and
+	 * opens a service request dated today for it, all in one transaction.
+	 * 
+	 * @return the new request's rid
+	 */
+	public static int openServiceRequestForNewCar(MechanicShop esql, int customerId, String vin, String make, String model, int year,
+			int odometer, String complaint) throws SQLException {
+		return esql.getMetrics().time("openServiceRequestForNewCar", () -> {
+			int ownershipId = esql.nextId(IdAllocator.OWNERSHIP_ID);
+			int rid = esql.nextId(IdAllocator.SERVICE_REQUEST_RID);
+			esql.getMembership().addServiceRequest(rid);
+			if (!esql.callWriteFunction(OPEN_SERVICE_REQUEST_SQL, rid, customerId, vin, odometer, complaint, ownershipId, make, model, year)) {
+				Connection conn = esql.borrowConnection();
+				try{
+					conn.setAutoCommit(false);
+					esql.executeUpdate(INSERT_CAR_SQL, vin, make, model, year);
+					esql.executeUpdate(INSERT_OWNS_SQL, ownershipId, customerId, vin);
+					esql.executeUpdate(INSERT_SERVICE_REQUEST_SQL, rid, customerId, vin, odometer, complaint);
+					conn.commit();
+				}catch(SQLException e){
+					rollbackQuietly(conn);
+					throw e;
+				}finally{
+					try{
+						conn.setAutoCommit(true);
+					}catch(SQLException e){
+						// the pool resets the connection on release anyway
+					}
+					esql.releaseConnection(conn);
+				}
+			}
+			esql.getMembership().addServiceRequest(rid);
+			esql.getReportCache().invalidate(ReportCache.CAR | ReportCache.OWNS | ReportCache.SERVICE_REQUEST);
+			esql.getOpenRequests().opened(rid, vin);
+			return rid;
+		});
+	}
+	
+	/**
+	 * Closes a service request as of today.
+	 * 
+	 * @return the new closed request's wid
+	 * @throws java.lang.IllegalArgumentException when the request or the
+	 *         mechanic does not exist, or the request is dated in the future
+	 */
+	public static int closeServiceRequest(MechanicShop esql, int rid, int mechanicId, String comment, int bill) throws SQLException {
+		return esql.getMetrics().time("closeServiceRequest", () -> {
+			//check that the request exists and the closing date is after the request date
+			//a filter miss is only a hint, confirmed by primary key before rejecting
+			if (MEMBERSHIP_FILTER && !esql.getMembership().mayBeServiceRequest(rid) && !serviceRequestExists(esql, rid)) {
+				throw new IllegalArgumentException(ShopRules.NO_SUCH_REQUEST);
+			}
+			if (MEMBERSHIP_FILTER && !esql.getMembership().mayBeMechanic(mechanicId) && !mechanicExists(esql, mechanicId)) {
+				throw new IllegalArgumentException(ShopRules.NO_SUCH_MECHANIC);
+			}
+			int wid = esql.nextId(IdAllocator.CLOSED_REQUEST_WID);
+			if (esql.callWriteFunction(CLOSE_SERVICE_REQUEST_SQL, wid, rid, mechanicId, comment, bill)) {
+				esql.getReportCache().invalidate(ReportCache.CLOSED_REQUEST);
+				esql.getOpenRequests().closed(rid);
+				return wid;
+			}
+			List<List<String>> dateCheck = esql.executeQueryAndReturnResult(CHECK_REQUEST_DATE_SQL, rid);
+			boolean exists = !dateCheck.isEmpty();
+			boolean datedByToday = exists && "t".equals(dateCheck.get(0).get(0));
+			ShopRules.checkClose(exists, datedByToday, datedByToday && mechanicExists(esql, mechanicId));
+			esql.executeUpdate(INSERT_CLOSED_REQUEST_SQL, wid, rid, mechanicId, comment, bill);
+			esql.getReportCache().invalidate(ReportCache.CLOSED_REQUEST);
+			esql.getOpenRequests().closed(rid);
+			return wid;
+		});
+	}
+	
+	/*
+	 * The reports are served from the report cache; the table bits list
+	 * what each query reads, so only writes to those tables recompute it.
+	 * The top-K report is answered by the OpenRequestIndex instead.  The
+	 * queries run on a standby that has this process's writes, if any.
+	 */
+	
+	public static ColumnarResult customersWithBillLessThan100(MechanicShop esql) throws SQLException {//6
+		return cachedReport(esql, "customersWithBillLessThan100", BILL_LESS_THAN_100_KEY, BILL_LESS_THAN_100_TABLES, BILL_LESS_THAN_100_SQL);
+	}
+	
+	public static ColumnarResult customersWithMoreThan20Cars(MechanicShop esql) throws SQLException {//7
+		return cachedReport(esql, "customersWithMoreThan20Cars", MORE_THAN_20_CARS_KEY, MORE_THAN_20_CARS_TABLES, MORE_THAN_20_CARS_SQL);
+	}
+	
+	public static ColumnarResult carsBefore1995With50000Miles(MechanicShop esql) throws SQLException {//8
+		return cachedReport(esql, "carsBefore1995With50000Miles", CARS_BEFORE_1995_KEY, CARS_BEFORE_1995_TABLES, CARS_BEFORE_1995_SQL);
+	}
+	
+	public static ColumnarResult kCarsWithTheMostServices(MechanicShop esql, int k) throws SQLException {//9
+		return esql.getMetrics().time("kCarsWithTheMostServices", () -> {
+			if (TOP_K_INDEX) return esql.getOpenRequests().topK(k);
+			return esql.getReportCache().get("kCars:" + k, ReportCache.CAR | ReportCache.SERVICE_REQUEST | ReportCache.CLOSED_REQUEST,
+					() -> esql.readOnly(true, () -> esql.executeQueryAndReturnColumnar(K_CARS_WITH_MOST_SERVICES_SQL, k)));
+		});
+	}
+	
+	public static ColumnarResult customersByTotalBillDesc(MechanicShop esql) throws SQLException {//10
+		return cachedReport(esql, "customersByTotalBillDesc", TOTAL_BILL_DESC_KEY, TOTAL_BILL_DESC_TABLES, TOTAL_BILL_DESC_SQL);
+	}
+	
+	private static ColumnarResult cachedReport(MechanicShop esql, String operation, String key, int tables, String sql) throws SQLException {
+		return esql.getMetrics().time(operation, () -> esql.getReportCache().get(key, tables,
+				() -> esql.readOnly(true, () -> esql.executeQueryAndReturnColumnar(sql))));
+	}
+	
+	/**
+	 * Method to print a report for the menu.  A cached result is printed as
+	 * is; on a miss the rows are printed as they stream in, and kept for
+	 * the cache only while they fit in it, so a large report never has to
+	 * be held in memory.
+	 * 
+	 * @return the number of rows printed
+	 */
+	static int printReport(MechanicShop esql, String operation, String key, int tables, String sql) throws SQLException {
+		return esql.getMetrics().time(operation, () -> {
+			ReportCache cache = esql.getReportCache();
+			ColumnarResult cached = cache.peek(key);
+			if (cached != null) return cached.print(System.out);
+			long[] versions = cache.versions();
+			ReportPrinter printer = new ReportPrinter(cache.maxCells());
+			int rows = esql.readOnly(true, () -> {
+				printer.restart();
+				return esql.executeQueryStreaming(sql, printer);
+			});
+			if (printer.copy != null) cache.put(key, tables, versions, printer.copy.build());
+			return rows;
+		});
+	}
+	
+	/**
+	 * Prints rows as they arrive, in the layout of ColumnarResult.print, and
+	 * copies them for the report cache until they exceed maxCells.
+	 */
+	private static final class ReportPrinter implements RowHandler {
+		private final long maxCells;
+		ColumnarResult.Builder copy = null;
+		private String[] header;
+		private int rows = 0;
+
+		ReportPrinter(long maxCells) {
+			this.maxCells = maxCells;
+		}
+
+		/** Starts the report over, when readOnly repeats the query on the primary. */
+		void restart() {
+			if (rows > 0) System.out.println("(the standby failed, printing the report again from the primary)");
+			copy = maxCells > 0 ? new ColumnarResult.Builder() : null;
+			rows = 0;
+		}
+
+		@Override
+		public void start(ResultSetMetaData rsmd) throws SQLException {
+			header = new String[rsmd.getColumnCount()];
+			for (int i = 0; i < header.length; ++i) header[i] = rsmd.getColumnName(i + 1);
+			if (copy != null) copy.start(rsmd);
+		}
+
+		@Override
+		public void row(ResultSet rs) throws SQLException {
+			StringBuilder line = new StringBuilder();
+			if (rows == 0) {
+				for (String name : header) line.append(name).append('\t');
+				System.out.println(line);
+				line.setLength(0);
+			}
+			for (int i = 1; i <= header.length; ++i) line.append(rs.getString(i)).append('\t');
+			System.out.println(line);
+			++rows;
+			if (copy != null) {
+				// too large to cache: drop the copy rather than hold the whole report
+				if ((long) rows * Math.max(1, header.length) > maxCells) copy = null;
+				else copy.row(rs);
+			}
+		}
+	}
+	
 }
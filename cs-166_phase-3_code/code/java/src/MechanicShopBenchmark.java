@@ -0,0 +1,365 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks for the MechanicShop menu operations, result decoding and key
+ * allocation, run against a live database or the in-memory engine.
+ *
+ * Works like a JMH benchmark run with Level.Iteration fixtures: every
+ * benchmark gets warmup iterations and then measured iterations of a fixed
+ * number of invocations, each invocation is timed individually, and the
+ * results are reported as average time per operation with percentiles and
+ * as throughput.  The --json output follows the layout of JMH's JSON result
+ * format, so runs of different builds can be compared with the usual tools.
+ *
+ * Usage:
+ *   java MechanicShopBenchmark <dbname> <port> <user>
+ *        [--datasets name=dir,name=dir...] [--warmup n] [--iterations n]
+ *        [--only substring] [--json file]
+ *   java MechanicShopBenchmark --memory --datasets name=dir,...
+ *        [--warmup n] [--iterations n] [--only substring] [--json file]
+ *
+ * Each dataset directory (csv_data, or one written by the data generator
+ * at some scale factor) is bulk loaded before its benchmarks run, so the
+ * database is overwritten.  Without --datasets the current contents are
+ * used as they are.
+ *
+ * The menu operations run through a ShopRepository.  With --memory that is
+ * a MemoryRepository and no database is needed, which shows what the
+ * application logic costs without the server and the network; the
+ * benchmarks of the database's own machinery (SQL top-K, index rebuild,
+ * report cache, decoding, key allocation) are left out then.
+ */
+public class MechanicShopBenchmark {
+
+	/** One timed call; i counts invocations within the iteration. */
+	interface Invocation {
+		void run(int i) throws Exception;
+	}
+
+	/** Unmeasured per-iteration preparation, given the invocation count. */
+	interface Fixture {
+		void prepare(int invocations) throws Exception;
+	}
+
+	static final class Benchmark {
+		final String name;
+		final int invocations;
+		final Fixture fixture;
+		final Invocation invocation;
+
+		Benchmark(String name, int invocations, Fixture fixture, Invocation invocation) {
+			this.name = name;
+			this.invocations = invocations;
+			this.fixture = fixture;
+			this.invocation = invocation;
+		}
+	}
+
+	static final class Result {
+		String benchmark;
+		String dataset;
+		int iterations;
+		long operations;
+		double[] iterationMeansMicros;
+		double meanMicros;
+		double p50, p90, p99, p999, max;
+		double opsPerSecond;
+	}
+
+	private final ShopRepository repo;
+	/** the database, or null for the in-memory engine */
+	private final MechanicShop esql;
+	private final Random random = new Random(42);
+	private final AtomicLong unique = new AtomicLong(System.currentTimeMillis() % 1000000000L);
+
+	// fixtures sampled from the loaded dataset
+	private int[] ownerIds = new int[0];
+	private String[] ownedVins = new String[0];
+	private String[] ownerLastNames = new String[0];
+	private int[] mechanicIds = new int[0];
+	private int[] openRids = new int[0];
+
+	MechanicShopBenchmark(ShopRepository repo) {
+		this.repo = repo;
+		this.esql = repo instanceof PostgresRepository ? ((PostgresRepository) repo).shop() : null;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean memory = args.length > 0 && args[0].equals("--memory");
+		if (!memory && args.length < 3) {
+			System.err.println("Usage: java " + MechanicShopBenchmark.class.getName() +
+				" <dbname> <port> <user> | --memory [--datasets name=dir,...] [--warmup n] [--iterations n] [--only substring] [--json file]");
+			return;
+		}
+		Map<String, String> datasets = new LinkedHashMap<String, String>();
+		int warmup = 2;
+		int iterations = 5;
+		String only = null;
+		String json = null;
+		for (int i = memory ? 1 : 3; i < args.length; i += 2) {
+			String value = i + 1 < args.length ? args[i + 1] : "";
+			if (args[i].equals("--datasets")) {
+				for (String spec : value.split(",")) {
+					String[] kv = spec.split("=", 2);
+					datasets.put(kv[0], kv.length > 1 ? kv[1] : kv[0]);
+				}
+			}
+			else if (args[i].equals("--warmup")) warmup = Integer.parseInt(value);
+			else if (args[i].equals("--iterations")) iterations = Integer.parseInt(value);
+			else if (args[i].equals("--only")) only = value;
+			else if (args[i].equals("--json")) json = value;
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if (datasets.isEmpty()) {
+			if (memory) throw new IllegalArgumentException("--memory needs --datasets");
+			datasets.put("current", null);
+		}
+
+		MechanicShop esql = null;
+		ShopRepository repo;
+		if (memory) {
+			repo = new MemoryRepository();
+		} else {
+			Class.forName("org.postgresql.Driver");
+			esql = new MechanicShop(args[0], args[1], args[2], "");
+			repo = esql.getRepository();
+		}
+		List<Result> results = new ArrayList<Result>();
+		try {
+			MechanicShopBenchmark bench = new MechanicShopBenchmark(repo);
+			for (Map.Entry<String, String> dataset : datasets.entrySet()) {
+				if (dataset.getValue() != null) {
+					System.out.println("# Loading dataset " + dataset.getKey() + " from " + dataset.getValue());
+					repo.load(new File(dataset.getValue()));
+				}
+				bench.sampleFixtures();
+				for (Benchmark b : bench.benchmarks()) {
+					if (only != null && !b.name.contains(only)) continue;
+					results.add(bench.run(b, dataset.getKey(), warmup, iterations));
+				}
+			}
+		} finally {
+			if (esql != null) esql.cleanup();
+		}
+
+		printSummary(results);
+		if (json != null) {
+			writeJson(results, warmup, new File(json));
+			System.out.println("# JSON results written to " + json);
+		}
+	}
+
+	/**
+	 * The benchmarks, one per menu operation plus result decoding and key
+	 * allocation.  InsertServiceRequest and CloseServiceRequest replay the
+	 * same sequence of lookups and checks the interactive menu performs.
+	 * Only the menu operations run on the in-memory engine.
+	 */
+	List<Benchmark> benchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		list.add(new Benchmark("addCustomer", 200, null, i ->
+			repo.addCustomer("Bench", "Customer" + i, "(555)555-0100", "1 Benchmark Way")));
+		list.add(new Benchmark("addMechanic", 200, null, i ->
+			repo.addMechanic("Bench", "Mechanic" + i, i % 40)));
+		list.add(new Benchmark("addCar", 200, null, i ->
+			repo.addCar(uniqueVin(), "Benchmark", "Model " + (i % 10), 1970 + i % 50)));
+		list.add(new Benchmark("insertServiceRequest", 200, null, i -> {
+			int pick = random.nextInt(ownerIds.length);
+			repo.findCustomersByLastName(ownerLastNames[pick]);
+			repo.listCustomerCars(ownerIds[pick]);
+			repo.isOwnedCar(ownedVins[pick]);
+			repo.insertServiceRequest(ownerIds[pick], ownedVins[pick], 1 + random.nextInt(200000), "benchmark");
+		}));
+		list.add(new Benchmark("closeServiceRequest", 200, n -> openRequests(n), i -> {
+			int mechanic = mechanicIds[random.nextInt(mechanicIds.length)];
+			repo.serviceRequestExists(openRids[i]);
+			repo.mechanicExists(mechanic);
+			repo.closeServiceRequest(openRids[i], mechanic, "benchmark", 1 + random.nextInt(1000));
+		}));
+		if (esql == null) {
+			list.add(new Benchmark("listCustomersWithBillLessThan100", 5, null, i -> repo.customersWithBillLessThan100()));
+			list.add(new Benchmark("listCustomersWithMoreThan20Cars", 5, null, i -> repo.customersWithMoreThan20Cars()));
+			list.add(new Benchmark("listCarsBefore1995With50000Miles", 5, null, i -> repo.carsBefore1995With50000Miles()));
+			list.add(new Benchmark("listKCarsWithTheMostServices", 1000, null, i -> repo.kCarsWithTheMostServices(10)));
+			list.add(new Benchmark("listCustomersInDescendingOrderOfTheirTotalBill", 5, null, i -> repo.customersByTotalBillDesc()));
+			return list;
+		}
+		// the report benchmarks measure the queries, so the cache is emptied first
+		final ReportCache reports = esql.getReportCache();
+		list.add(new Benchmark("listCustomersWithBillLessThan100", 5, null, i -> {
+			reports.invalidateAll();
+			MechanicShop.customersWithBillLessThan100(esql);
+		}));
+		list.add(new Benchmark("listCustomersWithMoreThan20Cars", 5, null, i -> {
+			reports.invalidateAll();
+			MechanicShop.customersWithMoreThan20Cars(esql);
+		}));
+		list.add(new Benchmark("listCarsBefore1995With50000Miles", 5, null, i -> {
+			reports.invalidateAll();
+			MechanicShop.carsBefore1995With50000Miles(esql);
+		}));
+		list.add(new Benchmark("listKCarsWithTheMostServices", 1000, n -> esql.getOpenRequests().rebuild(), i ->
+			MechanicShop.kCarsWithTheMostServices(esql, 10)));
+		list.add(new Benchmark("listKCarsWithTheMostServicesSql", 5, null, i ->
+			esql.executeQueryAndReturnColumnar(MechanicShop.K_CARS_WITH_MOST_SERVICES_SQL, 10)));
+		list.add(new Benchmark("rebuildOpenRequestIndex", 3, null, i ->
+			esql.getOpenRequests().rebuild()));
+		list.add(new Benchmark("listCustomersInDescendingOrderOfTheirTotalBill", 5, null, i -> {
+			reports.invalidateAll();
+			MechanicShop.customersByTotalBillDesc(esql);
+		}));
+		list.add(new Benchmark("cachedReport", 10000, n -> MechanicShop.customersByTotalBillDesc(esql), i ->
+			MechanicShop.customersByTotalBillDesc(esql)));
+		list.add(new Benchmark("decodeListOfLists", 3, null, i ->
+			esql.executeQueryAndReturnResult("SELECT * FROM Closed_Request")));
+		list.add(new Benchmark("decodeColumnar", 3, null, i ->
+			esql.executeQueryAndReturnColumnar("SELECT * FROM Closed_Request")));
+		list.add(new Benchmark("allocateId", 10000, null, i ->
+			esql.nextId(IdAllocator.CUSTOMER_ID)));
+		return list;
+	}
+
+	Result run(Benchmark b, String dataset, int warmup, int iterations) throws Exception {
+		System.out.println("# Benchmark: " + b.name + " (dataset " + dataset + ", " + b.invocations + " ops/iteration)");
+		for (int it = 0; it < warmup; ++it) {
+			long[] t = iteration(b);
+			System.out.println(String.format("# Warmup Iteration %d: %.3f us/op", it + 1, mean(t) / 1e3));
+		}
+		long[] all = new long[b.invocations * iterations];
+		double[] means = new double[iterations];
+		long totalNanos = 0;
+		for (int it = 0; it < iterations; ++it) {
+			long[] t = iteration(b);
+			System.arraycopy(t, 0, all, it * b.invocations, t.length);
+			means[it] = mean(t) / 1e3;
+			for (long v : t) totalNanos += v;
+			System.out.println(String.format("Iteration %d: %.3f us/op", it + 1, means[it]));
+		}
+		Arrays.sort(all);
+		Result r = new Result();
+		r.benchmark = b.name;
+		r.dataset = dataset;
+		r.iterations = iterations;
+		r.operations = all.length;
+		r.iterationMeansMicros = means;
+		r.meanMicros = mean(all) / 1e3;
+		r.p50 = percentile(all, 0.50);
+		r.p90 = percentile(all, 0.90);
+		r.p99 = percentile(all, 0.99);
+		r.p999 = percentile(all, 0.999);
+		r.max = all[all.length - 1] / 1e3;
+		r.opsPerSecond = all.length / (totalNanos / 1e9);
+		return r;
+	}
+
+	private long[] iteration(Benchmark b) throws Exception {
+		if (b.fixture != null) b.fixture.prepare(b.invocations);
+		long[] times = new long[b.invocations];
+		for (int i = 0; i < b.invocations; ++i) {
+			long start = System.nanoTime();
+			b.invocation.run(i);
+			times[i] = System.nanoTime() - start;
+		}
+		return times;
+	}
+
+	/** Samples customers with their cars, and the mechanics, from the loaded data. */
+	void sampleFixtures() throws Exception {
+		ColumnarResult owns = repo.sampleOwnedCars(2000);
+		ownerIds = new int[owns.rowCount()];
+		ownedVins = new String[owns.rowCount()];
+		ownerLastNames = new String[owns.rowCount()];
+		for (int r = 0; r < owns.rowCount(); ++r) {
+			ownerIds[r] = owns.getInt(r, 0);
+			ownedVins[r] = owns.getString(r, 1);
+			ownerLastNames[r] = owns.getString(r, 2);
+		}
+		ColumnarResult mechanics = repo.sampleMechanics(2000);
+		mechanicIds = new int[mechanics.rowCount()];
+		for (int r = 0; r < mechanics.rowCount(); ++r) mechanicIds[r] = mechanics.getInt(r, 0);
+		if (ownerIds.length == 0 || mechanicIds.length == 0) {
+			throw new IllegalStateException("The dataset needs at least one owned car and one mechanic to benchmark");
+		}
+	}
+
+	/** Opens n service requests (unmeasured) for the next closeServiceRequest iteration. */
+	private void openRequests(int n) throws Exception {
+		openRids = new int[n];
+		for (int i = 0; i < n; ++i) {
+			int pick = random.nextInt(ownerIds.length);
+			openRids[i] = repo.insertServiceRequest(ownerIds[pick], ownedVins[pick], 1000, "benchmark");
+		}
+	}
+
+	private String uniqueVin() {
+		return String.format("BN%014d", unique.incrementAndGet());
+	}
+
+	private static double mean(long[] nanos) {
+		double sum = 0;
+		for (long v : nanos) sum += v;
+		return sum / nanos.length;
+	}
+
+	private static double percentile(long[] sortedNanos, double p) {
+		int index = (int) Math.ceil(p * sortedNanos.length) - 1;
+		return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e3;
+	}
+
+	static void printSummary(List<Result> results) {
+		System.out.println();
+		System.out.println(String.format("%-48s %-10s %12s %12s %12s %12s %12s",
+			"Benchmark", "Dataset", "avg us/op", "p50", "p99", "max", "ops/s"));
+		for (Result r : results) {
+			System.out.println(String.format("%-48s %-10s %12.1f %12.1f %12.1f %12.1f %12.1f",
+				r.benchmark, r.dataset, r.meanMicros, r.p50, r.p99, r.max, r.opsPerSecond));
+		}
+	}
+
+	static void writeJson(List<Result> results, int warmup, File file) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			out.write("[\n");
+			for (int i = 0; i < results.size(); ++i) {
+				Result r = results.get(i);
+				StringBuilder raw = new StringBuilder();
+				for (int it = 0; it < r.iterationMeansMicros.length; ++it) {
+					if (it > 0) raw.append(", ");
+					raw.append(r.iterationMeansMicros[it]);
+				}
+				out.write("  {\n");
+				out.write("    \"benchmark\": \"MechanicShopBenchmark." + r.benchmark + "\",\n");
+				out.write("    \"mode\": \"avgt\",\n");
+				out.write("    \"threads\": 1,\n");
+				out.write("    \"warmupIterations\": " + warmup + ",\n");
+				out.write("    \"measurementIterations\": " + r.iterations + ",\n");
+				out.write("    \"params\": { \"dataset\": \"" + r.dataset + "\" },\n");
+				out.write("    \"primaryMetric\": {\n");
+				out.write("      \"score\": " + r.meanMicros + ",\n");
+				out.write("      \"scoreUnit\": \"us/op\",\n");
+				out.write("      \"scorePercentiles\": { \"50.0\": " + r.p50 + ", \"90.0\": " + r.p90 +
+					", \"99.0\": " + r.p99 + ", \"99.9\": " + r.p999 + ", \"100.0\": " + r.max + " },\n");
+				out.write("      \"rawData\": [[" + raw + "]]\n");
+				out.write("    },\n");
+				out.write("    \"secondaryMetrics\": {\n");
+				out.write("      \"throughput\": { \"score\": " + r.opsPerSecond + ", \"scoreUnit\": \"ops/s\" },\n");
+				out.write("      \"operations\": { \"score\": " + r.operations + ", \"scoreUnit\": \"ops\" }\n");
+				out.write("    }\n");
+				out.write(i + 1 < results.size() ? "  },\n" : "  }\n");
+			}
+			out.write("]\n");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,248 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filters over the keys closing a service request validates: service
+ * request rids and mechanic ids.
+ *
+ * A filter answers "certainly not there" or "maybe there".  Closing a
+ * request asks the filters first: on a maybe it goes straight to the write,
+ * which checks the keys itself in the same round trip, and only a "no" is
+ * looked up by primary key before the request is rejected.  About one
+ * maybe in a hundred is for a key that is not there.
+ *
+ * The filters are loaded from the database on first use (or by rebuild())
+ * and sized for twice the rows found, at ten bits per key.  Keys are added
+ * before the row is written, so a check never misses a row that is being
+ * committed; a write that then fails only leaves a harmless false maybe.
+ * They are added again once the row is committed: a rebuild that read the
+ * tables before the commit gets them then, during or after its queries.
+ * Bits are set with atomic operations, so checks never wait for a write.
+ * A filter that outgrows its size is rebuilt on next use.
+ *
+ * Only writes made through this process are seen until the filters are
+ * reloaded (mechanicshop.membershipFilter.maxAgeMs), which is why a "no"
+ * is only a hint.  VINs and ownerships are not filtered at all: the intake
+ * needs a definite answer for them (the menu loops until the clerk picks
+ * an owned car), and a "no" confirmed by primary key saves nothing.
+ */
+public class MembershipFilter {
+
+	static final String COUNTS_SQL =
+		"SELECT (SELECT count(*) FROM Service_Request), (SELECT count(*) FROM Mechanic)";
+	static final String REQUESTS_SQL = "SELECT rid FROM Service_Request";
+	static final String MECHANICS_SQL = "SELECT id FROM Mechanic";
+
+	static final int BITS_PER_KEY = 10;
+	static final int HASHES = 7;
+	static final long MIN_CAPACITY = 1024;
+
+	/** A fixed size Bloom filter of 64-bit key hashes. */
+	static final class Bloom {
+		final AtomicLongArray words;
+		final long bits;
+		final long capacity;
+		final AtomicLong count = new AtomicLong();
+
+		Bloom(long capacity) {
+			this.capacity = Math.max(MIN_CAPACITY, capacity);
+			long words = (this.capacity * BITS_PER_KEY + 63) / 64;
+			if (words > Integer.MAX_VALUE) throw new IllegalArgumentException("Bloom filter too large: " + capacity);
+			this.words = new AtomicLongArray((int) words);
+			this.bits = words * 64;
+		}
+
+		void add(long hash) {
+			long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+			boolean added = false;
+			for (int i = 0; i < HASHES; ++i) {
+				long bit = Math.floorMod(hash + i * h2, bits);
+				long mask = 1L << (bit & 63);
+				int w = (int) (bit >>> 6);
+				long old = words.get(w);
+				while ((old & mask) == 0) {
+					if (words.compareAndSet(w, old, old | mask)) {
+						added = true;
+						break;
+					}
+					old = words.get(w);
+				}
+			}
+			// a key added again (once before its write, once after) counts once
+			if (added) count.incrementAndGet();
+		}
+
+		boolean mightContain(long hash) {
+			long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+			for (int i = 0; i < HASHES; ++i) {
+				long bit = Math.floorMod(hash + i * h2, bits);
+				if ((words.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) return false;
+			}
+			return true;
+		}
+
+		boolean full() {
+			return count.get() > capacity;
+		}
+	}
+
+	/** The filters, swapped as a whole by rebuild(). */
+	private static final class State {
+		final Bloom requests;
+		final Bloom mechanics;
+		final long loadedAt = System.currentTimeMillis();
+
+		State(long requests, long mechanics) {
+			this.requests = new Bloom(2 * requests);
+			this.mechanics = new Bloom(2 * mechanics);
+		}
+
+		boolean full() {
+			return requests.full() || mechanics.full();
+		}
+	}
+
+	/** Answers maybe to everything: every bit is set. */
+	private static final State ALL_MAYBE = new State(0, 0);
+	static {
+		for (Bloom b : new Bloom[] { ALL_MAYBE.requests, ALL_MAYBE.mechanics }) {
+			for (int w = 0; w < b.words.length(); ++w) b.words.set(w, -1L);
+		}
+	}
+
+	private final MechanicShop esql;
+	private final long maxAgeMillis;
+	private volatile State state = null;
+	// keys added while a rebuild is reading the database, replayed after it
+	private List<long[]> pending = null;
+	// bumped by reset(), so a rebuild that started before it is discarded
+	private int generation = 0;
+
+	/**
+	 * @param maxAgeMillis the filters are reloaded when older than this; 0 for never
+	 */
+	public MembershipFilter(MechanicShop esql, long maxAgeMillis) {
+		this.esql = esql;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Reloads the keys from the database, e.g. at startup or after a bulk
+	 * load.
+	 *
+	 * @throws java.sql.SQLException when a query fails
+	 */
+	public void rebuild() throws SQLException {
+		int started;
+		synchronized (this) {
+			if (pending != null) {
+				// another thread is rebuilding; its snapshot will do
+				return;
+			}
+			pending = new ArrayList<long[]>();
+			started = generation;
+		}
+		final State fresh;
+		try {
+			ColumnarResult counts = esql.executeQueryAndReturnColumnar(COUNTS_SQL);
+			fresh = new State(counts.getLong(0, 0), counts.getLong(0, 1));
+			esql.executeQueryStreaming(REQUESTS_SQL, rs -> fresh.requests.add(hash(rs.getInt(1))));
+			esql.executeQueryStreaming(MECHANICS_SQL, rs -> fresh.mechanics.add(hash(rs.getInt(1))));
+		} catch (SQLException | RuntimeException e) {
+			synchronized (this) {
+				pending = null;
+			}
+			throw e;
+		}
+		synchronized (this) {
+			for (long[] key : pending) apply(fresh, key);
+			pending = null;
+			if (generation == started) state = fresh;
+		}
+	}
+
+	/**
+	 * Drops the filters, e.g. after the tables were reloaded; they are read
+	 * again from the database on next use.
+	 */
+	public synchronized void reset() {
+		state = null;
+		++generation;
+	}
+
+	/* Keys of new rows.  Call before the row is written and again once it is committed. */
+
+	public void addServiceRequest(int rid) {
+		record(new long[] { 1, hash(rid) });
+	}
+
+	public void addMechanic(int id) {
+		record(new long[] { 2, hash(id) });
+	}
+
+	/* Checks: false means not in the database as far as this process knows, to be confirmed by the caller. */
+
+	public boolean mayBeServiceRequest(int rid) throws SQLException {
+		return current().requests.mightContain(hash(rid));
+	}
+
+	public boolean mayBeMechanic(int id) throws SQLException {
+		return current().mechanics.mightContain(hash(id));
+	}
+
+	private State current() throws SQLException {
+		State s = state;
+		if (s != null && !s.full() && (maxAgeMillis <= 0 || System.currentTimeMillis() - s.loadedAt <= maxAgeMillis)) {
+			return s;
+		}
+		if (s != null) {
+			synchronized (this) {
+				if (state == s) {
+					state = null;
+					++generation;
+				}
+			}
+		}
+		rebuild();
+		s = state;
+		if (s == null) {
+			// still loading in another thread: no filter this once, everything is a maybe
+			return ALL_MAYBE;
+		}
+		return s;
+	}
+
+	private synchronized void record(long[] key) {
+		State s = state;
+		if (s != null) apply(s, key);
+		if (pending != null) pending.add(key);
+	}
+
+	private static void apply(State s, long[] key) {
+		switch ((int) key[0]) {
+			case 1:
+				s.requests.add(key[1]);
+				break;
+			default:
+				s.mechanics.add(key[1]);
+				break;
+		}
+	}
+
+	static long hash(int n) {
+		return mix(n * 0x9e3779b97f4a7c15L);
+	}
+
+	/** The finalizer of MurmurHash3, spreads every input bit over the result. */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb53fe2acf5bbL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,750 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-process ShopRepository, for running application logic, tests and
+ * capacity estimates at memory speed without a database server.
+ *
+ * The six tables are held in maps and checked like create.sql does:
+ * primary keys, NOT NULL, column lengths (CHAR columns lose their trailing
+ * blanks, as they do when read back), the domains (experience 0 to 99,
+ * year from 1970, positive odometer and bill) and the foreign keys.  A
+ * violation throws an SQLException with the PostgreSQL SQLSTATE and
+ * changes nothing.
+ *
+ * Lookups go through hash indexes on the same keys the database has
+ * (the primary keys, Customer.lname, Owns by customer and by VIN), and the
+ * reports are read from ordered indexes kept up to date by every write,
+ * like Customer_Summary and the partial indexes of the migrations: small
+ * bills by (rid, wid), requests of old cars under 50000 miles by rid,
+ * customers with more than 20 cars by id, customers by total bill and cars
+ * by open requests.  So every report costs time in the size of its answer.
+ *
+ * One read/write lock guards everything: reads run in parallel, writes one
+ * at a time.  New keys continue after the largest loaded key.  Dates are
+ * today's local date, as CURRENT_DATE on a server in the same time zone.
+ */
+public class MemoryRepository implements ShopRepository {
+
+	static final String[] CUSTOMER_COLUMNS = { "id", "fname", "lname", "phone", "address" };
+	static final ColumnarResult.Type[] CUSTOMER_TYPES = { ColumnarResult.Type.INT, ColumnarResult.Type.STRING,
+		ColumnarResult.Type.STRING, ColumnarResult.Type.STRING, ColumnarResult.Type.STRING };
+
+	private static final class Customer {
+		final int id;
+		final String fname;
+		final String lname;
+		final String phone;
+		final String address;
+		// Customer_Summary
+		int carCount = 0;
+		int closedCount = 0;
+		long totalBill = 0;
+
+		Customer(int id, String fname, String lname, String phone, String address) {
+			this.id = id;
+			this.fname = fname;
+			this.lname = lname;
+			this.phone = phone;
+			this.address = address;
+		}
+	}
+
+	private static final class Mechanic {
+		final int id;
+
+		Mechanic(int id) {
+			this.id = id;
+		}
+	}
+
+	private static final class Car {
+		final String vin;
+		final String make;
+		final String model;
+		final int year;
+		// requests of this car that are not closed
+		int open = 0;
+
+		Car(String vin, String make, String model, int year) {
+			this.vin = vin;
+			this.make = make;
+			this.model = model;
+			this.year = year;
+		}
+	}
+
+	private static final class Owns {
+		final int ownershipId;
+		final Customer customer;
+		final Car car;
+
+		Owns(int ownershipId, Customer customer, Car car) {
+			this.ownershipId = ownershipId;
+			this.customer = customer;
+			this.car = car;
+		}
+	}
+
+	private static final class ServiceRequest {
+		final int rid;
+		final Customer customer;
+		final Car car;
+		final LocalDate date;
+		final int odometer;
+		int closedCount = 0;
+
+		ServiceRequest(int rid, Customer customer, Car car, LocalDate date, int odometer) {
+			this.rid = rid;
+			this.customer = customer;
+			this.car = car;
+			this.date = date;
+			this.odometer = odometer;
+		}
+	}
+
+	private static final class ClosedRequest {
+		final int wid;
+		final ServiceRequest request;
+		final LocalDate date;
+		final String comment;
+		final int bill;
+
+		ClosedRequest(int wid, ServiceRequest request, LocalDate date, String comment, int bill) {
+			this.wid = wid;
+			this.request = request;
+			this.date = date;
+			this.comment = comment;
+			this.bill = bill;
+		}
+	}
+
+	private static final Comparator<ClosedRequest> BY_RID_WID = (a, b) ->
+		a.request.rid != b.request.rid ? Integer.compare(a.request.rid, b.request.rid) : Integer.compare(a.wid, b.wid);
+	private static final Comparator<Customer> BY_TOTAL_BILL_DESC = (a, b) ->
+		a.totalBill != b.totalBill ? Long.compare(b.totalBill, a.totalBill) : Integer.compare(b.id, a.id);
+	private static final Comparator<Car> BUSIEST_FIRST = (a, b) ->
+		a.open != b.open ? Integer.compare(b.open, a.open) : a.vin.compareTo(b.vin);
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// tables, by primary key
+	private final Map<Integer, Customer> customers = new HashMap<Integer, Customer>();
+	private final TreeMap<Integer, Mechanic> mechanics = new TreeMap<Integer, Mechanic>();
+	private final Map<String, Car> cars = new HashMap<String, Car>();
+	private final TreeMap<Integer, Owns> owns = new TreeMap<Integer, Owns>();
+	private final Map<Integer, ServiceRequest> requests = new HashMap<Integer, ServiceRequest>();
+	private final Map<Integer, ClosedRequest> closed = new HashMap<Integer, ClosedRequest>();
+
+	// lookups
+	private final Map<String, List<Customer>> customersByLastName = new HashMap<String, List<Customer>>();
+	private final Map<Integer, List<Owns>> ownsByCustomer = new HashMap<Integer, List<Owns>>();
+	private final Map<String, List<Owns>> ownsByVin = new HashMap<String, List<Owns>>();
+
+	// reports
+	private final TreeSet<ClosedRequest> smallBills = new TreeSet<ClosedRequest>(BY_RID_WID);
+	private final TreeMap<Integer, Customer> manyCars = new TreeMap<Integer, Customer>();
+	private final TreeMap<Integer, ServiceRequest> oldCarsLowMileage = new TreeMap<Integer, ServiceRequest>();
+	private final TreeSet<Car> busiestCars = new TreeSet<Car>(BUSIEST_FIRST);
+	private final TreeSet<Customer> byTotalBill = new TreeSet<Customer>(BY_TOTAL_BILL_DESC);
+
+	// next keys
+	private int nextCustomerId = 0;
+	private int nextMechanicId = 0;
+	private int nextOwnershipId = 0;
+	private int nextRid = 0;
+	private int nextWid = 0;
+
+	@Override
+	public int addCustomer(String fname, String lname, String phone, String address) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			return insertCustomer(nextCustomerId, fname, lname, phone, address);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int addMechanic(String fname, String lname, int experience) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			return insertMechanic(nextMechanicId, fname, lname, experience);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void addCar(String vin, String make, String model, int year) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			insertCar(vin, make, model, year);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int addOwnership(int customerId, String vin) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			return insertOwns(nextOwnershipId, customerId, vin);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult findCustomersByLastName(String lname) {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(CUSTOMER_COLUMNS, CUSTOMER_TYPES);
+			List<Customer> found = customersByLastName.get(lname);
+			if (found != null) {
+				for (Customer c : found) {
+					result.add(0, c.id).add(1, c.fname).add(2, c.lname).add(3, c.phone).add(4, c.address).endRow();
+				}
+			}
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult listCustomerCars(int customerId) {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(new String[] { "row_number", "c" },
+					new ColumnarResult.Type[] { ColumnarResult.Type.LONG, ColumnarResult.Type.STRING });
+			List<Owns> owned = ownsByCustomer.get(customerId);
+			if (owned != null) {
+				List<Owns> sorted = new ArrayList<Owns>(owned);
+				Collections.sort(sorted, (a, b) -> a.car.vin.compareTo(b.car.vin));
+				long n = 0;
+				for (Owns o : sorted) {
+					result.add(0, ++n).add(1, record(o.car.vin, o.car.make, o.car.model, String.valueOf(o.car.year))).endRow();
+				}
+			}
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isOwnedCar(String vin) {
+		lock.readLock().lock();
+		try {
+			return ownsByVin.containsKey(vin);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean ownsCar(int customerId, String vin) {
+		lock.readLock().lock();
+		try {
+			List<Owns> owned = ownsByCustomer.get(customerId);
+			if (owned == null) return false;
+			for (Owns o : owned) {
+				if (o.car.vin.equals(vin)) return true;
+			}
+			return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean serviceRequestExists(int rid) {
+		lock.readLock().lock();
+		try {
+			return requests.containsKey(rid);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean mechanicExists(int mechanicId) {
+		lock.readLock().lock();
+		try {
+			return mechanics.containsKey(mechanicId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int insertServiceRequest(int customerId, String vin, int odometer, String complaint) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			ShopRules.checkOpen(ownsCar(customerId, vin));
+			return insertServiceRequest(nextRid, customerId, vin, LocalDate.now(), odometer, complaint);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int openServiceRequestForNewCar(int customerId, String vin, String make, String model, int year,
+			int odometer, String complaint) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			// everything the three inserts check, before any of them changes something
+			if (vin != null && cars.containsKey(vin)) throw duplicate("car_pkey");
+			checkCar(vin, make, model, year);
+			customer("owns", customerId);
+			checkPositive("_pinteger", odometer);
+			insertCar(vin, make, model, year);
+			insertOwns(nextOwnershipId, customerId, vin);
+			return insertServiceRequest(nextRid, customerId, vin, LocalDate.now(), odometer, complaint);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int closeServiceRequest(int rid, int mechanicId, String comment, int bill) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			LocalDate today = LocalDate.now();
+			ServiceRequest request = requests.get(rid);
+			ShopRules.checkClose(request != null, request != null && !request.date.isAfter(today), mechanics.containsKey(mechanicId));
+			return insertClosedRequest(nextWid, rid, mechanicId, today, comment, bill);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult customersWithBillLessThan100() {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(new String[] { "fname", "lname", "date", "comment", "bill" },
+					new ColumnarResult.Type[] { ColumnarResult.Type.STRING, ColumnarResult.Type.STRING, ColumnarResult.Type.STRING,
+						ColumnarResult.Type.STRING, ColumnarResult.Type.INT });
+			for (ClosedRequest cr : smallBills) {
+				Customer c = cr.request.customer;
+				result.add(0, c.fname).add(1, c.lname).add(2, cr.date.toString());
+				if (cr.comment == null) result.addNull(3);
+				else result.add(3, cr.comment);
+				result.add(4, cr.bill).endRow();
+			}
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult customersWithMoreThan20Cars() {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(new String[] { "fname", "lname", "numownedcars" },
+					new ColumnarResult.Type[] { ColumnarResult.Type.STRING, ColumnarResult.Type.STRING, ColumnarResult.Type.INT });
+			for (Customer c : manyCars.values()) result.add(0, c.fname).add(1, c.lname).add(2, c.carCount).endRow();
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult carsBefore1995With50000Miles() {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(new String[] { "make", "model", "year" },
+					new ColumnarResult.Type[] { ColumnarResult.Type.STRING, ColumnarResult.Type.STRING, ColumnarResult.Type.INT });
+			for (ServiceRequest sr : oldCarsLowMileage.values()) result.add(0, sr.car.make).add(1, sr.car.model).add(2, sr.car.year).endRow();
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult kCarsWithTheMostServices(int k) {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(OpenRequestIndex.COLUMNS, OpenRequestIndex.TYPES);
+			Iterator<Car> it = busiestCars.iterator();
+			for (int i = 0; i < k && it.hasNext(); ++i) {
+				Car car = it.next();
+				result.add(0, car.make).add(1, car.model).add(2, (long) car.open).endRow();
+			}
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult customersByTotalBillDesc() {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(new String[] { "fname", "lname", "total" },
+					new ColumnarResult.Type[] { ColumnarResult.Type.STRING, ColumnarResult.Type.STRING, ColumnarResult.Type.LONG });
+			for (Customer c : byTotalBill) result.add(0, c.fname).add(1, c.lname).add(2, c.totalBill).endRow();
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the contents with the csv_data files in dir.  The files are
+	 * read like COPY reads them (comma separated, \N for NULL, backslash
+	 * escapes, dates as "5/20/2016 00:00"), in the foreign key order of
+	 * BulkLoader.PHASES.  A bad row fails the load and leaves the engine
+	 * empty.
+	 */
+	@Override
+	public void load(File dir) throws IOException, SQLException {
+		lock.writeLock().lock();
+		try {
+			clear();
+			try {
+				for (BulkLoader.Table[] phase : BulkLoader.PHASES) {
+					for (BulkLoader.Table table : phase) loadTable(new File(dir, table.file), table);
+				}
+			} catch (IOException | SQLException | RuntimeException e) {
+				clear();
+				throw e;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult sampleOwnedCars(int limit) {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(new String[] { "customer_id", "car_vin", "lname" },
+					new ColumnarResult.Type[] { ColumnarResult.Type.INT, ColumnarResult.Type.STRING, ColumnarResult.Type.STRING });
+			Iterator<Owns> it = owns.values().iterator();
+			for (int i = 0; i < limit && it.hasNext(); ++i) {
+				Owns o = it.next();
+				result.add(0, o.customer.id).add(1, o.car.vin).add(2, o.customer.lname).endRow();
+			}
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ColumnarResult sampleMechanics(int limit) {
+		lock.readLock().lock();
+		try {
+			ColumnarResult.Builder result = new ColumnarResult.Builder(new String[] { "id" }, new ColumnarResult.Type[] { ColumnarResult.Type.INT });
+			Iterator<Integer> it = mechanics.keySet().iterator();
+			for (int i = 0; i < limit && it.hasNext(); ++i) result.add(0, it.next().intValue()).endRow();
+			return result.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of rows in Customer, Mechanic, Car, Owns,
+	 *         Service_Request and Closed_Request
+	 */
+	public int[] rowCounts() {
+		lock.readLock().lock();
+		try {
+			return new int[] { customers.size(), mechanics.size(), cars.size(), owns.size(), requests.size(), closed.size() };
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * The inserts.  Each one checks every constraint before it changes
+	 * anything, then updates the table, its indexes and the summaries.
+	 * Callers hold the write lock.
+	 */
+
+	private int insertCustomer(int id, String fname, String lname, String phone, String address) throws SQLException {
+		fname = bpchar("fname", fname, 32);
+		lname = bpchar("lname", lname, 32);
+		phone = bpchar("phone", phone, 13);
+		address = bpchar("address", address, 256);
+		if (customers.containsKey(id)) throw duplicate("customer_pkey");
+		Customer c = new Customer(id, fname, lname, phone, address);
+		customers.put(id, c);
+		customersByLastName.computeIfAbsent(lname, l -> new ArrayList<Customer>(1)).add(c);
+		nextCustomerId = Math.max(nextCustomerId, id + 1);
+		return id;
+	}
+
+	private int insertMechanic(int id, String fname, String lname, int experience) throws SQLException {
+		bpchar("fname", fname, 32);
+		bpchar("lname", lname, 32);
+		if (experience < 0 || experience >= 100) throw check("_years");
+		if (mechanics.containsKey(id)) throw duplicate("mechanic_pkey");
+		mechanics.put(id, new Mechanic(id));
+		nextMechanicId = Math.max(nextMechanicId, id + 1);
+		return id;
+	}
+
+	private void insertCar(String vin, String make, String model, int year) throws SQLException {
+		checkCar(vin, make, model, year);
+		if (cars.containsKey(vin)) throw duplicate("car_pkey");
+		cars.put(vin, new Car(vin, make, model, year));
+	}
+
+	private static void checkCar(String vin, String make, String model, int year) throws SQLException {
+		varchar("vin", vin, 16);
+		varchar("make", make, 32);
+		varchar("model", model, 32);
+		if (year < 1970) throw check("_year");
+	}
+
+	private int insertOwns(int ownershipId, int customerId, String vin) throws SQLException {
+		varchar("car_vin", vin, 16);
+		Customer customer = customer("owns", customerId);
+		Car car = car("owns", vin);
+		if (owns.containsKey(ownershipId)) throw duplicate("owns_pkey");
+		Owns o = new Owns(ownershipId, customer, car);
+		owns.put(ownershipId, o);
+		ownsByCustomer.computeIfAbsent(customerId, id -> new ArrayList<Owns>(2)).add(o);
+		ownsByVin.computeIfAbsent(vin, v -> new ArrayList<Owns>(1)).add(o);
+		if (++customer.carCount > 20) manyCars.put(customer.id, customer);
+		nextOwnershipId = Math.max(nextOwnershipId, ownershipId + 1);
+		return ownershipId;
+	}
+
+	private int insertServiceRequest(int rid, int customerId, String vin, LocalDate date, int odometer, String complaint) throws SQLException {
+		varchar("car_vin", vin, 16);
+		if (date == null) throw notNull("date");
+		checkPositive("_pinteger", odometer);
+		Customer customer = customer("service_request", customerId);
+		Car car = car("service_request", vin);
+		if (requests.containsKey(rid)) throw duplicate("service_request_pkey");
+		ServiceRequest sr = new ServiceRequest(rid, customer, car, date, odometer);
+		requests.put(rid, sr);
+		if (odometer < 50000 && car.year < 1995) oldCarsLowMileage.put(rid, sr);
+		busiestCars.remove(car);
+		++car.open;
+		busiestCars.add(car);
+		nextRid = Math.max(nextRid, rid + 1);
+		return rid;
+	}
+
+	private int insertClosedRequest(int wid, int rid, int mechanicId, LocalDate date, String comment, int bill) throws SQLException {
+		if (date == null) throw notNull("date");
+		checkPositive("_pinteger", bill);
+		ServiceRequest sr = requests.get(rid);
+		if (sr == null) throw missing("closed_request", "rid");
+		if (!mechanics.containsKey(mechanicId)) throw missing("closed_request", "mid");
+		if (closed.containsKey(wid)) throw duplicate("closed_request_pkey");
+		ClosedRequest cr = new ClosedRequest(wid, sr, date, comment, bill);
+		closed.put(wid, cr);
+		if (bill < 100) smallBills.add(cr);
+		if (sr.closedCount++ == 0) {
+			// no longer open
+			Car car = sr.car;
+			busiestCars.remove(car);
+			if (--car.open > 0) busiestCars.add(car);
+		}
+		Customer customer = sr.customer;
+		byTotalBill.remove(customer);
+		customer.totalBill += bill;
+		++customer.closedCount;
+		byTotalBill.add(customer);
+		nextWid = Math.max(nextWid, wid + 1);
+		return wid;
+	}
+
+	private void clear() {
+		customers.clear();
+		mechanics.clear();
+		cars.clear();
+		owns.clear();
+		requests.clear();
+		closed.clear();
+		customersByLastName.clear();
+		ownsByCustomer.clear();
+		ownsByVin.clear();
+		smallBills.clear();
+		manyCars.clear();
+		oldCarsLowMileage.clear();
+		busiestCars.clear();
+		byTotalBill.clear();
+		nextCustomerId = nextMechanicId = nextOwnershipId = nextRid = nextWid = 0;
+	}
+
+	private void loadTable(File file, BulkLoader.Table table) throws IOException, SQLException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				++lineNumber;
+				if (line.isEmpty()) continue;
+				String[] f = fields(line);
+				try {
+					if (table == BulkLoader.CUSTOMER) insertCustomer(integer(f[0]), f[1], f[2], f[3], f[4]);
+					else if (table == BulkLoader.MECHANIC) insertMechanic(integer(f[0]), f[1], f[2], integer(f[3]));
+					else if (table == BulkLoader.CAR) insertCar(f[0], f[1], f[2], integer(f[3]));
+					else if (table == BulkLoader.OWNS) insertOwns(integer(f[0]), integer(f[1]), f[2]);
+					else if (table == BulkLoader.SERVICE_REQUEST) insertServiceRequest(integer(f[0]), integer(f[1]), f[2], date(f[3]), integer(f[4]), f[5]);
+					else insertClosedRequest(integer(f[0]), integer(f[1]), integer(f[2]), date(f[3]), f[4], integer(f[5]));
+				} catch (SQLException e) {
+					throw new SQLException(file.getName() + " line " + lineNumber + ": " + e.getMessage(), e.getSQLState(), e);
+				} catch (RuntimeException e) {
+					// too few fields, a malformed number or date
+					throw new SQLException(file.getName() + " line " + lineNumber + ": " + e, "22P04", e);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Splits a line of COPY text format: comma separated, \N is NULL, and a
+	 * backslash escapes the next character (\t, \n and \r stand for tab,
+	 * newline and carriage return).
+	 */
+	static String[] fields(String line) {
+		List<String> fields = new ArrayList<String>(8);
+		StringBuilder field = new StringBuilder();
+		boolean escaped = false;
+		for (int i = 0; i <= line.length(); ++i) {
+			char c = i < line.length() ? line.charAt(i) : ',';
+			if (c == '\\' && i + 1 < line.length()) {
+				char e = line.charAt(++i);
+				if (e == 'N' && field.length() == 0 && (i + 1 == line.length() || line.charAt(i + 1) == ',')) {
+					escaped = true;
+					continue;
+				}
+				field.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+			} else if (c == ',') {
+				fields.add(escaped ? null : field.toString());
+				field.setLength(0);
+				escaped = false;
+			} else {
+				field.append(c);
+			}
+		}
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/**
+	 * @return a "M/D/YYYY hh:mm" or ISO date of the csv files
+	 */
+	static LocalDate date(String s) {
+		if (s == null) return null;
+		int space = s.indexOf(' ');
+		String day = space < 0 ? s : s.substring(0, space);
+		String[] parts = day.split("/");
+		if (parts.length != 3) return LocalDate.parse(day);
+		return LocalDate.of(Integer.parseInt(parts[2]), Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+	}
+
+	private static int integer(String s) throws SQLException {
+		if (s == null) throw notNull("integer");
+		return Integer.parseInt(s.trim());
+	}
+
+	/**
+	 * @return a row value as PostgreSQL prints it, e.g. (1HGCM82633A004352,Honda,"Civic EX",2003)
+	 */
+	static String record(String... values) {
+		StringBuilder s = new StringBuilder("(");
+		for (int i = 0; i < values.length; ++i) {
+			if (i > 0) s.append(',');
+			String v = values[i];
+			if (v == null) continue;
+			boolean quote = v.isEmpty();
+			for (int j = 0; j < v.length() && !quote; ++j) {
+				char c = v.charAt(j);
+				quote = c == '"' || c == '\\' || c == '(' || c == ')' || c == ',' || Character.isWhitespace(c);
+			}
+			if (!quote) {
+				s.append(v);
+				continue;
+			}
+			s.append('"');
+			for (int j = 0; j < v.length(); ++j) {
+				char c = v.charAt(j);
+				if (c == '"' || c == '\\') s.append(c);
+				s.append(c);
+			}
+			s.append('"');
+		}
+		return s.append(')').toString();
+	}
+
+	/* Constraint checks, with PostgreSQL's messages and SQLSTATEs. */
+
+	/** CHAR(n): trailing blanks do not count and are not kept. */
+	private static String bpchar(String column, String value, int length) throws SQLException {
+		if (value == null) throw notNull(column);
+		int end = value.length();
+		while (end > 0 && value.charAt(end - 1) == ' ') --end;
+		if (end > length) throw new SQLException("value too long for type character(" + length + ")", "22001");
+		return value.substring(0, end);
+	}
+
+	private static String varchar(String column, String value, int length) throws SQLException {
+		if (value == null) throw notNull(column);
+		if (value.length() > length) throw new SQLException("value too long for type character varying(" + length + ")", "22001");
+		return value;
+	}
+
+	private static void checkPositive(String domain, int value) throws SQLException {
+		if (value <= 0) throw check(domain);
+	}
+
+	private Customer customer(String table, int id) throws SQLException {
+		Customer c = customers.get(id);
+		if (c == null) throw missing(table, "customer_id");
+		return c;
+	}
+
+	private Car car(String table, String vin) throws SQLException {
+		Car car = cars.get(vin);
+		if (car == null) throw missing(table, "car_vin");
+		return car;
+	}
+
+	private static SQLException notNull(String column) {
+		return new SQLException("null value in column \"" + column + "\" violates not-null constraint", "23502");
+	}
+
+	private static SQLException check(String domain) {
+		return new SQLException("value for domain " + domain + " violates check constraint \"" + domain + "_check\"", "23514");
+	}
+
+	private static SQLException duplicate(String constraint) {
+		return new SQLException("duplicate key value violates unique constraint \"" + constraint + "\"", "23505");
+	}
+
+	private static SQLException missing(String table, String column) {
+		return new SQLException("insert or update on table \"" + table + "\" violates foreign key constraint \""
+				+ table + "_" + column + "_fkey\"", "23503");
+	}
+}
@@ -0,0 +1,424 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Latency histograms and counters for every database call, by SQL shape,
+ * and for every shop operation (addCustomer, the reports, ...).
+ *
+ * A timer records calls, errors, rows, bytes fetched and a latency
+ * histogram.  Recording is lock-free: counters are LongAdders and the
+ * histogram is an array of atomic counts with eight buckets per power of
+ * two, so a percentile is exact to within 12.5%.  Timers are created on
+ * first use and live as long as the process.
+ *
+ * Each database call and each operation is also a JFR event
+ * (mechanicshop.DatabaseCall, mechanicshop.Operation), which costs next to
+ * nothing unless a recording is running, e.g.
+ *   java -XX:StartFlightRecording=filename=shop.jfr ... MechanicShop ...
+ *
+ * Snapshots can be appended to a file as JSON lines at a fixed interval
+ * (see startExport) and are served by ShopServer at GET /metrics.  Calls
+ * slower than its threshold are also handed to the SlowQueryLog, if set.
+ */
+public class Metrics {
+
+	public static final String QUERY = "query";
+	public static final String UPDATE = "update";
+	public static final String BATCH = "batch";
+	public static final String OPERATION = "operation";
+
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = (63 - 2) * SUB_BUCKETS;
+
+	/** Computes an operation's result. */
+	public interface Call<T> {
+		T run() throws SQLException;
+	}
+
+	@Name("mechanicshop.DatabaseCall")
+	@Label("Database Call")
+	@Category("Mechanic Shop")
+	static final class DatabaseCallEvent extends Event {
+		@Label("Kind")
+		String kind;
+		@Label("SQL")
+		String sql;
+		@Label("Rows")
+		long rows;
+		@Label("Failed")
+		boolean failed;
+	}
+
+	@Name("mechanicshop.Operation")
+	@Label("Shop Operation")
+	@Category("Mechanic Shop")
+	static final class OperationEvent extends Event {
+		@Label("Operation")
+		String operation;
+		@Label("Failed")
+		boolean failed;
+	}
+
+	/** Counters and latency histogram of one SQL shape or operation. */
+	public static final class Timer {
+		final String kind;
+		final String name;
+		final LongAdder count = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		Timer(String kind, String name) {
+			this.kind = kind;
+			this.name = name;
+		}
+
+		/**
+		 * Records one call.
+		 *
+		 * @param nanos how long it took
+		 * @param rowCount rows returned or written
+		 * @param byteCount bytes fetched
+		 * @param failed whether it threw
+		 */
+		public void record(long nanos, long rowCount, long byteCount, boolean failed) {
+			if (nanos < 0) nanos = 0;
+			count.increment();
+			if (failed) errors.increment();
+			if (rowCount > 0) rows.add(rowCount);
+			if (byteCount > 0) bytes.add(byteCount);
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+			buckets.incrementAndGet(bucket(nanos));
+		}
+
+		public String kind() {
+			return kind;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		public long errors() {
+			return errors.sum();
+		}
+
+		public long totalNanos() {
+			return totalNanos.sum();
+		}
+
+		/**
+		 * @param q the quantile, e.g. 0.99
+		 * @return the latency at quantile q in nanoseconds, 0 when nothing was recorded
+		 */
+		public long percentile(double q) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i) total += counts[i] = buckets.get(i);
+			if (total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += counts[i];
+				if (seen >= rank) return Math.min(upperBound(i), maxNanos.get());
+			}
+			return maxNanos.get();
+		}
+	}
+
+	/**
+	 * A database call in progress; see startCall.  It times the statement on
+	 * the database: from startCall, made once the connection is checked out,
+	 * until executed() (plus any cursor fetches), so neither the pool wait
+	 * nor the caller's handling of the rows counts towards the timer and the
+	 * slow query threshold.
+	 */
+	public static final class Probe {
+		private final Timer timer;
+		private final Object[] params;
+		private final SlowQueryLog slowQueries;
+		private final long started;
+		private final DatabaseCallEvent event;
+		// time on the database, -1 until executed() is called
+		private long databaseNanos = -1;
+
+		Probe(Timer timer, Object[] params, SlowQueryLog slowQueries) {
+			this.timer = timer;
+			this.params = params;
+			this.slowQueries = slowQueries;
+			this.event = new DatabaseCallEvent();
+			this.event.begin();
+			this.started = System.nanoTime();
+		}
+
+		/** Marks the statement as executed; the time after it is the caller's. */
+		public void executed() {
+			if (databaseNanos < 0) databaseNanos = System.nanoTime() - started;
+		}
+
+		/** Marks the statement as executed after the given time on the database, for a cursor. */
+		public void executed(long nanos) {
+			databaseNanos = nanos;
+		}
+
+		/** Records the call as done. */
+		public void end(long rows, long bytes) {
+			finish(rows, bytes, false);
+		}
+
+		/** Records the call as failed. */
+		public void fail() {
+			finish(0, 0, true);
+		}
+
+		private void finish(long rows, long bytes, boolean failed) {
+			long nanos = databaseNanos >= 0 ? databaseNanos : System.nanoTime() - started;
+			timer.record(nanos, rows, bytes, failed);
+			if (slowQueries != null && nanos >= slowQueries.thresholdNanos()) {
+				slowQueries.record(timer.kind, timer.name, params, nanos, rows, failed);
+			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.kind = timer.kind;
+				event.sql = timer.name;
+				event.rows = rows;
+				event.failed = failed;
+				event.commit();
+			}
+		}
+	}
+
+	// by kind, then by SQL text or operation name; the SQL constants cache their hash codes
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Timer>> timers = new ConcurrentHashMap<String, ConcurrentHashMap<String, Timer>>();
+	private volatile SlowQueryLog slowQueries = null;
+	private ScheduledExecutorService exporter = null;
+	private File exportFile = null;
+	private Map<String, Long> exportedCounts = new HashMap<String, Long>();
+	private long exportedAt = System.nanoTime();
+
+	/**
+	 * @return the timer for a SQL shape or operation, created on first use
+	 */
+	public Timer timer(String kind, String name) {
+		ConcurrentHashMap<String, Timer> byName = timers.get(kind);
+		if (byName == null) byName = timers.computeIfAbsent(kind, k -> new ConcurrentHashMap<String, Timer>());
+		Timer timer = byName.get(name);
+		if (timer == null) timer = byName.computeIfAbsent(name, n -> new Timer(kind, n));
+		return timer;
+	}
+
+	/**
+	 * Starts timing a database call, once its connection is checked out.
+	 * Mark it with Probe.executed and end it with Probe.end or Probe.fail.
+	 *
+	 * @param kind QUERY, UPDATE or BATCH
+	 * @param sql the statement as prepared, i.e. with ? placeholders
+	 * @param params the values bound to it, kept for the slow query log;
+	 *        null when the call cannot be replayed (batches)
+	 */
+	public Probe startCall(String kind, String sql, Object[] params) {
+		return new Probe(timer(kind, sql), params, slowQueries);
+	}
+
+	/**
+	 * Sends the calls slower than its threshold to a slow query log.
+	 */
+	public void setSlowQueryLog(SlowQueryLog slowQueries) {
+		this.slowQueries = slowQueries;
+	}
+
+	public SlowQueryLog getSlowQueryLog() {
+		return slowQueries;
+	}
+
+	/**
+	 * Runs a shop operation and records how long it took.  Rows are counted
+	 * for operations that return a ColumnarResult.
+	 *
+	 * @param operation the operation name, e.g. "addCustomer"
+	 * @param call the operation
+	 * @return what the operation returned
+	 * @throws java.sql.SQLException when the operation throws it
+	 */
+	public <T> T time(String operation, Call<T> call) throws SQLException {
+		Timer timer = timer(OPERATION, operation);
+		OperationEvent event = new OperationEvent();
+		event.begin();
+		long started = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			T result = call.run();
+			if (result instanceof ColumnarResult) rows = ((ColumnarResult) result).rowCount();
+			failed = false;
+			return result;
+		} finally {
+			timer.record(System.nanoTime() - started, rows, 0, failed);
+			event.end();
+			if (event.shouldCommit()) {
+				event.operation = operation;
+				event.failed = failed;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * @return every timer, the ones with the most total time first
+	 */
+	public List<Timer> timers() {
+		List<Timer> list = new ArrayList<Timer>();
+		for (ConcurrentHashMap<String, Timer> byName : timers.values()) list.addAll(byName.values());
+		Collections.sort(list, (a, b) -> Long.compare(b.totalNanos(), a.totalNanos()));
+		return list;
+	}
+
+	/**
+	 * Appends {"timers": [...]} with one object per timer, by total time.
+	 */
+	public void json(StringBuilder json) {
+		json.append("{\"timers\":[");
+		boolean first = true;
+		for (Timer timer : timers()) {
+			if (!first) json.append(',');
+			first = false;
+			timer(json, timer, -1);
+		}
+		json.append("]}");
+	}
+
+	/**
+	 * Appends a snapshot of every timer to file every intervalMillis, one
+	 * JSON object per line, with the calls per second since the previous
+	 * snapshot.  A last snapshot is written by stopExport.
+	 */
+	public synchronized void startExport(File file, long intervalMillis) {
+		if (exporter != null) return;
+		exportFile = file;
+		exportedAt = System.nanoTime();
+		exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-export");
+			t.setDaemon(true);
+			return t;
+		});
+		exporter.scheduleAtFixedRate(this::exportQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops the periodic export and writes a last snapshot. */
+	public void stopExport() {
+		ScheduledExecutorService stopping;
+		synchronized (this) {
+			stopping = exporter;
+			exporter = null;
+		}
+		if (stopping == null) return;
+		stopping.shutdown();
+		try {
+			stopping.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		exportQuietly();
+	}
+
+	private synchronized void exportQuietly() {
+		try {
+			export();
+		} catch (IOException e) {
+			System.err.println("Cannot write metrics to " + exportFile + ": " + e.getMessage());
+		}
+	}
+
+	private void export() throws IOException {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-9, (now - exportedAt) / 1e9);
+		String time = Instant.now().toString();
+		Map<String, Long> counts = new HashMap<String, Long>();
+		StringBuilder lines = new StringBuilder();
+		for (Timer timer : timers()) {
+			String key = timer.kind + ':' + timer.name;
+			long count = timer.count();
+			counts.put(key, count);
+			Long before = exportedCounts.get(key);
+			lines.append("{\"time\":\"").append(time).append("\",\"timer\":");
+			timer(lines, timer, (count - (before == null ? 0 : before)) / seconds);
+			lines.append("}\n");
+		}
+		Writer out = new FileWriter(exportFile, true);
+		try {
+			out.write(lines.toString());
+		} finally {
+			out.close();
+		}
+		exportedCounts = counts;
+		exportedAt = now;
+	}
+
+	private static void timer(StringBuilder json, Timer timer, double perSecond) {
+		long count = timer.count();
+		json.append("{\"kind\":\"").append(timer.kind).append("\",\"name\":");
+		ShopServer.string(json, timer.name.replaceAll("\\s+", " "));
+		json.append(",\"count\":").append(count);
+		if (perSecond >= 0) json.append(",\"perSecond\":").append(String.format(Locale.ROOT, "%.1f", perSecond));
+		json.append(",\"errors\":").append(timer.errors())
+			.append(",\"rows\":").append(timer.rows.sum())
+			.append(",\"bytes\":").append(timer.bytes.sum())
+			.append(",\"totalMs\":").append(millis(timer.totalNanos()))
+			.append(",\"meanMs\":").append(millis(count == 0 ? 0 : timer.totalNanos() / count))
+			.append(",\"p50Ms\":").append(millis(timer.percentile(0.50)))
+			.append(",\"p99Ms\":").append(millis(timer.percentile(0.99)))
+			.append(",\"p999Ms\":").append(millis(timer.percentile(0.999)))
+			.append(",\"maxMs\":").append(millis(timer.maxNanos.get()))
+			.append('}');
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	/** Values below 8 get a bucket each; above, each power of two is split in 8. */
+	static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) return (int) nanos;
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exp - 3)) & (SUB_BUCKETS - 1);
+		return (exp - 2) * SUB_BUCKETS + sub;
+	}
+
+	/** @return the largest value that falls into bucket i */
+	static long upperBound(int i) {
+		if (i < SUB_BUCKETS) return i;
+		int exp = i / SUB_BUCKETS + 2;
+		long lower = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exp - 3);
+		return lower + (1L << (exp - 3)) - 1;
+	}
+}
@@ -0,0 +1,387 @@
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory search over the customers by last name, first name and phone
+ * number, for service-request intake: prefix matches, matches with typos,
+ * ranked, without a database round trip per keystroke.
+ *
+ * Names are normalized (accents and punctuation dropped, lower cased) and
+ * kept in sorted maps keyed by name and id, so a prefix is a range of keys.
+ * A typo-tolerant match compares the query against each distinct name,
+ * allowing one edit for queries of three to five letters and two for
+ * longer ones; an edit is an inserted, deleted, replaced or swapped letter,
+ * and the query only has to match the start of the name.
+ *
+ * Results are ranked exact match first, then prefix matches, then matches
+ * with typos (fewer edits first); a query of two words is matched as last
+ * and first name, in either order.  Phone numbers are matched by their
+ * leading digits, whatever the punctuation.
+ *
+ * Like OpenRequestIndex, the index is read from the database on first use
+ * (or by rebuild()), follows the customers added through this process and
+ * is reset by a bulk load.  The maps are concurrent, so searches never
+ * wait for an insert.
+ *
+ * Customers added by another process (the server, a batch run, another
+ * menu) are only indexed by the next reload, once the index is older than
+ * mechanicshop.nameIndex.maxAgeMs.  Until then a search that finds nobody
+ * looks the query up as an exact last name in the database, so such a
+ * customer is still found by last name, but not by a prefix, a typo or a
+ * phone number.
+ */
+public class NameIndex {
+
+	static final String CUSTOMERS_SQL = "SELECT id, fname, lname, phone FROM Customer";
+	static final String LAST_NAME_SQL = "SELECT id, fname, lname, phone FROM Customer WHERE lname = ? ORDER BY id LIMIT ?";
+
+	static final String[] COLUMNS = { "id", "fname", "lname", "phone" };
+	static final ColumnarResult.Type[] TYPES = {
+		ColumnarResult.Type.INT, ColumnarResult.Type.STRING, ColumnarResult.Type.STRING, ColumnarResult.Type.STRING };
+
+	/** Prefix matches looked at per query word, so a one letter query stays cheap. */
+	static final int MAX_PREFIX_CANDIDATES = 2000;
+
+	private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+	private static final Pattern NOT_ALNUM = Pattern.compile("[^a-z0-9]+");
+	private static final Pattern NOT_DIGIT = Pattern.compile("[^0-9]+");
+	private static final Pattern WORDS = Pattern.compile("[\\s,]+");
+
+	// sorts right after every key of one name ("name" + SEP + id)
+	private static final char SEP = '\u0000';
+	private static final char AFTER_SEP = '\u0001';
+
+	private static final class Customer {
+		final int id;
+		final String fname;
+		final String lname;
+		final String phone;
+		final String first;
+		final String last;
+
+		Customer(int id, String fname, String lname, String phone) {
+			this.id = id;
+			this.fname = fname.trim();
+			this.lname = lname.trim();
+			this.phone = phone.trim();
+			this.first = normalize(fname);
+			this.last = normalize(lname);
+		}
+	}
+
+	/** The search maps, swapped as a whole by rebuild(). */
+	private static final class State {
+		final ConcurrentSkipListMap<String, Customer> byLast = new ConcurrentSkipListMap<String, Customer>();
+		final ConcurrentSkipListMap<String, Customer> byFirst = new ConcurrentSkipListMap<String, Customer>();
+		final ConcurrentSkipListMap<String, Customer> byPhone = new ConcurrentSkipListMap<String, Customer>();
+		final long loadedAt = System.currentTimeMillis();
+
+		void add(Customer c) {
+			byLast.put(c.last + SEP + c.id, c);
+			byFirst.put(c.first + SEP + c.id, c);
+			byPhone.put(NOT_DIGIT.matcher(c.phone).replaceAll("") + SEP + c.id, c);
+		}
+	}
+
+	/** A customer found by a search, with its rank. */
+	private static final class Hit {
+		final Customer customer;
+		int score;
+
+		Hit(Customer customer, int score) {
+			this.customer = customer;
+			this.score = score;
+		}
+	}
+
+	private final MechanicShop esql;
+	private final long maxAgeMillis;
+	private volatile State state = null;
+	// customers added while a rebuild is reading the database, replayed after it
+	private List<Customer> pending = null;
+	// bumped by reset(), so a rebuild that started before it is discarded
+	private int generation = 0;
+
+	/**
+	 * @param maxAgeMillis the index is reloaded when older than this; 0 for never
+	 */
+	public NameIndex(MechanicShop esql, long maxAgeMillis) {
+		this.esql = esql;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Reloads the customers from the database, e.g. at startup or after a
+	 * bulk load.
+	 *
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public void rebuild() throws SQLException {
+		int started;
+		synchronized (this) {
+			if (pending != null) {
+				// another thread is rebuilding; its snapshot will do
+				return;
+			}
+			pending = new ArrayList<Customer>();
+			started = generation;
+		}
+		final State fresh = new State();
+		try {
+			esql.executeQueryStreaming(CUSTOMERS_SQL, rs ->
+				fresh.add(new Customer(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4))));
+		} catch (SQLException | RuntimeException e) {
+			synchronized (this) {
+				pending = null;
+			}
+			throw e;
+		}
+		synchronized (this) {
+			for (Customer c : pending) fresh.add(c);
+			pending = null;
+			if (generation == started) state = fresh;
+		}
+	}
+
+	/**
+	 * Drops the index, e.g. after the tables were reloaded; it is read
+	 * again from the database on next use.
+	 */
+	public synchronized void reset() {
+		state = null;
+		++generation;
+	}
+
+	/**
+	 * Records a new customer.  Call after it is committed.
+	 */
+	public synchronized void added(int id, String fname, String lname, String phone) {
+		Customer c = new Customer(id, fname, lname, phone);
+		State current = state;
+		if (current != null) current.add(c);
+		if (pending != null) pending.add(c);
+	}
+
+	/**
+	 * Finds customers by name or phone number.
+	 *
+	 * @param query a last name, "last first", "first last", or the leading
+	 *        digits of a phone number; prefixes and typos are accepted
+	 * @param limit maximum number of customers returned
+	 * @return id, fname, lname and phone of the best matches, best first
+	 * @throws java.sql.SQLException when the index has to be loaded first and that fails
+	 */
+	public ColumnarResult search(String query, int limit) throws SQLException {
+		State current = state;
+		if (current != null && maxAgeMillis > 0 && System.currentTimeMillis() - current.loadedAt > maxAgeMillis) {
+			synchronized (this) {
+				if (state == current) {
+					state = null;
+					++generation;
+				}
+			}
+			current = null;
+		}
+		if (current == null) {
+			rebuild();
+			current = state;
+			// still loading in another thread: search that snapshot once it is there
+			if (current == null) current = loadedState();
+		}
+
+		Map<Integer, Hit> hits = new HashMap<Integer, Hit>();
+		String digits = NOT_DIGIT.matcher(query).replaceAll("");
+		if (digits.length() >= 3 && !query.matches(".*\\p{L}.*")) {
+			collect(current.byPhone, digits, false, null, 0, hits);
+		} else {
+			List<String> words = new ArrayList<String>();
+			for (String w : WORDS.split(query.trim())) {
+				String n = normalize(w);
+				if (!n.isEmpty()) words.add(n);
+			}
+			if (words.size() == 1) {
+				collect(current.byLast, words.get(0), true, null, 0, hits);
+				// a first name on its own ranks below the last names
+				collect(current.byFirst, words.get(0), true, null, 1, hits);
+			} else if (words.size() >= 2) {
+				collect(current.byLast, words.get(0), true, words.get(1), 0, hits);
+				collect(current.byLast, words.get(1), true, words.get(0), 1, hits);
+			}
+		}
+
+		List<Hit> ranked = new ArrayList<Hit>(hits.values());
+		Collections.sort(ranked, (a, b) -> {
+			if (a.score != b.score) return Integer.compare(a.score, b.score);
+			int c = a.customer.last.compareTo(b.customer.last);
+			if (c != 0) return c;
+			c = a.customer.first.compareTo(b.customer.first);
+			return c != 0 ? c : Integer.compare(a.customer.id, b.customer.id);
+		});
+		if (ranked.isEmpty() && !query.trim().isEmpty()) return lookUp(query.trim(), limit);
+		ColumnarResult.Builder result = new ColumnarResult.Builder(COLUMNS, TYPES);
+		for (int i = 0; i < ranked.size() && i < limit; ++i) {
+			Customer c = ranked.get(i).customer;
+			result.add(0, c.id).add(1, c.fname).add(2, c.lname).add(3, c.phone).endRow();
+		}
+		return result.build();
+	}
+
+	/**
+	 * Finds the customers with this exact last name in the database, for
+	 * customers another process added since the index was loaded, and
+	 * indexes them.
+	 */
+	private ColumnarResult lookUp(String lname, int limit) throws SQLException {
+		ColumnarResult found = esql.executeQueryAndReturnColumnar(LAST_NAME_SQL, lname, limit);
+		for (int r = 0; r < found.rowCount(); ++r) {
+			added(found.getInt(r, 0), found.getString(r, 1), found.getString(r, 2), found.getString(r, 3));
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of customers indexed
+	 */
+	public int size() {
+		State current = state;
+		return current == null ? 0 : current.byLast.size();
+	}
+
+	/**
+	 * Adds the customers whose key in map matches word, scored by how well.
+	 *
+	 * @param fuzzy whether names with typos are looked at too
+	 * @param other a second query word the other name must match, or null
+	 * @param penalty added to the score of every customer found
+	 */
+	private static void collect(ConcurrentSkipListMap<String, Customer> map, String word, boolean fuzzy,
+			String other, int penalty, Map<Integer, Hit> hits) {
+		// exact and prefix matches: one range of keys, the exact ones first
+		int seen = 0;
+		for (Map.Entry<String, Customer> e : map.subMap(word, word + Character.MAX_VALUE).entrySet()) {
+			if (++seen > MAX_PREFIX_CANDIDATES) break;
+			String name = e.getKey().substring(0, e.getKey().indexOf(SEP));
+			offer(e.getValue(), (name.length() == word.length() ? 0 : 1) + penalty, other, hits);
+		}
+		int maxEdits = maxEdits(word.length());
+		if (!fuzzy || maxEdits == 0) return;
+
+		// names with typos: walk the distinct names, skipping the prefix range seen above
+		String key = map.isEmpty() ? null : map.firstKey();
+		while (key != null) {
+			String name = key.substring(0, key.indexOf(SEP));
+			if (!name.startsWith(word)) {
+				int edits = prefixDistance(word, name, maxEdits);
+				if (edits <= maxEdits) {
+					NavigableMap<String, Customer> same = map.subMap(name + SEP, true, name + AFTER_SEP, false);
+					for (Customer c : same.values()) offer(c, 1 + edits + penalty, other, hits);
+				}
+			}
+			key = map.higherKey(name + AFTER_SEP);
+		}
+	}
+
+	private static void offer(Customer c, int score, String other, Map<Integer, Hit> hits) {
+		if (other != null) {
+			// the second word has to match the first name
+			int s = score(other, c.first);
+			if (s < 0) return;
+			score += s;
+		}
+		Hit hit = hits.get(c.id);
+		if (hit == null) hits.put(c.id, new Hit(c, score));
+		else if (score < hit.score) hit.score = score;
+	}
+
+	/**
+	 * @return 0 when word is name, 1 when it is a prefix, 1 + edits for a
+	 *         prefix with typos, -1 when it does not match
+	 */
+	static int score(String word, String name) {
+		if (name.equals(word)) return 0;
+		if (name.startsWith(word)) return 1;
+		int maxEdits = maxEdits(word.length());
+		if (maxEdits == 0) return -1;
+		int edits = prefixDistance(word, name, maxEdits);
+		return edits <= maxEdits ? 1 + edits : -1;
+	}
+
+	static int maxEdits(int length) {
+		return length < 3 ? 0 : length <= 5 ? 1 : 2;
+	}
+
+	/**
+	 * Smallest number of edits (insert, delete, replace, swap two adjacent
+	 * letters) that turns word into a prefix of name.
+	 *
+	 * @return the distance, or max + 1 as soon as it is known to exceed max
+	 */
+	static int prefixDistance(String word, String name, int max) {
+		int n = word.length();
+		int m = name.length();
+		// rows are word positions, columns name positions
+		int[] before = new int[m + 1];
+		int[] prev = new int[m + 1];
+		int[] cur = new int[m + 1];
+		for (int j = 0; j <= m; ++j) prev[j] = j;
+		for (int i = 1; i <= n; ++i) {
+			cur[0] = i;
+			int rowMin = cur[0];
+			for (int j = 1; j <= m; ++j) {
+				int cost = word.charAt(i - 1) == name.charAt(j - 1) ? 0 : 1;
+				int d = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+				if (i > 1 && j > 1 && word.charAt(i - 1) == name.charAt(j - 2) && word.charAt(i - 2) == name.charAt(j - 1)) {
+					d = Math.min(d, before[j - 2] + 1);
+				}
+				cur[j] = d;
+				rowMin = Math.min(rowMin, d);
+			}
+			if (rowMin > max) return max + 1;
+			int[] t = before;
+			before = prev;
+			prev = cur;
+			cur = t;
+		}
+		// the whole word against any prefix of the name
+		int best = prev[0];
+		for (int j = 1; j <= m; ++j) best = Math.min(best, prev[j]);
+		return Math.min(best, max + 1);
+	}
+
+	/**
+	 * @return s without accents, punctuation or spaces, lower cased
+	 */
+	static String normalize(String s) {
+		String plain = MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("");
+		return NOT_ALNUM.matcher(plain.toLowerCase(Locale.ROOT)).replaceAll("");
+	}
+
+	/** Waits for a rebuild running in another thread. */
+	private State loadedState() throws SQLException {
+		while (true) {
+			synchronized (this) {
+				if (state != null) return state;
+				if (pending == null) break;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the name index", e);
+			}
+		}
+		rebuild();
+		State current = state;
+		if (current == null) throw new SQLException("The name index was reset while it was loading");
+		return current;
+	}
+}
@@ -0,0 +1,246 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * In-memory count of open (not yet closed) service requests per car, kept in
+ * order so the cars with the most open requests can be listed for any K in
+ * O(K) without a database query.
+ *
+ * The index is built from the database on first use (or by rebuild()) and
+ * then follows the writes: insertServiceRequest reports every new request
+ * and closeServiceRequest every closed one, after the change is committed.
+ * Events are keyed by rid and idempotent (opening an open rid or closing a
+ * rid that is not open does nothing), so writes that race with a rebuild
+ * are simply replayed on top of the new snapshot.
+ *
+ * Only writes made through this process are seen until the index is
+ * reloaded, once it is older than mechanicshop.topKIndex.maxAgeMs.  With
+ * the server, a batch run and the menu in separate processes, the report
+ * can therefore miss the others' requests opened or closed since then.
+ *
+ * Cars are ordered by count descending, then by VIN.
+ */
+public class OpenRequestIndex {
+
+	static final String OPEN_REQUESTS_SQL =
+		"SELECT S.rid, S.car_vin, C.make, C.model " +
+		"FROM Service_Request S, Car C " +
+		"WHERE C.vin = S.car_vin " +
+		"AND NOT EXISTS (SELECT 1 FROM Closed_Request CR WHERE CR.rid = S.rid)";
+	static final String CAR_SQL = "SELECT make, model FROM Car WHERE vin = ?";
+
+	static final String[] COLUMNS = { "make", "model", "numofservices" };
+	static final ColumnarResult.Type[] TYPES = { ColumnarResult.Type.STRING, ColumnarResult.Type.STRING, ColumnarResult.Type.LONG };
+
+	private static final class CarCount {
+		final String vin;
+		final String make;
+		final String model;
+		int open = 0;
+
+		CarCount(String vin, String make, String model) {
+			this.vin = vin;
+			this.make = make;
+			this.model = model;
+		}
+	}
+
+	private static final Comparator<CarCount> BUSIEST_FIRST = (a, b) ->
+		a.open != b.open ? Integer.compare(b.open, a.open) : a.vin.compareTo(b.vin);
+
+	/** Counting state, swapped as a whole by rebuild(). */
+	private static final class State {
+		final Map<String, CarCount> cars = new HashMap<String, CarCount>();
+		final Map<Integer, CarCount> openRids = new HashMap<Integer, CarCount>();
+		final TreeSet<CarCount> ranking = new TreeSet<CarCount>(BUSIEST_FIRST);
+		final long loadedAt = System.currentTimeMillis();
+
+		void open(int rid, CarCount car) {
+			if (openRids.containsKey(rid)) return;
+			openRids.put(rid, car);
+			if (car.open > 0) ranking.remove(car);
+			++car.open;
+			ranking.add(car);
+		}
+
+		void close(int rid) {
+			CarCount car = openRids.remove(rid);
+			if (car == null) return;
+			ranking.remove(car);
+			if (--car.open > 0) ranking.add(car);
+		}
+
+		CarCount car(String vin, String make, String model) {
+			CarCount car = cars.get(vin);
+			if (car == null) {
+				car = new CarCount(vin, make, model);
+				cars.put(vin, car);
+			}
+			return car;
+		}
+	}
+
+	private final MechanicShop esql;
+	private final long maxAgeMillis;
+	private State state = null;
+	// events seen while a rebuild is reading the database, replayed after it
+	private List<Object[]> pending = null;
+	// bumped by reset(), so a rebuild that started before it is discarded
+	private int generation = 0;
+	// rids opened() is looking up the car of, mapped to whether closed() came meanwhile
+	private final Map<Integer, Boolean> opening = new HashMap<Integer, Boolean>();
+
+	/**
+	 * @param maxAgeMillis the index is reloaded when older than this; 0 for never
+	 */
+	public OpenRequestIndex(MechanicShop esql, long maxAgeMillis) {
+		this.esql = esql;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Reloads the open requests from the database, e.g. at startup or after
+	 * a bulk load.
+	 *
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public void rebuild() throws SQLException {
+		int started;
+		synchronized (this) {
+			if (pending != null) {
+				// another thread is rebuilding; its snapshot will do
+				return;
+			}
+			pending = new ArrayList<Object[]>();
+			started = generation;
+		}
+		final State fresh = new State();
+		try {
+			esql.executeQueryStreaming(OPEN_REQUESTS_SQL, rs -> {
+				String vin = rs.getString(2);
+				fresh.open(rs.getInt(1), fresh.car(vin, rs.getString(3), rs.getString(4)));
+			});
+		} catch (SQLException | RuntimeException e) {
+			synchronized (this) {
+				pending = null;
+			}
+			throw e;
+		}
+		synchronized (this) {
+			for (Object[] event : pending) apply(fresh, event);
+			pending = null;
+			if (generation == started) state = fresh;
+		}
+	}
+
+	/**
+	 * Drops the index, e.g. after the tables were reloaded; it is read
+	 * again from the database on next use.
+	 */
+	public synchronized void reset() {
+		state = null;
+		++generation;
+	}
+
+	/**
+	 * Records a new open request.  Call after it is committed.  The car is
+	 * looked up outside the lock; a request closed meanwhile is not counted.
+	 */
+	public void opened(int rid, String vin) throws SQLException {
+		CarCount car;
+		synchronized (this) {
+			if (state == null && pending == null) return; // not loaded yet: the rebuild will see it
+			car = state != null ? state.cars.get(vin) : null;
+			opening.put(rid, false);
+		}
+		String make = car != null ? car.make : null;
+		String model = car != null ? car.model : null;
+		try {
+			if (car == null) {
+				ColumnarResult found = esql.executeQueryAndReturnColumnar(CAR_SQL, vin);
+				if (found.rowCount() > 0) {
+					make = found.getString(0, 0);
+					model = found.getString(0, 1);
+				}
+			}
+		} catch (SQLException | RuntimeException e) {
+			synchronized (this) {
+				opening.remove(rid);
+			}
+			throw e;
+		}
+		synchronized (this) {
+			if (opening.remove(rid)) return;
+			record(new Object[] { rid, vin, make, model });
+		}
+	}
+
+	/**
+	 * Records that a request was closed.  Call after it is committed.
+	 */
+	public synchronized void closed(int rid) {
+		if (opening.containsKey(rid)) opening.put(rid, true);
+		record(new Object[] { rid });
+	}
+
+	/**
+	 * @return the k cars with the most open requests, as make, model and
+	 *         count, busiest first
+	 * @throws java.sql.SQLException when the index has to be loaded first and that fails
+	 */
+	public ColumnarResult topK(int k) throws SQLException {
+		State current;
+		synchronized (this) {
+			current = state;
+			if (current != null && maxAgeMillis > 0 && System.currentTimeMillis() - current.loadedAt > maxAgeMillis) {
+				// too old to stand for the other processes' writes: read it again
+				state = null;
+				++generation;
+				current = null;
+			}
+		}
+		if (current == null) {
+			rebuild();
+			synchronized (this) {
+				current = state;
+			}
+			// still loading in another thread: answer from the database this once
+			if (current == null) return esql.executeQueryAndReturnColumnar(MechanicShop.K_CARS_WITH_MOST_SERVICES_SQL, k);
+		}
+		ColumnarResult.Builder result = new ColumnarResult.Builder(COLUMNS, TYPES);
+		synchronized (this) {
+			Iterator<CarCount> it = current.ranking.iterator();
+			for (int i = 0; i < k && it.hasNext(); ++i) {
+				CarCount car = it.next();
+				if (car.make == null) result.addNull(0).addNull(1);
+				else result.add(0, car.make).add(1, car.model);
+				result.add(2, (long) car.open).endRow();
+			}
+		}
+		return result.build();
+	}
+
+	/**
+	 * @return the number of open requests currently counted
+	 */
+	public synchronized int openCount() {
+		return state == null ? 0 : state.openRids.size();
+	}
+
+	private synchronized void record(Object[] event) {
+		if (state != null) apply(state, event);
+		if (pending != null) pending.add(event);
+	}
+
+	private static void apply(State s, Object[] event) {
+		int rid = (Integer) event[0];
+		if (event.length == 1) s.close(rid);
+		else s.open(rid, s.car((String) event[1], (String) event[2], (String) event[3]));
+	}
+}
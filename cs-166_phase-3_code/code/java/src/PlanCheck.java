@@ -0,0 +1,169 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plan regression check for the menu queries.
+ *
+ * Every query is run through EXPLAIN with parameters taken from the data
+ * that is loaded, and its plan is searched for sequential scans.  A query
+ * fails the check when it fully scans one of the tables it is supposed to
+ * reach through an index (or through Customer_Summary) and that table holds
+ * at least minRows rows.  Small tables are ignored: there a sequential scan
+ * is the right plan.  Run it against a scaled dataset, e.g. one written by
+ * DataGenerator, so the planner sees realistic table sizes.
+ *
+ * Report pages are checked by the query of a page after the first, which
+ * must seek into an index rather than scan the whole report.  The
+ * open-request index rebuild and the SQL top-K report read every request
+ * by design and are not checked.
+ */
+public class PlanCheck {
+
+	static final String[] SHOP_TABLES = { "Customer", "Mechanic", "Car", "Owns", "Service_Request", "Closed_Request", "Customer_Summary" };
+
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+
+	/** A query, the tables it must not scan, and how to fill in its parameters. */
+	static final class Check {
+		final String name;
+		final String sql;
+		final String[] indexedTables;
+		final String[] params;
+
+		Check(String name, String sql, String[] indexedTables, String... params) {
+			this.name = name;
+			this.sql = sql;
+			this.indexedTables = indexedTables;
+			this.params = params;
+		}
+	}
+
+	static final Check[] CHECKS = {
+		new Check("findCustomersByLastName", MechanicShop.FIND_CUSTOMERS_BY_LAST_NAME_SQL, tables("customer"), "lname"),
+		new Check("listCustomerCars", MechanicShop.LIST_CUSTOMER_CARS_SQL, tables("owns", "customer", "car"), "customer_id"),
+		new Check("isOwnedCar", MechanicShop.CHECK_OWNED_VIN_SQL, tables("owns", "customer", "car"), "vin"),
+		new Check("ownsCar", MechanicShop.CHECK_CUSTOMER_OWNS_VIN_SQL, tables("owns"), "customer_id", "vin"),
+		new Check("serviceRequestExists", MechanicShop.CHECK_SERVICE_REQUEST_SQL, tables("service_request"), "rid"),
+		new Check("mechanicExists", MechanicShop.CHECK_MECHANIC_SQL, tables("mechanic"), "mechanic_id"),
+		new Check("closeServiceRequest.dateCheck", MechanicShop.CHECK_REQUEST_DATE_SQL, tables("service_request"), "rid"),
+		new Check("batchInsertServiceRequest", BatchRunner.BATCH_OPEN_SQL, tables("owns"), "0", "customer_id", "vin", "1", "'plan check'", "customer_id", "vin"),
+		new Check("batchCloseServiceRequest", BatchRunner.BATCH_CLOSE_SQL, tables("service_request", "mechanic"), "0", "mechanic_id", "'plan check'", "1", "rid", "mechanic_id"),
+		new Check("openRequestIndex.carLookup", OpenRequestIndex.CAR_SQL, tables("car"), "vin"),
+		new Check("listCustomersWithBillLessThan100", MechanicShop.BILL_LESS_THAN_100_SQL, tables("closed_request")),
+		new Check("listCustomersWithMoreThan20Cars", MechanicShop.MORE_THAN_20_CARS_SQL, tables("customer_summary", "owns")),
+		new Check("listCarsBefore1995With50000Milles", MechanicShop.CARS_BEFORE_1995_SQL, tables("service_request")),
+		new Check("listCustomersInDescendingOrderOfTheirTotalBill", MechanicShop.TOTAL_BILL_DESC_SQL, tables("closed_request", "service_request", "owns")),
+		new Check("customersWithBillLessThan100Page", seek(ReportPager.BILL_LESS_THAN_100).afterSql, tables("closed_request"), "0", "0", "51"),
+		new Check("customersWithMoreThan20CarsPage", seek(ReportPager.MORE_THAN_20_CARS).afterSql, tables("customer_summary"), "0", "51"),
+		new Check("carsBefore1995With50000MilesPage", seek(ReportPager.CARS_BEFORE_1995).afterSql, tables("service_request"), "0", "51"),
+		new Check("customersByTotalBillDescPage", seek(ReportPager.TOTAL_BILL_DESC).afterSql, tables("customer_summary"), "2147483647", "0", "51"),
+	};
+
+	private final MechanicShop esql;
+	private final long minRows;
+
+	public PlanCheck(MechanicShop esql, long minRows) {
+		this.esql = esql;
+		this.minRows = minRows;
+	}
+
+	/**
+	 * Analyzes the shop tables and checks the plan of every query.
+	 *
+	 * @return the number of queries that failed the check
+	 * @throws java.sql.SQLException when a query cannot be explained
+	 */
+	public int run() throws SQLException {
+		for (String table : SHOP_TABLES) esql.executeUpdate("ANALYZE " + table);
+		Map<String, Long> rows = tableRows();
+		Map<String, Object> samples = samples();
+
+		int failed = 0;
+		for (Check check : CHECKS) {
+			Object[] params = new Object[check.params.length];
+			boolean missing = false;
+			for (int i = 0; i < params.length; ++i) {
+				String p = check.params[i];
+				if (p.startsWith("'")) params[i] = p.substring(1, p.length() - 1);
+				else if (Character.isDigit(p.charAt(0))) params[i] = Integer.parseInt(p);
+				else if ((params[i] = samples.get(p)) == null) missing = true;
+			}
+			if (missing) {
+				System.out.println(String.format("  %-48s skipped, no sample data", check.name));
+				continue;
+			}
+
+			List<String> plan = explain(check.sql, params);
+			Set<String> scanned = new LinkedHashSet<String>();
+			for (String line : plan) {
+				Matcher m = SEQ_SCAN.matcher(line);
+				while (m.find()) scanned.add(m.group(1).toLowerCase());
+			}
+			List<String> regressions = new ArrayList<String>();
+			for (String table : check.indexedTables) {
+				Long count = rows.get(table);
+				if (scanned.contains(table) && count != null && count >= minRows) {
+					regressions.add(table + " (" + count + " rows)");
+				}
+			}
+			if (regressions.isEmpty()) {
+				System.out.println(String.format("  %-48s ok", check.name));
+			} else {
+				++failed;
+				System.out.println(String.format("  %-48s FULL SCAN of %s", check.name, String.join(", ", regressions)));
+				for (String line : plan) System.out.println("      " + line);
+			}
+		}
+		System.out.println(failed == 0 ? "All plans ok" : failed + " plan(s) regressed to a full scan");
+		return failed;
+	}
+
+	private List<String> explain(String sql, Object[] params) throws SQLException {
+		ColumnarResult result = esql.executeQueryAndReturnColumnar("EXPLAIN " + sql, params);
+		List<String> lines = new ArrayList<String>(result.rowCount());
+		for (int r = 0; r < result.rowCount(); ++r) lines.add(result.getString(r, 0));
+		return lines;
+	}
+
+	/** Estimated row counts of the shop tables, by lower case name. */
+	private Map<String, Long> tableRows() throws SQLException {
+		ColumnarResult result = esql.executeQueryAndReturnColumnar(
+				"SELECT C.relname::text, C.reltuples::bigint FROM pg_class C, pg_namespace N " +
+				"WHERE N.oid = C.relnamespace AND N.nspname = 'public' AND C.relkind = 'r'");
+		Map<String, Long> rows = new HashMap<String, Long>();
+		for (int r = 0; r < result.rowCount(); ++r) rows.put(result.getString(r, 0), result.getLong(r, 1));
+		return rows;
+	}
+
+	/** Existing keys to use as query parameters. */
+	private Map<String, Object> samples() throws SQLException {
+		Map<String, Object> samples = new HashMap<String, Object>();
+		ColumnarResult owns = esql.executeQueryAndReturnColumnar(
+				"SELECT O.customer_id, O.car_vin, C.lname FROM Owns O, Customer C WHERE C.id = O.customer_id LIMIT 1");
+		if (owns.rowCount() > 0) {
+			samples.put("customer_id", owns.getInt(0, 0));
+			samples.put("vin", owns.getString(0, 1));
+			samples.put("lname", owns.getString(0, 2));
+		}
+		ColumnarResult request = esql.executeQueryAndReturnColumnar("SELECT rid FROM Service_Request LIMIT 1");
+		if (request.rowCount() > 0) samples.put("rid", request.getInt(0, 0));
+		ColumnarResult mechanic = esql.executeQueryAndReturnColumnar("SELECT id FROM Mechanic LIMIT 1");
+		if (mechanic.rowCount() > 0) samples.put("mechanic_id", mechanic.getInt(0, 0));
+		return samples;
+	}
+
+	private static ReportPager.SeekReport seek(ReportPager.Report report) {
+		return (ReportPager.SeekReport) report;
+	}
+
+	private static String[] tables(String... names) {
+		return names;
+	}
+}
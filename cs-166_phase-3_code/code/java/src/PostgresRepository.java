@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * ShopRepository over the database: the MechanicShop operations, with their
+ * report cache, in-memory indexes and filters.
+ */
+public class PostgresRepository implements ShopRepository {
+
+	static final String SAMPLE_OWNED_CARS_SQL =
+		"SELECT O.customer_id, O.car_vin, C.lname FROM Owns O, Customer C WHERE C.id = O.customer_id ORDER BY O.ownership_id LIMIT ?";
+	static final String SAMPLE_MECHANICS_SQL = "SELECT id FROM Mechanic ORDER BY id LIMIT ?";
+
+	private final MechanicShop esql;
+
+	public PostgresRepository(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	public MechanicShop shop() {
+		return esql;
+	}
+
+	@Override
+	public int addCustomer(String fname, String lname, String phone, String address) throws SQLException {
+		return MechanicShop.addCustomer(esql, fname, lname, phone, address);
+	}
+
+	@Override
+	public int addMechanic(String fname, String lname, int experience) throws SQLException {
+		return MechanicShop.addMechanic(esql, fname, lname, experience);
+	}
+
+	@Override
+	public void addCar(String vin, String make, String model, int year) throws SQLException {
+		MechanicShop.addCar(esql, vin, make, model, year);
+	}
+
+	@Override
+	public int addOwnership(int customerId, String vin) throws SQLException {
+		return MechanicShop.addOwnership(esql, customerId, vin);
+	}
+
+	@Override
+	public ColumnarResult findCustomersByLastName(String lname) throws SQLException {
+		return MechanicShop.findCustomersByLastName(esql, lname);
+	}
+
+	@Override
+	public ColumnarResult listCustomerCars(int customerId) throws SQLException {
+		return MechanicShop.listCustomerCars(esql, customerId);
+	}
+
+	@Override
+	public boolean isOwnedCar(String vin) throws SQLException {
+		return MechanicShop.isOwnedCar(esql, vin);
+	}
+
+	@Override
+	public boolean ownsCar(int customerId, String vin) throws SQLException {
+		return MechanicShop.ownsCar(esql, customerId, vin);
+	}
+
+	@Override
+	public boolean serviceRequestExists(int rid) throws SQLException {
+		return MechanicShop.serviceRequestExists(esql, rid);
+	}
+
+	@Override
+	public boolean mechanicExists(int mechanicId) throws SQLException {
+		return MechanicShop.mechanicExists(esql, mechanicId);
+	}
+
+	@Override
+	public int insertServiceRequest(int customerId, String vin, int odometer, String complaint) throws SQLException {
+		return MechanicShop.insertServiceRequest(esql, customerId, vin, odometer, complaint);
+	}
+
+	@Override
+	public int openServiceRequestForNewCar(int customerId, String vin, String make, String model, int year,
+			int odometer, String complaint) throws SQLException {
+		return MechanicShop.openServiceRequestForNewCar(esql, customerId, vin, make, model, year, odometer, complaint);
+	}
+
+	@Override
+	public int closeServiceRequest(int rid, int mechanicId, String comment, int bill) throws SQLException {
+		return MechanicShop.closeServiceRequest(esql, rid, mechanicId, comment, bill);
+	}
+
+	@Override
+	public ColumnarResult customersWithBillLessThan100() throws SQLException {
+		return MechanicShop.customersWithBillLessThan100(esql);
+	}
+
+	@Override
+	public ColumnarResult customersWithMoreThan20Cars() throws SQLException {
+		return MechanicShop.customersWithMoreThan20Cars(esql);
+	}
+
+	@Override
+	public ColumnarResult carsBefore1995With50000Miles() throws SQLException {
+		return MechanicShop.carsBefore1995With50000Miles(esql);
+	}
+
+	@Override
+	public ColumnarResult kCarsWithTheMostServices(int k) throws SQLException {
+		return MechanicShop.kCarsWithTheMostServices(esql, k);
+	}
+
+	@Override
+	public ColumnarResult customersByTotalBillDesc() throws SQLException {
+		return MechanicShop.customersByTotalBillDesc(esql);
+	}
+
+	@Override
+	public void load(File dir) throws IOException, SQLException {
+		try {
+			new BulkLoader(esql).load(dir);
+		} catch (IOException | SQLException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// interrupted while waiting for the loader's workers
+			throw new IOException("Loading " + dir + " failed", e);
+		}
+	}
+
+	@Override
+	public ColumnarResult sampleOwnedCars(int limit) throws SQLException {
+		return esql.executeQueryAndReturnColumnar(SAMPLE_OWNED_CARS_SQL, limit);
+	}
+
+	@Override
+	public ColumnarResult sampleMechanics(int limit) throws SQLException {
+		return esql.executeQueryAndReturnColumnar(SAMPLE_MECHANICS_SQL, limit);
+	}
+}
@@ -0,0 +1,303 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Picks a hot standby of the primary for read-only queries (see
+ * MechanicShop.readOnly), so long report scans do not compete with the
+ * desk's writes.
+ *
+ * Every standby has a pool of its own.  A background check samples the
+ * primary's WAL position, then reads each standby's replay position.  A
+ * standby has caught up to a sample once it has replayed that far, and it
+ * is lagging by the time since the newest sample it has caught up to.
+ * Queries go to the least busy standby that is reachable, still in
+ * recovery, and lagging by no more than the maximum; otherwise they run on
+ * the primary.
+ *
+ * Read-your-writes: a consistent read also needs a standby that has caught
+ * up to a sample taken after this process's last committed write (the last
+ * ReportCache invalidation).  When none has yet, the read goes to the
+ * primary at once and the background check is asked to run early; a read
+ * never waits for a check or opens a connection to a standby itself.  The
+ * report cache only stores consistent reads, so a result computed on a
+ * standby is never older than the writes it is cached against.
+ *
+ * A standby that drops its connection is skipped until a check reaches it
+ * again.  A query it cancels because of replication (40001, a recovery
+ * conflict) is repeated on the primary.
+ */
+public class ReplicaRouter {
+
+	/** Primary WAL samples kept to measure lag against. */
+	private static final int MAX_SAMPLES = 512;
+
+	/** One read-only endpoint. */
+	public static final class Replica {
+		public final String endpoint;
+		final ConnectionPool pool;
+		// the check's own connection, outside the pool
+		private Connection monitor = null;
+		volatile boolean up = false;
+		volatile boolean checked = false;
+		// System.nanoTime of the newest primary sample this standby has replayed
+		volatile long caughtUpAt = 0;
+		volatile String problem = "not checked yet";
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicInteger fallbacks = new AtomicInteger();
+
+		Replica(String endpoint, ConnectionPool pool) {
+			this.endpoint = endpoint;
+			this.pool = pool;
+		}
+
+		int busy() {
+			return pool.size() - pool.idleCount();
+		}
+	}
+
+	private final ConnectionPool primary;
+	private final ReportCache writes;
+	private final List<Replica> replicas;
+	private final long maxLagNanos;
+	private final ReentrantLock checkLock = new ReentrantLock();
+	// {WAL position, System.nanoTime}, oldest first
+	private final Deque<long[]> samples = new ArrayDeque<long[]>();
+	private final AtomicInteger next = new AtomicInteger();
+	private final ScheduledExecutorService checker;
+	// an early check is queued on the checker thread
+	private final AtomicBoolean checkRequested = new AtomicBoolean();
+	private Connection primaryMonitor = null;
+	// System.nanoTime when the last complete check started
+	private volatile long lastCheck = 0;
+	private volatile boolean everChecked = false;
+
+	/**
+	 * @param writes the cache whose invalidations mark this process's writes
+	 * @param maxLagMillis how far behind a standby may be and still serve reads
+	 * @param checkIntervalMillis how often the standbys are checked
+	 */
+	public ReplicaRouter(ConnectionPool primary, ReportCache writes, List<Replica> replicas, long maxLagMillis, long checkIntervalMillis) {
+		this.primary = primary;
+		this.writes = writes;
+		this.replicas = Collections.unmodifiableList(new ArrayList<Replica>(replicas));
+		this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+		this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "replica-check");
+			t.setDaemon(true);
+			return t;
+		});
+		// the first check runs in the background too; reads use the primary until it is done
+		this.checker.scheduleWithFixedDelay(this::check, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public List<Replica> replicas() {
+		return replicas;
+	}
+
+	/**
+	 * @param consistent whether the standby must have replayed this process's last write
+	 * @return the standby to read from, or null for the primary
+	 */
+	Replica choose(boolean consistent) {
+		Replica replica = pick(consistent);
+		if (replica == null && consistent && (!everChecked || lastCheck - writes.lastWrite() < 0)) {
+			// the standbys may well have the write by now; have them checked early, but do not wait
+			requestCheck();
+		}
+		if (replica != null) replica.reads.incrementAndGet();
+		return replica;
+	}
+
+	private void requestCheck() {
+		if (!checkRequested.compareAndSet(false, true)) return;
+		try {
+			checker.execute(() -> {
+				checkRequested.set(false);
+				check();
+			});
+		} catch (RejectedExecutionException e) {
+			// closed
+			checkRequested.set(false);
+		}
+	}
+
+	private Replica pick(boolean consistent) {
+		long now = System.nanoTime();
+		long lastWrite = writes.lastWrite();
+		int n = replicas.size();
+		int start = Math.floorMod(next.getAndIncrement(), n);
+		Replica best = null;
+		for (int i = 0; i < n; ++i) {
+			Replica r = replicas.get((start + i) % n);
+			if (!r.up || !r.checked || now - r.caughtUpAt > maxLagNanos) continue;
+			if (consistent && r.caughtUpAt - lastWrite < 0) continue;
+			if (best == null || r.busy() < best.busy()) best = r;
+		}
+		return best;
+	}
+
+	/**
+	 * Records a failed read on a standby.
+	 *
+	 * @return whether the read should be repeated on the primary
+	 */
+	boolean failed(Replica replica, SQLException e) {
+		String state = e.getSQLState();
+		if (state == null) return false;
+		if (state.startsWith("08")) {
+			replica.up = false;
+			replica.problem = e.getMessage();
+		} else if (!state.equals("40001")) {
+			// the primary would fail the same way
+			return false;
+		}
+		replica.fallbacks.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Samples the primary's WAL position and the replay position of every
+	 * standby.  Runs on the checker thread only: periodically, and early
+	 * when a consistent read found no standby that has the last write.
+	 */
+	void check() {
+		checkLock.lock();
+		try {
+			checkNow();
+		} finally {
+			checkLock.unlock();
+		}
+	}
+
+	private void checkNow() {
+		long started = System.nanoTime();
+		long position;
+		try {
+			if (primaryMonitor == null) primaryMonitor = primary.openUnpooled();
+			position = position(primaryMonitor, false);
+		} catch (SQLException e) {
+			// nothing to compare the standbys with; their lag grows until the primary is back
+			primaryMonitor = closeQuietly(primaryMonitor);
+			return;
+		}
+		samples.addLast(new long[] { position, started });
+		if (samples.size() > MAX_SAMPLES) samples.removeFirst();
+		for (Replica r : replicas) check(r);
+		lastCheck = started;
+		everChecked = true;
+	}
+
+	private void check(Replica r) {
+		try {
+			if (r.monitor == null) r.monitor = r.pool.openUnpooled();
+			long replayed = position(r.monitor, true);
+			Iterator<long[]> newestFirst = samples.descendingIterator();
+			while (newestFirst.hasNext()) {
+				long[] sample = newestFirst.next();
+				if (sample[0] <= replayed) {
+					if (!r.checked || sample[1] - r.caughtUpAt > 0) r.caughtUpAt = sample[1];
+					r.checked = true;
+					break;
+				}
+			}
+			if (!r.up) System.err.println("Standby " + r.endpoint + " is reachable");
+			r.up = true;
+			r.problem = null;
+		} catch (SQLException e) {
+			if (r.up) System.err.println("Standby " + r.endpoint + " is skipped: " + e.getMessage());
+			r.up = false;
+			r.problem = e.getMessage();
+			r.monitor = closeQuietly(r.monitor);
+		}
+	}
+
+	/**
+	 * @param standby whether to read the replay position of a standby
+	 *        rather than the write position of the primary
+	 * @return the WAL position as a byte offset
+	 */
+	private static long position(Connection conn, boolean standby) throws SQLException {
+		// PostgreSQL 10 renamed xlog to wal and location to lsn
+		boolean wal = conn.getMetaData().getDatabaseMajorVersion() >= 10;
+		String sql = standby
+			? "SELECT pg_is_in_recovery(), " + (wal ? "pg_last_wal_replay_lsn()" : "pg_last_xlog_replay_location()")
+			: "SELECT NOT pg_is_in_recovery(), " + (wal ? "pg_current_wal_lsn()" : "pg_current_xlog_location()");
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			rs.next();
+			if (!rs.getBoolean(1)) {
+				throw new SQLException(standby ? "not a standby (not in recovery)" : "the primary is in recovery", "55000");
+			}
+			String position = rs.getString(2);
+			if (position == null) throw new SQLException("no WAL replayed yet", "55000");
+			return parsePosition(position);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * @return a WAL position such as 16/B374D848 as a byte offset
+	 */
+	static long parsePosition(String position) {
+		int slash = position.indexOf('/');
+		return Long.parseLong(position.substring(0, slash), 16) << 32 | Long.parseLong(position.substring(slash + 1), 16);
+	}
+
+	/**
+	 * @return one line per standby: endpoint, state, lag and read counts
+	 */
+	public List<String> describe() {
+		long now = System.nanoTime();
+		List<String> lines = new ArrayList<String>();
+		for (Replica r : replicas) {
+			String state = !r.up ? "down (" + r.problem + ")"
+				: !r.checked ? "up, behind every sample"
+				: String.format("up, %d ms behind", TimeUnit.NANOSECONDS.toMillis(Math.max(0, now - r.caughtUpAt)));
+			lines.add(String.format("%-24s %s, %d reads, %d repeated on the primary, %d connections busy",
+					r.endpoint, state, r.reads.get(), r.fallbacks.get(), r.busy()));
+		}
+		return lines;
+	}
+
+	public void close() {
+		checker.shutdownNow();
+		checkLock.lock();
+		try {
+			primaryMonitor = closeQuietly(primaryMonitor);
+			for (Replica r : replicas) {
+				r.monitor = closeQuietly(r.monitor);
+				r.pool.close();
+			}
+		} finally {
+			checkLock.unlock();
+		}
+	}
+
+	private static Connection closeQuietly(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				// ignored
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,286 @@
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caches report results, keyed by report and parameters, until a write
+ * touches one of the tables the report reads.
+ *
+ * Every table has a version number that the write operations bump once
+ * their change is committed (see invalidate).  A cached result remembers
+ * the versions of its tables as they were before its query started and is
+ * served only while they are unchanged, so a result can never be older than
+ * a write that completed before the report was requested, even when the
+ * write races with the query that filled the cache.  Entries of changed
+ * tables are also dropped right away to free their memory.
+ *
+ * The cache is bounded by entry count and by total cells (rows x columns)
+ * and evicts least recently used entries first.  Concurrent requests for
+ * the same missing report share one query.  ColumnarResult is read-only,
+ * so a cached result is handed to every caller as is.  A caller that prints
+ * a report as it streams in uses peek and put instead, and only keeps the
+ * rows when the result is small enough to be cached.
+ *
+ * Only writes made through this process invalidate; with several processes
+ * writing to one database, set a maximum age as well.
+ */
+public class ReportCache {
+
+	/* Table bits, combined to describe what a report reads or a write touches. */
+	public static final int CUSTOMER = 1;
+	public static final int MECHANIC = 1 << 1;
+	public static final int CAR = 1 << 2;
+	public static final int OWNS = 1 << 3;
+	public static final int SERVICE_REQUEST = 1 << 4;
+	public static final int CLOSED_REQUEST = 1 << 5;
+	public static final int ALL_TABLES = (1 << 6) - 1;
+	private static final int TABLE_COUNT = 6;
+
+	/** Computes a report on a cache miss. */
+	public interface Query {
+		ColumnarResult run() throws SQLException;
+	}
+
+	private static final class Entry {
+		final ColumnarResult result;
+		final int tables;
+		final long[] versions;
+		final long created;
+		final long cells;
+
+		Entry(ColumnarResult result, int tables, long[] versions, long created) {
+			this.result = result;
+			this.tables = tables;
+			this.versions = versions;
+			this.created = created;
+			this.cells = (long) result.rowCount() * Math.max(1, result.columnCount());
+		}
+	}
+
+	/** A query in progress, shared by the callers that missed meanwhile. */
+	private static final class Load {
+		final int tables;
+		final long[] versions;
+		final CompletableFuture<ColumnarResult> future = new CompletableFuture<ColumnarResult>();
+
+		Load(int tables, long[] versions) {
+			this.tables = tables;
+			this.versions = versions;
+		}
+	}
+
+	private final int maxEntries;
+	private final long maxCells;
+	private final long maxAgeMillis;
+
+	private final AtomicLongArray versions = new AtomicLongArray(TABLE_COUNT);
+	// System.nanoTime of the last invalidate, for read-your-writes on standbys
+	private volatile long lastWrite = System.nanoTime();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, Load> loading = new HashMap<String, Load>();
+	private long cells = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxEntries maximum number of cached results; 0 disables caching
+	 * @param maxCells maximum rows x columns over all cached results
+	 * @param maxAgeMillis results older than this are recomputed; 0 for no limit
+	 */
+	public ReportCache(int maxEntries, long maxCells, long maxAgeMillis) {
+		this.maxEntries = maxEntries;
+		this.maxCells = maxCells;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Returns the cached result for key, or runs the query and caches its
+	 * result.
+	 *
+	 * @param key the report name and its parameters, e.g. "kCars:10"
+	 * @param tables bits of the tables the report reads
+	 * @param query computes the report on a miss
+	 * @return the report
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public ColumnarResult get(String key, int tables, Query query) throws SQLException {
+		if (maxEntries <= 0) return query.run();
+		Load load;
+		Load running;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && isFresh(entry.tables, entry.versions, entry.created)) {
+				++hits;
+				return entry.result;
+			}
+			running = loading.get(key);
+			if (running != null && isFresh(running.tables, running.versions, System.currentTimeMillis())) {
+				// counted as a hit: the caller shares a query already running
+				++hits;
+				load = null;
+			} else {
+				++misses;
+				load = new Load(tables, snapshot());
+				loading.put(key, load);
+			}
+		}
+		if (load == null) return await(running);
+
+		ColumnarResult result;
+		try {
+			result = query.run();
+		} catch (SQLException | RuntimeException e) {
+			synchronized (this) {
+				if (loading.get(key) == load) loading.remove(key);
+			}
+			load.future.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (this) {
+			if (loading.get(key) == load) loading.remove(key);
+			store(key, tables, load.versions, result);
+		}
+		load.future.complete(result);
+		return result;
+	}
+
+	/**
+	 * Returns the cached result for key without running anything, for a
+	 * caller that streams the report itself on a miss.
+	 *
+	 * @return the cached result, or null on a miss
+	 */
+	public synchronized ColumnarResult peek(String key) {
+		if (maxEntries <= 0) return null;
+		Entry entry = entries.get(key);
+		if (entry != null && isFresh(entry.tables, entry.versions, entry.created)) {
+			++hits;
+			return entry.result;
+		}
+		++misses;
+		return null;
+	}
+
+	/**
+	 * @return the table versions to hand to put, taken before the query starts
+	 */
+	public long[] versions() {
+		return snapshot();
+	}
+
+	/**
+	 * Caches a result computed after peek missed, unless one of its tables
+	 * was written since versions() was taken.
+	 *
+	 * @param versions what versions() returned before the query started
+	 */
+	public synchronized void put(String key, int tables, long[] versions, ColumnarResult result) {
+		if (maxEntries > 0) store(key, tables, versions, result);
+	}
+
+	/**
+	 * @return the most cells (rows x columns) a result may have to be
+	 *         cached; 0 when caching is off
+	 */
+	public long maxCells() {
+		return maxEntries > 0 ? maxCells : 0;
+	}
+
+	/**
+	 * Marks tables as changed.  Call after the write is committed.
+	 *
+	 * @param tables bits of the tables written
+	 */
+	public void invalidate(int tables) {
+		lastWrite = System.nanoTime();
+		for (int t = 0; t < TABLE_COUNT; ++t) {
+			if ((tables & (1 << t)) != 0) versions.incrementAndGet(t);
+		}
+		synchronized (this) {
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if ((entry.tables & tables) != 0) {
+					cells -= entry.cells;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/** Marks every table as changed, e.g. after a bulk load. */
+	public void invalidateAll() {
+		invalidate(ALL_TABLES);
+	}
+
+	/**
+	 * @return System.nanoTime of the last invalidate, or of the cache's
+	 *         creation when nothing was written yet (see ReplicaRouter)
+	 */
+	public long lastWrite() {
+		return lastWrite;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	private static ColumnarResult await(Load load) throws SQLException {
+		try {
+			return load.future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a report", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new SQLException(cause);
+		}
+	}
+
+	private long[] snapshot() {
+		long[] snap = new long[TABLE_COUNT];
+		for (int t = 0; t < TABLE_COUNT; ++t) snap[t] = versions.get(t);
+		return snap;
+	}
+
+	private boolean isFresh(int tables, long[] seen, long created) {
+		if (maxAgeMillis > 0 && System.currentTimeMillis() - created > maxAgeMillis) return false;
+		for (int t = 0; t < TABLE_COUNT; ++t) {
+			if ((tables & (1 << t)) != 0 && versions.get(t) != seen[t]) return false;
+		}
+		return true;
+	}
+
+	private void store(String key, int tables, long[] seen, ColumnarResult result) {
+		Entry entry = new Entry(result, tables, seen, System.currentTimeMillis());
+		if (entry.cells <= maxCells && isFresh(tables, seen, entry.created)) {
+			Entry old = entries.put(key, entry);
+			if (old != null) cells -= old.cells;
+			cells += entry.cells;
+			evict();
+		}
+	}
+
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while ((entries.size() > maxEntries || cells > maxCells) && it.hasNext()) {
+			cells -= it.next().cells;
+			it.remove();
+		}
+	}
+}
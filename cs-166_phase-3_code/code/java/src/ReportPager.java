@@ -0,0 +1,248 @@
+import java.sql.SQLException;
+
+/**
+ * Reads the reports one page at a time with keyset (seek) pagination.
+ *
+ * Every page is the report's query ordered by a unique key and limited to
+ * the page size.  The next page starts after the key of the last row shown
+ * and the previous page ends before the key of the first one, so each page
+ * is one bounded range scan of an index (migrations/002_report_pages.sql),
+ * however deep into the report it is.  OFFSET would read and throw away
+ * every row before the page instead.  Pages also stay put while rows are
+ * added: a new row shows up on the page its key belongs to rather than
+ * pushing every later page down by one.
+ *
+ * The top-K report is bounded by K and served from memory, so its pages
+ * are cut from the whole result and keyed by position.
+ */
+public class ReportPager {
+
+	/** ListCustomersWithBillLessThan100, by request and closing. */
+	public static final Report BILL_LESS_THAN_100 = new SeekReport("customersWithBillLessThan100",
+			MechanicShop.BILL_LESS_THAN_100_COLUMNS, MechanicShop.BILL_LESS_THAN_100_FROM_WHERE, false, MechanicShop.BILL_LESS_THAN_100_PAGE_KEY);
+
+	/** ListCustomersWithMoreThan20Cars, by customer id. */
+	public static final Report MORE_THAN_20_CARS = new SeekReport("customersWithMoreThan20Cars",
+			MechanicShop.MORE_THAN_20_CARS_COLUMNS, MechanicShop.MORE_THAN_20_CARS_FROM_WHERE, false, MechanicShop.MORE_THAN_20_CARS_PAGE_KEY);
+
+	/** ListCarsBefore1995With50000Milles, by service request. */
+	public static final Report CARS_BEFORE_1995 = new SeekReport("carsBefore1995With50000Miles",
+			MechanicShop.CARS_BEFORE_1995_COLUMNS, MechanicShop.CARS_BEFORE_1995_FROM_WHERE, false, MechanicShop.CARS_BEFORE_1995_PAGE_KEY);
+
+	/** ListCustomersInDescendingOrderOfTheirTotalBill, ties by customer id, also descending. */
+	public static final Report TOTAL_BILL_DESC = new SeekReport("customersByTotalBillDesc",
+			MechanicShop.TOTAL_BILL_DESC_COLUMNS, MechanicShop.TOTAL_BILL_DESC_FROM_WHERE, true, MechanicShop.TOTAL_BILL_DESC_PAGE_KEY);
+
+	/**
+	 * @return ListKCarsWithTheMostServices for k cars
+	 */
+	public static Report topCars(int k) {
+		return new RankedReport(k);
+	}
+
+	/** A report that can be read one page at a time. */
+	public abstract static class Report {
+		final String name;
+		final int keyLength;
+
+		Report(String name, int keyLength) {
+			this.name = name;
+			this.keyLength = keyLength;
+		}
+
+		/**
+		 * @param after key to start after, or null
+		 * @param before key to end before when after is null, or null for the first page
+		 */
+		abstract Page read(MechanicShop esql, long[] after, long[] before, int pageSize) throws SQLException;
+	}
+
+	/** Rows of one page and where the pages next to it start. */
+	public static final class Page {
+		public final ColumnarResult rows;
+		public final boolean hasPrevious;
+		public final boolean hasNext;
+		final long[] firstKey;
+		final long[] lastKey;
+
+		Page(ColumnarResult rows, long[] firstKey, long[] lastKey, boolean hasPrevious, boolean hasNext) {
+			this.rows = rows;
+			this.firstKey = firstKey;
+			this.lastKey = lastKey;
+			this.hasPrevious = hasPrevious && firstKey != null;
+			this.hasNext = hasNext && lastKey != null;
+		}
+
+		/**
+		 * @return the cursor of the next page, null on the last page
+		 */
+		public String nextCursor() {
+			return hasNext ? cursor(lastKey) : null;
+		}
+
+		/**
+		 * @return the cursor of the previous page, null on the first page
+		 */
+		public String previousCursor() {
+			return hasPrevious ? cursor(firstKey) : null;
+		}
+	}
+
+	/**
+	 * Reads a page, timed as the report's operation name followed by "Page".
+	 *
+	 * @param after cursor to start after, or null
+	 * @param before cursor to end before when after is null, or null for the first page
+	 * @throws java.lang.IllegalArgumentException when a cursor is not one of this report's
+	 */
+	public static Page read(MechanicShop esql, Report report, String after, String before, int pageSize) throws SQLException {
+		return read(esql, report, parseCursor(report, after), parseCursor(report, before), pageSize);
+	}
+
+	public static Page first(MechanicShop esql, Report report, int pageSize) throws SQLException {
+		return read(esql, report, (long[]) null, null, pageSize);
+	}
+
+	public static Page next(MechanicShop esql, Report report, Page page, int pageSize) throws SQLException {
+		return read(esql, report, page.lastKey, null, pageSize);
+	}
+
+	public static Page previous(MechanicShop esql, Report report, Page page, int pageSize) throws SQLException {
+		return read(esql, report, null, page.firstKey, pageSize);
+	}
+
+	private static Page read(MechanicShop esql, Report report, long[] after, long[] before, int pageSize) throws SQLException {
+		if (pageSize < 1) throw new IllegalArgumentException("Page size must be at least 1");
+		return esql.getMetrics().time(report.name + "Page", () -> report.read(esql, after, before, pageSize));
+	}
+
+	static String cursor(long[] key) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < key.length; ++i) {
+			if (i > 0) s.append(',');
+			s.append(key[i]);
+		}
+		return s.toString();
+	}
+
+	/**
+	 * @return the key in a cursor, null for a null cursor
+	 * @throws java.lang.IllegalArgumentException when it is not a key of this report
+	 */
+	static long[] parseCursor(Report report, String cursor) {
+		if (cursor == null) return null;
+		String[] parts = cursor.split(",", -1);
+		if (parts.length != report.keyLength) throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		long[] key = new long[parts.length];
+		try {
+			for (int i = 0; i < parts.length; ++i) key[i] = Long.parseLong(parts[i].trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		}
+		return key;
+	}
+
+	/**
+	 * A report query paged by seeking to a key.  One row more than the page
+	 * size is read to learn whether there is another page in that direction.
+	 * It is built from the same parts as the menu's query (see MechanicShop),
+	 * with the key columns added to the select list and ordered by the key.
+	 */
+	static final class SeekReport extends Report {
+		final String firstSql;
+		final String afterSql;
+		final String beforeSql;
+
+		/**
+		 * @param columns the report's select list
+		 * @param fromWhere its FROM and WHERE clauses
+		 * @param descending whether the report lists the largest keys first
+		 * @param keys the sort key, unique over the report's rows
+		 */
+		SeekReport(String name, String columns, String fromWhere, boolean descending, String... keys) {
+			super(name, keys.length);
+			StringBuilder keyList = new StringBuilder();
+			StringBuilder keyColumns = new StringBuilder();
+			StringBuilder marks = new StringBuilder();
+			StringBuilder forward = new StringBuilder();
+			StringBuilder backward = new StringBuilder();
+			StringBuilder outer = new StringBuilder();
+			for (int i = 0; i < keys.length; ++i) {
+				String sep = i == 0 ? "" : ", ";
+				keyList.append(sep).append(keys[i]);
+				keyColumns.append(", ").append(keys[i]).append(" AS page_key").append(i + 1);
+				marks.append(sep).append('?');
+				forward.append(sep).append(keys[i]).append(descending ? " DESC" : "");
+				backward.append(sep).append(keys[i]).append(descending ? "" : " DESC");
+				outer.append(sep).append("page_key").append(i + 1).append(descending ? " DESC" : "");
+			}
+			String query = "SELECT " + columns + keyColumns + " " + fromWhere;
+			String seek = " AND (" + keyList + ") %s (" + marks + ")";
+			this.firstSql = query + " ORDER BY " + forward + " LIMIT ?";
+			this.afterSql = query + String.format(seek, descending ? "<" : ">") + " ORDER BY " + forward + " LIMIT ?";
+			this.beforeSql = "SELECT * FROM (" + query + String.format(seek, descending ? ">" : "<") + " ORDER BY " + backward + " LIMIT ?) P ORDER BY " + outer;
+		}
+
+		@Override
+		Page read(MechanicShop esql, long[] after, long[] before, int pageSize) throws SQLException {
+			boolean backwards = after == null && before != null;
+			// pages are not cached, so they may come from a standby that lacks the latest writes
+			ColumnarResult result = esql.readOnly(MechanicShop.READ_YOUR_WRITES, () -> {
+				if (after != null) return esql.executeQueryAndReturnColumnar(afterSql, params(after, pageSize + 1));
+				if (before != null) return esql.executeQueryAndReturnColumnar(beforeSql, params(before, pageSize + 1));
+				return esql.executeQueryAndReturnColumnar(firstSql, pageSize + 1);
+			});
+			boolean more = result.rowCount() > pageSize;
+			// going backwards the extra row is the first one
+			int from = backwards && more ? 1 : 0;
+			int to = from + Math.min(result.rowCount(), pageSize);
+			int columns = result.columnCount() - keyLength;
+			return new Page(result.slice(from, to, columns), key(result, from, to, from, columns), key(result, from, to, to - 1, columns),
+					backwards ? more : after != null, backwards || more);
+		}
+
+		private static Object[] params(long[] key, int limit) {
+			Object[] params = new Object[key.length + 1];
+			for (int i = 0; i < key.length; ++i) params[i] = key[i];
+			params[key.length] = limit;
+			return params;
+		}
+
+		private long[] key(ColumnarResult result, int from, int to, int row, int firstKeyColumn) {
+			if (from >= to) return null;
+			long[] key = new long[keyLength];
+			for (int i = 0; i < keyLength; ++i) key[i] = result.getLong(row, firstKeyColumn + i);
+			return key;
+		}
+	}
+
+	/** The top-K report, paged by position in the ranking. */
+	static final class RankedReport extends Report {
+		final int k;
+
+		RankedReport(int k) {
+			super("kCarsWithTheMostServices", 1);
+			this.k = k;
+		}
+
+		@Override
+		Page read(MechanicShop esql, long[] after, long[] before, int pageSize) throws SQLException {
+			ColumnarResult all = MechanicShop.kCarsWithTheMostServices(esql, k);
+			int count = all.rowCount();
+			int from;
+			int to;
+			if (after != null) {
+				from = (int) Math.max(0, Math.min(count, after[0] + 1));
+				to = Math.min(count, from + pageSize);
+			} else if (before != null) {
+				to = (int) Math.max(0, Math.min(count, before[0]));
+				from = Math.max(0, to - pageSize);
+			} else {
+				from = 0;
+				to = Math.min(count, pageSize);
+			}
+			return new Page(all.slice(from, to, all.columnCount()), from < to ? new long[] { from } : null,
+					from < to ? new long[] { to - 1 } : null, from > 0, to < count);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Callback for MechanicShop.executeQueryStreaming.  The result set is read
+ * through a server-side cursor, so the handler sees each row as soon as its
+ * batch arrives and must copy out whatever it wants to keep before
+ * returning; the row is gone once row() returns.
+ */
+public interface RowHandler {
+
+	/**
+	 * Called once, before the first row (and also for an empty result).
+	 *
+	 * @param meta column names and types of the result
+	 * @throws java.sql.SQLException to abort the query
+	 */
+	default void start(ResultSetMetaData meta) throws SQLException {
+	}
+
+	/**
+	 * Called for every row, with the result set positioned on it.
+	 *
+	 * @param rs the result set, positioned on the current row
+	 * @throws java.sql.SQLException to abort the query
+	 */
+	void row(ResultSet rs) throws SQLException;
+}
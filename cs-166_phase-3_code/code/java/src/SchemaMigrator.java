@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Applies the versioned schema changes in the migrations directory on top
+ * of create.sql.
+ *
+ * A migration is a file named NNN_description.sql; NNN is its version.
+ * Pending migrations run in version order, each in its own transaction
+ * together with the row that records it in schema_version, so a failed
+ * migration leaves nothing behind and is retried on the next run.  The
+ * schema_version table is locked while migrating, so two clients started
+ * at the same time do not apply the same file twice.
+ */
+public class SchemaMigrator {
+
+	static final String CREATE_VERSION_TABLE_SQL =
+		"CREATE TABLE IF NOT EXISTS schema_version (" +
+		"version INTEGER NOT NULL PRIMARY KEY, " +
+		"name TEXT NOT NULL, " +
+		"applied_at TIMESTAMP NOT NULL DEFAULT now())";
+
+	private final MechanicShop esql;
+
+	public SchemaMigrator(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Applies every migration in dir that is not recorded in schema_version.
+	 *
+	 * @param dir directory holding the NNN_description.sql files
+	 * @return number of migrations applied
+	 * @throws java.io.IOException when a migration file cannot be read
+	 * @throws java.sql.SQLException when a migration fails; earlier ones stay applied
+	 */
+	public int migrate(File dir) throws IOException, SQLException {
+		TreeMap<Integer, File> migrations = list(dir);
+		esql.executeUpdate(CREATE_VERSION_TABLE_SQL);
+
+		int applied = 0;
+		Connection conn = esql.borrowConnection();
+		try {
+			conn.setAutoCommit(false);
+			for (int version : migrations.keySet()) {
+				File file = migrations.get(version);
+				Statement stmt = conn.createStatement();
+				try {
+					stmt.execute("LOCK TABLE schema_version IN EXCLUSIVE MODE");
+					if (appliedVersions(stmt).contains(version)) {
+						conn.rollback();
+						continue;
+					}
+					long started = System.nanoTime();
+					stmt.execute(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+					stmt.execute("INSERT INTO schema_version (version, name) VALUES (" + version + ", '" + file.getName().replace("'", "''") + "')");
+					conn.commit();
+					++applied;
+					System.out.println(String.format("  applied %s in %.2f s", file.getName(), (System.nanoTime() - started) / 1e9));
+				} catch (SQLException e) {
+					conn.rollback();
+					throw esql.getPool().failed(conn, new SQLException("Migration " + file.getName() + " failed: " + e.getMessage(), e.getSQLState(), e));
+				} finally {
+					stmt.close();
+				}
+			}
+		} finally {
+			esql.releaseConnection(conn);
+		}
+		// indexes and summaries may have changed what the reports read
+		esql.getReportCache().invalidateAll();
+		System.out.println("Schema is at version " + currentVersion() + " (" + applied + " migration(s) applied)");
+		return applied;
+	}
+
+	/**
+	 * @return the highest applied version, 0 when none
+	 */
+	public int currentVersion() throws SQLException {
+		ColumnarResult result = esql.executeQueryAndReturnColumnar("SELECT COALESCE(MAX(version), 0) FROM schema_version");
+		return (int) result.getLong(0, 0);
+	}
+
+	/**
+	 * @return the migration files in dir by version
+	 */
+	static TreeMap<Integer, File> list(File dir) throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.matches("\\d+_.*\\.sql"));
+		if (files == null) throw new IOException("Cannot read migrations directory " + dir);
+		Arrays.sort(files);
+		TreeMap<Integer, File> migrations = new TreeMap<Integer, File>();
+		for (File file : files) {
+			int version = Integer.parseInt(file.getName().substring(0, file.getName().indexOf('_')));
+			File other = migrations.put(version, file);
+			if (other != null) throw new IOException("Two migrations with version " + version + ": " + other.getName() + ", " + file.getName());
+		}
+		return migrations;
+	}
+
+	private static Set<Integer> appliedVersions(Statement stmt) throws SQLException {
+		Set<Integer> versions = new HashSet<Integer>();
+		ResultSet rs = stmt.executeQuery("SELECT version FROM schema_version");
+		try {
+			while (rs.next()) versions.add(rs.getInt(1));
+		} finally {
+			rs.close();
+		}
+		return versions;
+	}
+}
@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * The shop's storage: the menu operations over Customer, Mechanic, Car,
+ * Owns, Service_Request and Closed_Request, and the five reports.
+ *
+ * PostgresRepository runs them against the database through MechanicShop;
+ * MemoryRepository is an in-process engine with the same constraints,
+ * for running application logic and capacity estimates without a server.
+ * Both report a violated constraint as an SQLException with the
+ * PostgreSQL SQLSTATE (23505 duplicate key, 23503 missing reference, ...),
+ * and a rule of the menu as an IllegalArgumentException with the menu's
+ * message; both leave those rules to ShopRules.
+ *
+ * Results have the columns of the corresponding MechanicShop query.
+ */
+public interface ShopRepository {
+
+	/** @return the new customer's id */
+	int addCustomer(String fname, String lname, String phone, String address) throws SQLException;
+
+	/** @return the new mechanic's id */
+	int addMechanic(String fname, String lname, int experience) throws SQLException;
+
+	void addCar(String vin, String make, String model, int year) throws SQLException;
+
+	/** @return the new ownership id */
+	int addOwnership(int customerId, String vin) throws SQLException;
+
+	/** @return every column of the customers with the given last name */
+	ColumnarResult findCustomersByLastName(String lname) throws SQLException;
+
+	/** @return the cars owned by a customer, numbered in VIN order */
+	ColumnarResult listCustomerCars(int customerId) throws SQLException;
+
+	/** @return whether the VIN belongs to a car that has an owner */
+	boolean isOwnedCar(String vin) throws SQLException;
+
+	/** @return whether the customer owns the car with this VIN */
+	boolean ownsCar(int customerId, String vin) throws SQLException;
+
+	boolean serviceRequestExists(int rid) throws SQLException;
+
+	boolean mechanicExists(int mechanicId) throws SQLException;
+
+	/**
+	 * Opens a service request dated today for a car of the customer.
+	 *
+	 * @return the new request's rid
+	 */
+	int insertServiceRequest(int customerId, String vin, int odometer, String complaint) throws SQLException;
+
+	/**
+	 * Adds a car new to the shop, owned by the customer, and opens a service
+	 * request dated today for it, all or nothing.
+	 *
+	 * @return the new request's rid
+	 */
+	int openServiceRequestForNewCar(int customerId, String vin, String make, String model, int year,
+			int odometer, String complaint) throws SQLException;
+
+	/**
+	 * Closes a service request as of today.
+	 *
+	 * @return the new closed request's wid
+	 */
+	int closeServiceRequest(int rid, int mechanicId, String comment, int bill) throws SQLException;
+
+	ColumnarResult customersWithBillLessThan100() throws SQLException;
+
+	ColumnarResult customersWithMoreThan20Cars() throws SQLException;
+
+	ColumnarResult carsBefore1995With50000Miles() throws SQLException;
+
+	ColumnarResult kCarsWithTheMostServices(int k) throws SQLException;
+
+	ColumnarResult customersByTotalBillDesc() throws SQLException;
+
+	/**
+	 * Replaces the contents with the csv_data files in dir (customer.csv,
+	 * mechanic.csv, ...).
+	 */
+	void load(File dir) throws IOException, SQLException;
+
+	/**
+	 * @return customer_id, car_vin and lname of up to limit owned cars, by
+	 *         ownership id; test and benchmark input
+	 */
+	ColumnarResult sampleOwnedCars(int limit) throws SQLException;
+
+	/** @return id of up to limit mechanics, by id */
+	ColumnarResult sampleMechanics(int limit) throws SQLException;
+}
@@ -0,0 +1,59 @@
+import java.sql.SQLException;
+
+/**
+ * The menu's rules for opening and closing service requests, shared by
+ * both ShopRepository engines so they accept and reject the same input with
+ * the same messages.
+ *
+ * Each engine looks up the facts its own way (MemoryRepository in its maps,
+ * MechanicShop with queries, or inside the functions of migration 003, which
+ * report a broken rule with one of the MS SQLSTATEs below) and leaves the
+ * decision to these checks.  A broken rule is an IllegalArgumentException
+ * carrying the message the menu prints.
+ */
+final class ShopRules {
+
+	static final String NO_SUCH_REQUEST = "Service request cannot be found.";
+	static final String NO_SUCH_MECHANIC = "Mechanic ID cannot be found.";
+	static final String CLOSED_BEFORE_REQUEST = "Closing date is invalid. Date must be after request date.";
+	static final String NOT_OWNER = "The customer does not own this car.";
+
+	private ShopRules() {
+	}
+
+	/**
+	 * A request is only opened for a car the customer owns.
+	 *
+	 * @param owns whether the customer owns the car
+	 */
+	static void checkOpen(boolean owns) {
+		if (!owns) throw new IllegalArgumentException(NOT_OWNER);
+	}
+
+	/**
+	 * A request is closed only when it exists, is not dated after today,
+	 * and the mechanic exists; the first rule broken is reported.
+	 *
+	 * @param requestExists whether the service request exists
+	 * @param requestDatedByToday whether it is dated today or earlier; ignored when it does not exist
+	 * @param mechanicExists whether the mechanic exists
+	 */
+	static void checkClose(boolean requestExists, boolean requestDatedByToday, boolean mechanicExists) {
+		if (!requestExists) throw new IllegalArgumentException(NO_SUCH_REQUEST);
+		if (!requestDatedByToday) throw new IllegalArgumentException(CLOSED_BEFORE_REQUEST);
+		if (!mechanicExists) throw new IllegalArgumentException(NO_SUCH_MECHANIC);
+	}
+
+	/**
+	 * @return the broken rule an open_service_request or close_service_request
+	 *         error stands for, or null when it is not one of them
+	 */
+	static IllegalArgumentException broken(SQLException e) {
+		String state = e.getSQLState();
+		if ("MS001".equals(state)) return new IllegalArgumentException(NO_SUCH_REQUEST);
+		if ("MS002".equals(state)) return new IllegalArgumentException(NO_SUCH_MECHANIC);
+		if ("MS003".equals(state)) return new IllegalArgumentException(CLOSED_BEFORE_REQUEST);
+		if ("MS004".equals(state)) return new IllegalArgumentException(NOT_OWNER);
+		return null;
+	}
+}
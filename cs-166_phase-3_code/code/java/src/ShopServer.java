@@ -0,0 +1,664 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the shop operations as HTTP/JSON endpoints, so several front desks
+ * and dashboards can share one backend:
+ *
+ *   GET  /health
+ *   GET  /metrics                       latency and counts per SQL shape and operation
+ *   GET  /slow-queries                  slow statements by fingerprint, with their plans
+ *   POST /customers                     fname, lname, phone, address   -> {"id": ...}
+ *   GET  /customers?lname=...
+ *   GET  /customers/search?q=...&limit=...  by name prefix, with typos, or phone digits
+ *   GET  /customers/{id}/cars
+ *   POST /customers/{id}/cars           vin                            -> {"ownership_id": ...}
+ *   POST /mechanics                     fname, lname, experience       -> {"id": ...}
+ *   POST /cars                          vin, make, model, year         -> {"vin": ...}
+ *   POST /service-requests              customer_id, vin, odometer, complaint -> {"rid": ...}
+ *                                       (with make, model, year for a car new to the shop)
+ *   POST /service-requests/{rid}/close  mechanic_id, comment, bill     -> {"wid": ...}
+ *   GET  /reports/customers-bill-under-100
+ *   GET  /reports/customers-over-20-cars
+ *   GET  /reports/cars-before-1995
+ *   GET  /reports/top-cars?k=...
+ *   GET  /reports/customers-by-total-bill
+ *   GET  /dashboard?k=...&timeoutMs=...  the five reports above at once, with timings
+ *
+ * A report is answered one page at a time when pageSize is given, e.g.
+ * /reports/cars-before-1995?pageSize=100; the answer then also holds
+ * "next" and "previous" cursors, passed back as after=... or before=...
+ * to read the page that follows or precedes it (null at either end).
+ *
+ * Parameters are taken from the query string and from the request body,
+ * which may be a flat JSON object or a url-encoded form.  Queries answer
+ * {"count": n, "rows": [{column: value, ...}, ...]}, errors answer
+ * {"error": message} with a 4xx or 5xx status.  The sizes a request can
+ * ask for (k, limit, pageSize, timeoutMs) must be positive and at most
+ * mechanicshop.http.maxK, .maxLimit, .maxPageSize and .maxTimeoutMs, or
+ * the request is answered 422.
+ *
+ * Every request runs on its own virtual thread when the JDK has them (21
+ * and later), otherwise on a fixed pool of platform threads.  Database work
+ * still goes through the bounded ConnectionPool, so thousands of requests
+ * in flight share mechanicshop.pool.max sessions; a request that cannot get
+ * a connection within the checkout timeout is answered 503.
+ *
+ * There is no authentication, so the server only listens on the loopback
+ * interface unless mechanicshop.http.bind names another address (0.0.0.0
+ * for all of them); put it behind something that authenticates before
+ * opening it to a network.
+ */
+public class ShopServer {
+
+	static final String BIND_ADDRESS = System.getProperty("mechanicshop.http.bind");
+	static final int BACKLOG = Integer.getInteger("mechanicshop.http.backlog", 1024);
+	static final int FALLBACK_THREADS = Integer.getInteger("mechanicshop.http.threads", 200);
+	static final int MAX_BODY_BYTES = 64 * 1024;
+	static final int MAX_K = Integer.getInteger("mechanicshop.http.maxK", 1000);
+	static final int MAX_LIMIT = Integer.getInteger("mechanicshop.http.maxLimit", 1000);
+	static final int MAX_PAGE_SIZE = Integer.getInteger("mechanicshop.http.maxPageSize", 1000);
+	static final int MAX_TIMEOUT_MS = Integer.getInteger("mechanicshop.http.maxTimeoutMs", 60000);
+
+	static {
+		// the JDK server writes headers and body separately; with Nagle's
+		// algorithm on, small responses then stall ~40 ms on the client's
+		// delayed ACK.  Must be set before the server classes are loaded.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	/** An error answered with the given status and message. */
+	static final class HttpError extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final int status;
+
+		HttpError(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	private final MechanicShop esql;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * Binds the server to the given port of the loopback interface, or of
+	 * mechanicshop.http.bind; it accepts requests after start().
+	 *
+	 * @param esql the shop backend
+	 * @param port TCP port, or 0 for any free one
+	 * @throws java.io.IOException when the port cannot be bound
+	 */
+	public ShopServer(MechanicShop esql, int port) throws IOException {
+		this.esql = esql;
+		InetAddress address = BIND_ADDRESS == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(BIND_ADDRESS);
+		this.server = HttpServer.create(new InetSocketAddress(address, port), BACKLOG);
+		ExecutorService virtual = newVirtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(FALLBACK_THREADS, platformThreads());
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits up to delaySeconds for the ones in
+	 * flight and releases awaitStop().
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		stopped.countDown();
+	}
+
+	/** Blocks until stop() has been called. */
+	public void awaitStop() throws InterruptedException {
+		stopped.await();
+	}
+
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	/** @return the address and port listened on, e.g. 127.0.0.1:8080 */
+	public String address() {
+		InetSocketAddress bound = server.getAddress();
+		return bound.getAddress().getHostAddress() + ":" + bound.getPort();
+	}
+
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively
+	 * so the code still compiles and runs on JDKs without virtual threads
+	 * (or with them only as a preview feature).
+	 *
+	 * @return the executor, or null when virtual threads are not available
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static ThreadFactory platformThreads() {
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, "shop-http-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		int status;
+		String body;
+		try {
+			String[] path = segments(exchange.getRequestURI().getRawPath());
+			Map<String, String> params = params(exchange);
+			StringBuilder json = new StringBuilder(256);
+			status = route(exchange.getRequestMethod(), path, params, json);
+			body = json.toString();
+		} catch (HttpError e) {
+			status = e.status;
+			body = error(e.getMessage());
+		} catch (NumberFormatException e) {
+			status = 400;
+			body = error("Invalid number: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			// a menu rule was violated, e.g. closing a request dated in the future
+			status = 422;
+			body = error(e.getMessage());
+		} catch (SQLException e) {
+			status = statusOf(e);
+			body = error(e.getMessage());
+		} catch (RuntimeException e) {
+			status = 500;
+			body = error(String.valueOf(e));
+		}
+		try {
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			if (status == 503) exchange.getResponseHeaders().set("Retry-After", "1");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Runs the operation named by method and path and writes its JSON answer.
+	 *
+	 * @return the HTTP status
+	 */
+	private int route(String method, String[] path, Map<String, String> p, StringBuilder json) throws HttpError, SQLException {
+		boolean get = method.equals("GET");
+		boolean post = method.equals("POST");
+		if (path.length == 1 && path[0].equals("health")) {
+			requireMethod(get);
+			ConnectionPool pool = esql.getPool();
+			json.append("{\"status\":\"ok\",\"virtualThreads\":").append(virtualThreads)
+				.append(",\"pool\":{\"open\":").append(pool.size())
+				.append(",\"idle\":").append(pool.idleCount())
+				.append(",\"max\":").append(pool.maxSize()).append('}');
+			ReportCache reports = esql.getReportCache();
+			json.append(",\"reportCache\":{\"entries\":").append(reports.size())
+				.append(",\"hits\":").append(reports.hits())
+				.append(",\"misses\":").append(reports.misses()).append('}')
+				.append(",\"openRequests\":").append(esql.getOpenRequests().openCount())
+				.append(",\"customerNames\":").append(esql.getCustomerNames().size()).append('}');
+			return 200;
+		}
+		if (path.length == 1 && path[0].equals("metrics")) {
+			requireMethod(get);
+			esql.getMetrics().json(json);
+			return 200;
+		}
+		if (path.length == 1 && path[0].equals("slow-queries")) {
+			requireMethod(get);
+			SlowQueryLog slowQueries = esql.getMetrics().getSlowQueryLog();
+			if (slowQueries == null) throw new HttpError(404, "The slow query log is off");
+			slowQueries.json(json);
+			return 200;
+		}
+		if (path.length == 0) throw new HttpError(404, "Not found");
+
+		switch (path[0]) {
+			case "customers":
+				if (path.length == 1 && post) {
+					int id = MechanicShop.addCustomer(esql, required(p, "fname"), required(p, "lname"), required(p, "phone"), required(p, "address"));
+					json.append("{\"id\":").append(id).append('}');
+					return 201;
+				}
+				if (path.length == 1 && get) {
+					rows(json, MechanicShop.findCustomersByLastName(esql, required(p, "lname")));
+					return 200;
+				}
+				if (path.length == 2 && path[1].equals("search")) {
+					requireMethod(get);
+					int limit = p.containsKey("limit") ? boundedInt(p, "limit", MAX_LIMIT) : MechanicShop.CUSTOMER_SEARCH_LIMIT;
+					rows(json, MechanicShop.searchCustomers(esql, required(p, "q"), limit));
+					return 200;
+				}
+				if (path.length == 3 && path[2].equals("cars") && post) {
+					int id = MechanicShop.addOwnership(esql, Integer.parseInt(path[1]), required(p, "vin"));
+					json.append("{\"ownership_id\":").append(id).append('}');
+					return 201;
+				}
+				if (path.length == 3 && path[2].equals("cars")) {
+					requireMethod(get);
+					rows(json, MechanicShop.listCustomerCars(esql, Integer.parseInt(path[1])));
+					return 200;
+				}
+				break;
+			case "mechanics":
+				if (path.length == 1) {
+					requireMethod(post);
+					int id = MechanicShop.addMechanic(esql, required(p, "fname"), required(p, "lname"), requiredInt(p, "experience"));
+					json.append("{\"id\":").append(id).append('}');
+					return 201;
+				}
+				break;
+			case "cars":
+				if (path.length == 1) {
+					requireMethod(post);
+					String vin = required(p, "vin");
+					MechanicShop.addCar(esql, vin, required(p, "make"), required(p, "model"), requiredInt(p, "year"));
+					json.append("{\"vin\":");
+					string(json, vin);
+					json.append('}');
+					return 201;
+				}
+				break;
+			case "service-requests":
+				if (path.length == 1) {
+					requireMethod(post);
+					int rid = p.containsKey("make")
+							? MechanicShop.openServiceRequestForNewCar(esql, requiredInt(p, "customer_id"), required(p, "vin"),
+									required(p, "make"), required(p, "model"), requiredInt(p, "year"), requiredInt(p, "odometer"), required(p, "complaint"))
+							: MechanicShop.insertServiceRequest(esql, requiredInt(p, "customer_id"), required(p, "vin"),
+									requiredInt(p, "odometer"), required(p, "complaint"));
+					json.append("{\"rid\":").append(rid).append('}');
+					return 201;
+				}
+				if (path.length == 3 && path[2].equals("close")) {
+					requireMethod(post);
+					int wid = MechanicShop.closeServiceRequest(esql, Integer.parseInt(path[1]), requiredInt(p, "mechanic_id"),
+							required(p, "comment"), requiredInt(p, "bill"));
+					json.append("{\"wid\":").append(wid).append('}');
+					return 201;
+				}
+				break;
+			case "dashboard":
+				if (path.length == 1) {
+					requireMethod(get);
+					long timeoutMs = p.containsKey("timeoutMs") ? boundedInt(p, "timeoutMs", MAX_TIMEOUT_MS) : MechanicShop.DASHBOARD_TIMEOUT_MS;
+					Dashboard dashboard = new Dashboard(esql, p.containsKey("k") ? boundedInt(p, "k", MAX_K) : MechanicShop.DASHBOARD_TOP_K, timeoutMs);
+					dashboard.json(dashboard.run(), json);
+					return 200;
+				}
+				break;
+			case "reports":
+				if (path.length == 2) {
+					requireMethod(get);
+					if (p.containsKey("pageSize")) {
+						ReportPager.Report paged = pagedReport(path[1], p);
+						if (paged != null) {
+							page(json, paged, p);
+							return 200;
+						}
+						break;
+					}
+					ColumnarResult result = report(path[1], p);
+					if (result != null) {
+						rows(json, result);
+						return 200;
+					}
+				}
+				break;
+			default:
+				break;
+		}
+		throw new HttpError(404, "Not found");
+	}
+
+	private ColumnarResult report(String name, Map<String, String> p) throws HttpError, SQLException {
+		switch (name) {
+			case "customers-bill-under-100": return MechanicShop.customersWithBillLessThan100(esql);
+			case "customers-over-20-cars": return MechanicShop.customersWithMoreThan20Cars(esql);
+			case "cars-before-1995": return MechanicShop.carsBefore1995With50000Miles(esql);
+			case "top-cars": return MechanicShop.kCarsWithTheMostServices(esql, boundedInt(p, "k", MAX_K));
+			case "customers-by-total-bill": return MechanicShop.customersByTotalBillDesc(esql);
+			default: return null;
+		}
+	}
+
+	private ReportPager.Report pagedReport(String name, Map<String, String> p) throws HttpError {
+		switch (name) {
+			case "customers-bill-under-100": return ReportPager.BILL_LESS_THAN_100;
+			case "customers-over-20-cars": return ReportPager.MORE_THAN_20_CARS;
+			case "cars-before-1995": return ReportPager.CARS_BEFORE_1995;
+			case "top-cars": return ReportPager.topCars(boundedInt(p, "k", MAX_K));
+			case "customers-by-total-bill": return ReportPager.TOTAL_BILL_DESC;
+			default: return null;
+		}
+	}
+
+	private void page(StringBuilder json, ReportPager.Report report, Map<String, String> p) throws HttpError, SQLException {
+		int pageSize = boundedInt(p, "pageSize", MAX_PAGE_SIZE);
+		ReportPager.Page page;
+		try {
+			page = ReportPager.read(esql, report, p.get("after"), p.get("before"), pageSize);
+		} catch (IllegalArgumentException e) {
+			throw new HttpError(400, e.getMessage());
+		}
+		rows(json, page.rows);
+		// reopen the object for the cursors
+		json.setLength(json.length() - 1);
+		json.append(",\"next\":");
+		cursor(json, page.nextCursor());
+		json.append(",\"previous\":");
+		cursor(json, page.previousCursor());
+		json.append('}');
+	}
+
+	private static void cursor(StringBuilder json, String cursor) {
+		if (cursor == null) json.append("null");
+		else string(json, cursor);
+	}
+
+	private static void requireMethod(boolean allowed) throws HttpError {
+		if (!allowed) throw new HttpError(405, "Method not allowed");
+	}
+
+	private static String required(Map<String, String> p, String name) throws HttpError {
+		String value = p.get(name);
+		if (value == null) throw new HttpError(400, "Missing parameter: " + name);
+		return value;
+	}
+
+	private static int requiredInt(Map<String, String> p, String name) throws HttpError {
+		try {
+			return Integer.parseInt(required(p, name).trim());
+		} catch (NumberFormatException e) {
+			throw new HttpError(400, "Parameter " + name + " must be an integer");
+		}
+	}
+
+	/** @return an integer parameter from 1 to max */
+	private static int boundedInt(Map<String, String> p, String name, int max) throws HttpError {
+		int value = requiredInt(p, name);
+		if (value < 1 || value > max) throw new HttpError(422, "Parameter " + name + " must be from 1 to " + max);
+		return value;
+	}
+
+	/**
+	 * Maps a database error to a status: constraint and data errors are the
+	 * client's fault, an exhausted or unreachable database is a 503.
+	 */
+	static int statusOf(SQLException e) {
+		String state = e.getSQLState();
+		if (state == null) return 500;
+		if (state.startsWith("23")) return 409;
+		if (state.startsWith("22")) return 400;
+		if (state.startsWith("08") || state.equals("57P03")) return 503;
+		return 500;
+	}
+
+	private static String[] segments(String rawPath) throws HttpError {
+		List<String> parts = new ArrayList<String>();
+		for (String part : rawPath.split("/")) {
+			if (!part.isEmpty()) parts.add(decode(part));
+		}
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	private static Map<String, String> params(HttpExchange exchange) throws IOException, HttpError {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) parseForm(query, params);
+		String body = readBody(exchange.getRequestBody());
+		if (!body.trim().isEmpty()) {
+			String type = exchange.getRequestHeaders().getFirst("Content-Type");
+			if ((type != null && type.contains("json")) || body.trim().startsWith("{")) {
+				new JsonObjectReader(body).read(params);
+			} else {
+				parseForm(body, params);
+			}
+		}
+		return params;
+	}
+
+	private static String readBody(InputStream in) throws IOException, HttpError {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			if (bytes.size() + n > MAX_BODY_BYTES) throw new HttpError(413, "Request body too large");
+			bytes.write(buffer, 0, n);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void parseForm(String form, Map<String, String> params) throws HttpError {
+		for (String pair : form.split("&")) {
+			if (pair.isEmpty()) continue;
+			int eq = pair.indexOf('=');
+			String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+			String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+			params.put(name, value);
+		}
+	}
+
+	private static String decode(String s) throws HttpError {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (IllegalArgumentException | java.io.UnsupportedEncodingException e) {
+			throw new HttpError(400, "Malformed URL encoding");
+		}
+	}
+
+	/**
+	 * Reads a flat JSON object (string, number, boolean or null members)
+	 * into a map of strings; nested objects and arrays are rejected.
+	 */
+	static final class JsonObjectReader {
+		private final String s;
+		private int pos = 0;
+
+		JsonObjectReader(String s) {
+			this.s = s;
+		}
+
+		void read(Map<String, String> into) throws HttpError {
+			expect('{');
+			if (peek() == '}') {
+				++pos;
+			} else {
+				while (true) {
+					String name = readString();
+					expect(':');
+					String value = readValue();
+					if (value != null) into.put(name, value);
+					char c = next();
+					if (c == '}') break;
+					if (c != ',') throw malformed();
+				}
+			}
+			if (peek() != 0) throw malformed();
+		}
+
+		private String readValue() throws HttpError {
+			char c = peek();
+			if (c == '"') return readString();
+			if (c == '{' || c == '[') throw new HttpError(400, "Only flat JSON objects are accepted");
+			int start = pos;
+			while (pos < s.length() && ",}] \t\r\n".indexOf(s.charAt(pos)) < 0) ++pos;
+			String literal = s.substring(start, pos);
+			if (literal.equals("null")) return null;
+			if (literal.isEmpty()) throw malformed();
+			return literal;
+		}
+
+		private String readString() throws HttpError {
+			expect('"');
+			StringBuilder out = new StringBuilder();
+			while (pos < s.length()) {
+				char c = s.charAt(pos++);
+				if (c == '"') return out.toString();
+				if (c != '\\') {
+					out.append(c);
+					continue;
+				}
+				if (pos >= s.length()) break;
+				char e = s.charAt(pos++);
+				switch (e) {
+					case 'b': out.append('\b'); break;
+					case 'f': out.append('\f'); break;
+					case 'n': out.append('\n'); break;
+					case 'r': out.append('\r'); break;
+					case 't': out.append('\t'); break;
+					case 'u':
+						if (pos + 4 > s.length()) throw malformed();
+						try {
+							out.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+						} catch (NumberFormatException x) {
+							throw malformed();
+						}
+						pos += 4;
+						break;
+					default: out.append(e); break;
+				}
+			}
+			throw malformed();
+		}
+
+		private void expect(char c) throws HttpError {
+			if (next() != c) throw malformed();
+		}
+
+		private char next() {
+			char c = peek();
+			if (c != 0) ++pos;
+			return c;
+		}
+
+		/** @return the next non-blank character, or 0 at the end */
+		private char peek() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) ++pos;
+			return pos < s.length() ? s.charAt(pos) : 0;
+		}
+
+		private HttpError malformed() {
+			return new HttpError(400, "Malformed JSON body at offset " + pos);
+		}
+	}
+
+	/** Appends {"count": n, "rows": [...]} with one object per row. */
+	static void rows(StringBuilder json, ColumnarResult result) {
+		json.append("{\"count\":").append(result.rowCount()).append(",\"rows\":[");
+		for (int r = 0; r < result.rowCount(); ++r) {
+			if (r > 0) json.append(',');
+			json.append('{');
+			for (int c = 0; c < result.columnCount(); ++c) {
+				if (c > 0) json.append(',');
+				string(json, result.columnName(c));
+				json.append(':');
+				value(json, result, r, c);
+			}
+			json.append('}');
+		}
+		json.append("]}");
+	}
+
+	private static void value(StringBuilder json, ColumnarResult result, int row, int col) {
+		if (result.isNull(row, col)) {
+			json.append("null");
+			return;
+		}
+		switch (result.columnType(col)) {
+			case INT:
+			case LONG:
+				json.append(result.getLong(row, col));
+				break;
+			case DOUBLE:
+				double d = result.getDouble(row, col);
+				if (Double.isNaN(d) || Double.isInfinite(d)) json.append("null");
+				else json.append(d);
+				break;
+			default:
+				string(json, result.getString(row, col));
+				break;
+		}
+	}
+
+	static void string(StringBuilder json, String s) {
+		json.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': json.append("\\\""); break;
+				case '\\': json.append("\\\\"); break;
+				case '\n': json.append("\\n"); break;
+				case '\r': json.append("\\r"); break;
+				case '\t': json.append("\\t"); break;
+				default:
+					if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+					else json.append(c);
+					break;
+			}
+		}
+		json.append('"');
+	}
+
+	private static String error(String message) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"error\":");
+		string(json, message == null ? "" : message);
+		json.append('}');
+		return json.toString();
+	}
+}
@@ -0,0 +1,91 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load driver for a running ShopServer, built on the JDK's HTTP client.
+ *
+ * Usage:
+ *   java ShopServerLoad <base url> <requests> <concurrency> [path...]
+ *
+ * Sends the given number of GET requests, keeping at most concurrency of
+ * them in flight, cycling through the paths (by default the top-K report
+ * and /health).  Prints throughput, latency percentiles and a count per
+ * HTTP status, e.g.
+ *
+ *   java ShopServerLoad http://localhost:8080 20000 2000 /reports/top-cars?k=10
+ */
+public class ShopServerLoad {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java ShopServerLoad <base url> <requests> <concurrency> [path...]");
+			return;
+		}
+		String base = args[0].endsWith("/") ? args[0].substring(0, args[0].length() - 1) : args[0];
+		int requests = Integer.parseInt(args[1]);
+		int concurrency = Integer.parseInt(args[2]);
+		String[] paths = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length)
+				: new String[] { "/reports/top-cars?k=10", "/health" };
+
+		HttpClient client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(10))
+				.build();
+		URI[] uris = new URI[paths.length];
+		for (int i = 0; i < paths.length; ++i) uris[i] = URI.create(base + paths[i]);
+
+		Semaphore inFlight = new Semaphore(concurrency);
+		long[] latencies = new long[requests];
+		Map<Integer, LongAdder> statuses = new ConcurrentHashMap<Integer, LongAdder>();
+		AtomicInteger failures = new AtomicInteger();
+		CompletableFuture<?>[] calls = new CompletableFuture<?>[requests];
+
+		long started = System.nanoTime();
+		for (int i = 0; i < requests; ++i) {
+			inFlight.acquire();
+			final int n = i;
+			final long sent = System.nanoTime();
+			HttpRequest request = HttpRequest.newBuilder(uris[i % uris.length])
+					.timeout(Duration.ofSeconds(60))
+					.GET()
+					.build();
+			calls[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+					.whenComplete((response, error) -> {
+						latencies[n] = System.nanoTime() - sent;
+						if (error != null) failures.incrementAndGet();
+						else statuses.computeIfAbsent(response.statusCode(), s -> new LongAdder()).increment();
+						inFlight.release();
+					});
+		}
+		CompletableFuture.allOf(calls).handle((v, e) -> null).join();
+		double seconds = (System.nanoTime() - started) / 1e9;
+
+		Arrays.sort(latencies);
+		System.out.println(String.format("%d requests, %d in flight, %.2f s, %.0f req/s",
+				requests, concurrency, seconds, requests / seconds));
+		System.out.println(String.format("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f",
+				percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+				latencies.length == 0 ? 0.0 : latencies[latencies.length - 1] / 1e6));
+		for (Map.Entry<Integer, LongAdder> e : new TreeMap<Integer, LongAdder>(statuses).entrySet()) {
+			System.out.println("  HTTP " + e.getKey() + ": " + e.getValue().sum());
+		}
+		if (failures.get() > 0) System.out.println("  failed: " + failures.get());
+	}
+
+	private static double percentile(long[] sortedNanos, double p) {
+		if (sortedNanos.length == 0) return 0.0;
+		int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(p * sortedNanos.length) - 1);
+		return sortedNanos[Math.max(0, index)] / 1e6;
+	}
+}
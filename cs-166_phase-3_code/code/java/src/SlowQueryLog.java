@@ -0,0 +1,309 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Logs database calls that take longer than a threshold, grouped by
+ * fingerprint, and captures the plan of each slow statement.
+ *
+ * The fingerprint is the statement with its literals replaced by ?, IN
+ * lists folded, whitespace collapsed and lower cased, so calls that differ
+ * only in their constants (or in layout) are counted together.  Every slow
+ * call is logged with its time and row count; the parameter values are not
+ * logged, they hold customer data.
+ *
+ * The first time a fingerprint is slow, and again at most once every
+ * planInterval, its plan is captured with the same parameters.  One of the
+ * shop's lookups and reports (ANALYZED) is run once more under EXPLAIN
+ * (ANALYZE, BUFFERS); anything else only gets a plain EXPLAIN, since a
+ * SELECT may call a function that writes, and a rollback does not undo
+ * everything (setval, for one).  This happens on a background thread over a connection of
+ * its own, outside the pool, in a transaction that is rolled back, so the
+ * caller is never delayed and the pool never lends a connection to it.
+ * Captures that cannot keep up are dropped.
+ */
+public class SlowQueryLog {
+
+	static final String EXPLAIN_ANALYZE = "EXPLAIN (ANALYZE, BUFFERS) ";
+	static final String EXPLAIN = "EXPLAIN ";
+	static final int CAPTURE_QUEUE = 16;
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMBER = Pattern.compile("(?<![\\w$.])\\d+(?:\\.\\d+)?(?![\\w$])");
+	private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+	private static final Pattern SPACE = Pattern.compile("\\s+");
+	private static final Pattern EXPLAINABLE = Pattern.compile("^\\s*(select|insert|update|delete|with|values)\\b", Pattern.CASE_INSENSITIVE);
+
+	/** The statements known to only read, which are safe to run again. */
+	static final Set<String> ANALYZED = new HashSet<String>(Arrays.asList(
+		MechanicShop.FIND_CUSTOMERS_BY_LAST_NAME_SQL,
+		MechanicShop.LIST_CUSTOMER_CARS_SQL,
+		MechanicShop.CHECK_OWNED_VIN_SQL,
+		MechanicShop.CHECK_CUSTOMER_OWNS_VIN_SQL,
+		MechanicShop.CHECK_SERVICE_REQUEST_SQL,
+		MechanicShop.CHECK_MECHANIC_SQL,
+		MechanicShop.CHECK_REQUEST_DATE_SQL,
+		MechanicShop.BILL_LESS_THAN_100_SQL,
+		MechanicShop.MORE_THAN_20_CARS_SQL,
+		MechanicShop.CARS_BEFORE_1995_SQL,
+		MechanicShop.K_CARS_WITH_MOST_SERVICES_SQL,
+		MechanicShop.TOTAL_BILL_DESC_SQL,
+		NameIndex.CUSTOMERS_SQL,
+		NameIndex.LAST_NAME_SQL,
+		OpenRequestIndex.OPEN_REQUESTS_SQL,
+		OpenRequestIndex.CAR_SQL,
+		MembershipFilter.COUNTS_SQL,
+		MembershipFilter.REQUESTS_SQL,
+		MembershipFilter.MECHANICS_SQL,
+		PostgresRepository.SAMPLE_OWNED_CARS_SQL,
+		PostgresRepository.SAMPLE_MECHANICS_SQL));
+	static {
+		for (ReportPager.Report report : new ReportPager.Report[] {
+				ReportPager.BILL_LESS_THAN_100, ReportPager.MORE_THAN_20_CARS, ReportPager.CARS_BEFORE_1995, ReportPager.TOTAL_BILL_DESC }) {
+			ReportPager.SeekReport seek = (ReportPager.SeekReport) report;
+			ANALYZED.addAll(Arrays.asList(seek.firstSql, seek.afterSql, seek.beforeSql));
+		}
+	}
+
+	/** Slow calls of one fingerprint. */
+	public static final class Shape {
+		final String fingerprint;
+		final String sql;
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+		volatile long planRequestedAt = Long.MIN_VALUE;
+		volatile List<String> plan = null;
+
+		Shape(String fingerprint, String sql) {
+			this.fingerprint = fingerprint;
+			this.sql = sql;
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final long thresholdNanos;
+	private final long planIntervalMillis;
+	private final long planTimeoutMillis;
+	private final PrintStream out;
+	private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+	private final ThreadPoolExecutor planner;
+	// used by the planner thread only
+	private Connection side = null;
+
+	/**
+	 * @param pool supplies the connection settings for the plan captures
+	 * @param thresholdMillis calls at least this slow are logged
+	 * @param planIntervalMillis minimum time between two plan captures of one fingerprint
+	 * @param planTimeoutMillis statement_timeout of a plan capture
+	 * @param logFile file the log is appended to, null for standard error
+	 * @throws java.io.IOException when the log file cannot be opened
+	 */
+	public SlowQueryLog(ConnectionPool pool, long thresholdMillis, long planIntervalMillis, long planTimeoutMillis, String logFile) throws IOException {
+		this.pool = pool;
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.planIntervalMillis = planIntervalMillis;
+		this.planTimeoutMillis = planTimeoutMillis;
+		this.out = logFile == null ? System.err
+				: new PrintStream(new FileOutputStream(logFile, true), true, StandardCharsets.UTF_8.name());
+		this.planner = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(CAPTURE_QUEUE), r -> {
+					Thread t = new Thread(r, "slow-query-plans");
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	public long thresholdNanos() {
+		return thresholdNanos;
+	}
+
+	/**
+	 * Records a call that took at least the threshold.
+	 *
+	 * @param kind Metrics.QUERY, UPDATE or BATCH
+	 * @param sql the statement as prepared
+	 * @param params its parameter values, null when it cannot be replayed (batches)
+	 * @param nanos how long it took
+	 * @param rows rows returned or written
+	 * @param failed whether it threw
+	 */
+	public void record(String kind, String sql, Object[] params, long nanos, long rows, boolean failed) {
+		String normalized = normalize(sql);
+		String fingerprint = fingerprint(normalized);
+		Shape shape = shapes.get(fingerprint);
+		if (shape == null) shape = shapes.computeIfAbsent(fingerprint, f -> new Shape(f, normalized));
+		shape.count.increment();
+		shape.totalNanos.add(nanos);
+		shape.maxNanos.accumulate(nanos);
+
+		log(String.format(Locale.ROOT, "%s slow %s %.1f ms, %d rows%s, %d slow so far [%s] %s",
+				Instant.now(), kind, nanos / 1e6, rows, failed ? ", failed" : "", shape.count.sum(), fingerprint, normalized));
+
+		if (params == null || !EXPLAINABLE.matcher(sql).find()) return;
+		long now = System.currentTimeMillis();
+		long last = shape.planRequestedAt;
+		if (last != Long.MIN_VALUE && now - last < planIntervalMillis) return;
+		synchronized (shape) {
+			if (shape.planRequestedAt != last) return; // another thread got here first
+			shape.planRequestedAt = now;
+		}
+		final Shape captured = shape;
+		final Object[] values = params.clone();
+		planner.execute(() -> capture(captured, sql, values));
+	}
+
+	/**
+	 * @return the fingerprints seen so far, the most total slow time first
+	 */
+	public List<Shape> shapes() {
+		List<Shape> list = new ArrayList<Shape>(shapes.values());
+		Collections.sort(list, (a, b) -> Long.compare(b.totalNanos.sum(), a.totalNanos.sum()));
+		return list;
+	}
+
+	/**
+	 * Appends {"thresholdMs": ..., "shapes": [...]} with the slow fingerprints
+	 * and their last captured plan.
+	 */
+	public void json(StringBuilder json) {
+		json.append("{\"thresholdMs\":").append(TimeUnit.NANOSECONDS.toMillis(thresholdNanos)).append(",\"shapes\":[");
+		boolean first = true;
+		for (Shape shape : shapes()) {
+			if (!first) json.append(',');
+			first = false;
+			long count = shape.count.sum();
+			json.append("{\"fingerprint\":\"").append(shape.fingerprint).append("\",\"sql\":");
+			ShopServer.string(json, shape.sql);
+			json.append(",\"count\":").append(count)
+				.append(",\"totalMs\":").append(String.format(Locale.ROOT, "%.3f", shape.totalNanos.sum() / 1e6))
+				.append(",\"maxMs\":").append(String.format(Locale.ROOT, "%.3f", shape.maxNanos.get() / 1e6))
+				.append(",\"plan\":");
+			List<String> plan = shape.plan;
+			if (plan == null) {
+				json.append("null");
+			} else {
+				json.append('[');
+				for (int i = 0; i < plan.size(); ++i) {
+					if (i > 0) json.append(',');
+					ShopServer.string(json, plan.get(i));
+				}
+				json.append(']');
+			}
+			json.append('}');
+		}
+		json.append("]}");
+	}
+
+	/** Stops the plan captures and closes the side connection. */
+	public void close() {
+		planner.shutdownNow();
+		try {
+			planner.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (side != null) {
+			try {
+				side.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+			side = null;
+		}
+		if (out != System.err) out.close();
+	}
+
+	/**
+	 * @return sql with literals replaced by ?, IN lists folded to (?...),
+	 *         whitespace collapsed, lower cased
+	 */
+	static String normalize(String sql) {
+		String s = STRING_LITERAL.matcher(sql).replaceAll("?");
+		s = NUMBER.matcher(s).replaceAll("?");
+		s = IN_LIST.matcher(s).replaceAll("(?...)");
+		return SPACE.matcher(s).replaceAll(" ").trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return 16 hex digits of the FNV-1a hash of a normalized statement
+	 */
+	static String fingerprint(String normalized) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < normalized.length(); ++i) {
+			h ^= normalized.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		String hex = Long.toHexString(h);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	private void capture(Shape shape, String sql, Object[] params) {
+		long started = System.nanoTime();
+		String explain = ANALYZED.contains(sql) ? EXPLAIN_ANALYZE : EXPLAIN;
+		List<String> plan = new ArrayList<String>();
+		try {
+			if (side == null || !side.isValid(2)) {
+				if (side != null) side.close();
+				side = pool.openUnpooled();
+				side.setAutoCommit(false);
+			}
+			try {
+				Statement timeout = side.createStatement();
+				try {
+					// SET LOCAL ends with the transaction
+					timeout.execute("SET LOCAL statement_timeout = " + planTimeoutMillis);
+				} finally {
+					timeout.close();
+				}
+				PreparedStatement stmt = side.prepareStatement(explain + sql);
+				try {
+					MechanicShop.bind(stmt, params);
+					ResultSet rs = stmt.executeQuery();
+					while (rs.next()) plan.add(rs.getString(1));
+					rs.close();
+				} finally {
+					stmt.close();
+				}
+			} finally {
+				side.rollback();
+			}
+		} catch (SQLException e) {
+			log(String.format("%s plan of [%s] not captured: %s", Instant.now(), shape.fingerprint, e.getMessage()));
+			return;
+		}
+		shape.plan = Collections.unmodifiableList(plan);
+		StringBuilder entry = new StringBuilder();
+		entry.append(String.format(Locale.ROOT, "%s plan of [%s], %sin %.1f ms:",
+				Instant.now(), shape.fingerprint, explain, (System.nanoTime() - started) / 1e6));
+		for (String line : plan) entry.append(System.lineSeparator()).append("    ").append(line);
+		log(entry.toString());
+	}
+
+	private void log(String entry) {
+		synchronized (out) {
+			out.println(entry);
+		}
+	}
+}
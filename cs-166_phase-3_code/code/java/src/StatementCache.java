@@ -0,0 +1,92 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of prepared statements for one physical
+ * connection, keyed by SQL text.  Because every query in MechanicShop is
+ * parameterized, the SQL text is the shape of the statement and the same
+ * PreparedStatement object is reused for every call with that shape, which
+ * lets the driver switch to a named server-side statement and skip the
+ * parse/plan step on the server.
+ *
+ * A cache is only ever used by the thread that currently holds its
+ * connection, so it does no locking of its own.
+ */
+public class StatementCache {
+
+	private final Connection conn;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param conn the connection the statements are prepared on
+	 * @param capacity maximum number of statements kept open
+	 */
+	public StatementCache(Connection conn, final int capacity) {
+		this.conn = conn;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= capacity) return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns a prepared statement for the given SQL, reusing the cached one
+	 * when there is one.  The returned statement has its parameters cleared
+	 * and must not be closed by the caller; close its result sets instead.
+	 *
+	 * @param sql the parameterized SQL text
+	 * @return a ready-to-bind prepared statement
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			++hits;
+			stmt.clearParameters();
+			return stmt;
+		}
+		++misses;
+		stmt = conn.prepareStatement(sql);
+		statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Closes and forgets every cached statement.
+	 */
+	public void clear() {
+		for (PreparedStatement stmt : statements.values()) {
+			closeQuietly(stmt);
+		}
+		statements.clear();
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,29 @@
+-- Indexes behind the lookups and reports in MechanicShop.java.  create.sql
+-- only declares primary keys, so every one of these was a sequential scan.
+
+-- InsertServiceRequest: find the customer by last name
+CREATE INDEX customer_lname ON Customer (lname);
+
+-- InsertServiceRequest: list a customer's cars, check a typed VIN
+CREATE INDEX owns_customer_id_car_vin ON Owns (customer_id, car_vin);
+CREATE INDEX owns_car_vin ON Owns (car_vin);
+
+-- requests by customer (Customer_Summary maintenance, bill reports) and by
+-- car; odometer rides along for ListCarsBefore1995With50000Milles
+CREATE INDEX service_request_customer_id ON Service_Request (customer_id);
+CREATE INDEX service_request_car_vin_odometer ON Service_Request (car_vin, odometer);
+
+-- ListCarsBefore1995With50000Milles starts from the old cars
+CREATE INDEX car_year ON Car (year);
+
+-- CloseServiceRequest, the open-request anti-join and the bill joins
+CREATE INDEX closed_request_rid ON Closed_Request (rid);
+
+-- ListCustomersWithBillLessThan100 reads only the small bills
+CREATE INDEX closed_request_small_bill ON Closed_Request (rid, bill) WHERE bill < 100;
+
+ANALYZE Customer;
+ANALYZE Owns;
+ANALYZE Car;
+ANALYZE Service_Request;
+ANALYZE Closed_Request;
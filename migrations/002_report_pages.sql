@@ -0,0 +1,20 @@
+-- Keyset pages of the reports (ReportPager.java).  A page seeks to the key
+-- it starts after in one of these and reads on in key order, so it costs
+-- the same on page one and page five hundred.
+
+-- ListCustomersWithBillLessThan100, by (rid, wid)
+CREATE INDEX closed_request_small_bill_page ON Closed_Request (rid, wid) WHERE bill < 100;
+
+-- ListCustomersWithMoreThan20Cars, by customer id
+CREATE INDEX customer_summary_many_cars_page ON Customer_Summary (customer_id) WHERE car_count > 20;
+
+-- ListCarsBefore1995With50000Milles, by rid
+CREATE INDEX service_request_low_odometer_page ON Service_Request (rid) WHERE odometer < 50000;
+
+-- ListCustomersInDescendingOrderOfTheirTotalBill, by (total_bill, customer_id)
+-- read backwards
+CREATE INDEX customer_summary_total_bill_page ON Customer_Summary (total_bill, customer_id) WHERE closed_count > 0;
+
+ANALYZE Closed_Request;
+ANALYZE Customer_Summary;
+ANALYZE Service_Request;
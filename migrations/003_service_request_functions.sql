@@ -0,0 +1,50 @@
+-- Opening and closing a service request as one statement each, so a desk
+-- action is one round trip and one commit (MechanicShop.insertServiceRequest,
+-- openServiceRequestForNewCar and closeServiceRequest).  The keys are passed
+-- in from the client's IdAllocator blocks.  Mistakes the desk can correct
+-- are raised with their own SQLSTATE:
+--   MS001 no such service request     MS003 request dated in the future
+--   MS002 no such mechanic            MS004 car not owned by the customer
+
+-- With an ownership id, the car is new to the shop: it is added and owned
+-- by the customer first.  Otherwise the customer must already own it.
+CREATE OR REPLACE FUNCTION open_service_request(p_rid INTEGER, p_customer_id INTEGER, p_vin TEXT, p_odometer INTEGER, p_complain TEXT,
+		p_ownership_id INTEGER, p_make TEXT, p_model TEXT, p_year INTEGER) RETURNS Service_Request AS $$
+DECLARE
+	opened Service_Request;
+BEGIN
+	IF p_ownership_id IS NOT NULL THEN
+		INSERT INTO Car (vin, make, model, year) VALUES (p_vin, p_make, p_model, p_year);
+		INSERT INTO Owns (ownership_id, customer_id, car_vin) VALUES (p_ownership_id, p_customer_id, p_vin);
+	ELSIF NOT EXISTS (SELECT 1 FROM Owns O WHERE O.customer_id = p_customer_id AND O.car_vin = p_vin) THEN
+		RAISE EXCEPTION 'Customer % does not own car %', p_customer_id, p_vin USING ERRCODE = 'MS004';
+	END IF;
+	INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain)
+	VALUES (p_rid, p_customer_id, p_vin, CURRENT_DATE, p_odometer, p_complain)
+	RETURNING * INTO opened;
+	RETURN opened;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION close_service_request(p_wid INTEGER, p_rid INTEGER, p_mid INTEGER, p_comment TEXT, p_bill INTEGER)
+		RETURNS Closed_Request AS $$
+DECLARE
+	requested DATE;
+	closed Closed_Request;
+BEGIN
+	SELECT SR.date INTO requested FROM Service_Request SR WHERE SR.rid = p_rid;
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'Service request % cannot be found', p_rid USING ERRCODE = 'MS001';
+	END IF;
+	IF requested > CURRENT_DATE THEN
+		RAISE EXCEPTION 'Service request % is dated %, after today', p_rid, requested USING ERRCODE = 'MS003';
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM Mechanic M WHERE M.id = p_mid) THEN
+		RAISE EXCEPTION 'Mechanic % cannot be found', p_mid USING ERRCODE = 'MS002';
+	END IF;
+	INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill)
+	VALUES (p_wid, p_rid, p_mid, CURRENT_DATE, p_comment, p_bill)
+	RETURNING * INTO closed;
+	RETURN closed;
+END;
+$$ LANGUAGE plpgsql;